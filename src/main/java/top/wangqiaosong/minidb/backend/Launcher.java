@@ -6,7 +6,9 @@ import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import top.wangqiaosong.minidb.backend.convert.Converter;
 import top.wangqiaosong.minidb.backend.dm.DataManager;
+import top.wangqiaosong.minidb.backend.dm.pageCache.PageCacheOptions;
 import top.wangqiaosong.minidb.backend.server.Server;
 import top.wangqiaosong.minidb.backend.tbm.TableManager;
 import top.wangqiaosong.minidb.backend.tm.TransactionManager;
@@ -27,6 +29,7 @@ public class Launcher {
     //2的10次方
     public static final long KB = 1 << 10;
     public static final long MB = 1 << 20;
+    public static final long DEFALUT_EXTENT = 4 * MB;
     public static final long GB = 1 << 30;
 
     public static void main(String[] args) throws ParseException {
@@ -35,45 +38,86 @@ public class Launcher {
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("mmap", false, "-mmap");
+        options.addOption("pagesize", true, "-pagesize 8KB");
+        options.addOption("compress", false, "-compress");
+        options.addOption("extent", true, "-extent 4MB");
+        options.addOption("convert", true, "-convert OldDBPath");
+        options.addOption("to", true, "-to DBPath");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options, args);
 
         if (cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")), parsePageCacheOptions(cmd));
             return;
         }
         if (cmd.hasOption("create")) {
-            createDB(cmd.getOptionValue("create"));
+            createDB(cmd.getOptionValue("create"), parsePageCacheOptions(cmd));
             return;
         }
-        System.out.println("Usage: launcher (open|create) DBPath");
+        if (cmd.hasOption("convert") && cmd.hasOption("to")) {
+            convertDB(cmd.getOptionValue("convert"), cmd.getOptionValue("to"), parseMem(cmd.getOptionValue("mem")), parsePageCacheOptions(cmd));
+            return;
+        }
+        System.out.println("Usage: launcher (open|create) DBPath | -convert OldDBPath -to DBPath");
     }
 
     /**
      * Launcher 根据两个参数，来决定是创建数据库文件，
      * 创建DB 开启一个事务
      */
-    private static void createDB(String path) {
+    private static void createDB(String path, PageCacheOptions opt) {
         TransactionManager tm = TransactionManager.create(path);
-        DataManager dm = DataManager.create(path, DEFALUT_MEM, tm);
+        DataManager dm = DataManager.create(path, DEFALUT_MEM, tm, opt);
         VersionManager vm = new VersionManagerImpl(tm, dm);
-        TableManager.create(path, vm, dm);
-        tm.close();
+        TableManager.create(path, vm, dm).close();
         dm.close();
+        tm.close();
     }
 
     /**
      * 还是启动一个已有的数据库。
      * 根据输入的文件地址和人工指定的内存大小启动数据库和文件
      */
-    private static void openDB(String path, long mem) {
+    private static void openDB(String path, long mem, PageCacheOptions opt) {
         TransactionManager tm = TransactionManager.open(path);
-        DataManager dm = DataManager.open(path, mem, tm);
+        DataManager dm = DataManager.open(path, mem, tm, opt);
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager tbm = TableManager.open(path, vm, dm);
+        // 退出时先停下后台清理，不在释放槽的中途被打断
+        Runtime.getRuntime().addShutdownHook(new Thread(tbm::close));
         new Server(port, tbm).start();
     }
 
+    /**
+     * 旧版本的数据库离线转换成当前格式，建在新的路径下，旧文件不动
+     */
+    private static void convertDB(String from, String to, long mem, PageCacheOptions opt) {
+        try {
+            long rows = Converter.convert(from, to, mem, opt);
+            System.out.println("Converted " + rows + " rows.");
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * -mmap 用内存映射读写数据文件
+     * -pagesize 创建时选定页大小，4KB~32KB，打开时忽略
+     * -compress 创建时开启页压缩，打开时忽略
+     * -extent 数据文件每次增长的大小，1MB~64MB，默认4MB
+     */
+    private static PageCacheOptions parsePageCacheOptions(CommandLine cmd) {
+        PageCacheOptions opt = new PageCacheOptions();
+        opt.mmap = cmd.hasOption("mmap");
+        opt.compress = cmd.hasOption("compress");
+        opt.extentSize = (int) (cmd.hasOption("extent") ? parseMem(cmd.getOptionValue("extent")) : DEFALUT_EXTENT);
+        if (cmd.hasOption("pagesize")) {
+            opt.pageSize = (int) parseMem(cmd.getOptionValue("pagesize"));
+        }
+        return opt;
+    }
+
     private static long parseMem(String memStr) {
         if (memStr == null || "".equals(memStr)) {
             return DEFALUT_MEM;
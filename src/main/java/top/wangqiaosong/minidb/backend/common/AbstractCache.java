@@ -1,68 +1,138 @@
 package top.wangqiaosong.minidb.backend.common;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Set;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import top.wangqiaosong.minidb.common.Error;
 
 /**
  * AbstractCache 实现了一个引用计数策略的缓存
  * 本地缓存一般使用 map集合实现
+ * key按哈希分到多个段(Segment)，每段各自加锁，不同段的命中和释放互不阻塞，
+ * 只有缓存总数count是全局的原子计数
+ * <p>
+ * 默认引用计数归零即驱逐；开启retain后，引用归零的资源继续留在缓存中，
+ * 只有缓存满时才按CLOCK(二次机会)算法挑选未被引用的资源驱逐并写回
  */
 public abstract class AbstractCache<T> {
-    private HashMap<Long, T> cache;                     // 实际缓存的数据
-    private HashMap<Long, Integer> references;          // 元素的引用个数
-    private HashMap<Long, Boolean> getting;             // 正在获取某资源的线程
+    // 默认分段数，必须是2的幂
+    public static final int DEFAULT_SEGMENTS = 16;
+
+    /**
+     * 一个分段，结构与原先整个缓存相同
+     */
+    private static class Segment<T> {
+        HashMap<Long, T> cache = new HashMap<>();                   // 实际缓存的数据
+        HashMap<Long, Integer> references = new HashMap<>();        // 元素的引用个数
+        HashMap<Long, CountDownLatch> getting = new HashMap<>();    // 正在获取某资源的线程，加载完成后countDown唤醒等待者
+        HashSet<CountDownLatch> releasing = new HashSet<>();        // getting中属于段锁外写回的那些
+        ArrayDeque<Long> clock = new ArrayDeque<>();                // CLOCK环，队头为指针当前位置
+        HashSet<Long> referenced = new HashSet<>();                 // 上次扫过之后被访问过的资源(访问位)
+        Lock lock = new ReentrantLock();
+    }
+
+    private Segment<T>[] segments;
+    private int segmentMask;
 
     private int maxResource;                            // 缓存的最大缓存资源数
-    private int count = 0;                              // 缓存中元素的个数
-    private Lock lock;
+    private AtomicInteger count = new AtomicInteger(0); // 缓存中元素的个数
+    private boolean retain;                             // 引用归零后是否保留在缓存中
+    private AtomicInteger hand = new AtomicInteger(0);  // 驱逐时从哪个段开始扫描
+    private AtomicInteger pending = new AtomicInteger(0); // 段锁外正在写回、或被维护线程暂时引用的资源数
 
     public AbstractCache(int maxResource) {
+        this(maxResource, DEFAULT_SEGMENTS, false);
+    }
+
+    public AbstractCache(int maxResource, int noSegments) {
+        this(maxResource, noSegments, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    public AbstractCache(int maxResource, int noSegments, boolean retain) {
+        if (noSegments <= 0 || (noSegments & (noSegments - 1)) != 0) {
+            throw new IllegalArgumentException("noSegments must be a power of 2");
+        }
         this.maxResource = maxResource;
-        cache = new HashMap<>();
-        references = new HashMap<>();
-        getting = new HashMap<>();
-        lock = new ReentrantLock();
+        this.retain = retain;
+        segments = new Segment[noSegments];
+        for (int i = 0; i < noSegments; i++) {
+            segments[i] = new Segment<>();
+        }
+        segmentMask = noSegments - 1;
+    }
+
+    /**
+     * 打散key的高低位，页号和uid这种连续的key也能均匀落到各段
+     */
+    private Segment<T> segmentFor(long key) {
+        int h = (int) (key ^ (key >>> 32));
+        h ^= (h >>> 16);
+        return segments[h & segmentMask];
     }
 
     protected T get(long key) throws Exception {
+        return get(key, false);
+    }
+
+    /**
+     * cold为true表示批量扫描式的访问，不设置访问位，扫描读到的资源不会把热点资源挤出去
+     */
+    protected T get(long key, boolean cold) throws Exception {
+        Segment<T> seg = segmentFor(key);
+        CountDownLatch loading;
         while (true) {
-            lock.lock();
-            //资源存在则 if (getting.containsKey(key))==true，getting提前注册，表示准备获取资源
-            if (getting.containsKey(key)) {
-                // 请求的资源正在被其他线程获取
-                lock.unlock();
-                try {
-                    //该资源被请求则等待一会儿再请求
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    continue;
-                }
-                //跳过下面语句重新开始while循环
+            seg.lock.lock();
+            //getting中有key说明其他线程正在从磁盘加载该资源
+            CountDownLatch other = seg.getting.get(key);
+            if (other != null) {
+                // 请求的资源正在被其他线程获取，等待其加载完成后重新查缓存，同一资源只读一次
+                seg.lock.unlock();
+                other.await();
                 continue;
             }
 
-            if (cache.containsKey(key)) {
+            if (seg.cache.containsKey(key)) {
                 // 资源在缓存中，直接返回
-                T obj = cache.get(key);
-                references.put(key, references.get(key) + 1);
-                lock.unlock();
+                T obj = seg.cache.get(key);
+                seg.references.put(key, seg.references.get(key) + 1);
+                // 访问位只给CLOCK用，不保留的缓存不记，否则释放后key留在集合里越积越多
+                if (retain && !cold) {
+                    seg.referenced.add(key);
+                }
+                seg.lock.unlock();
                 return obj;
             }
 
             // 尝试获取该资源
-            // 缓存满了解锁直接报错
-            if (maxResource > 0 && count == maxResource) {
-                lock.unlock();
-                throw Error.CacheFullException;
-            }
-            count++;
-            getting.put(key, true);
-            lock.unlock();
+            // 缓存满了先驱逐一个未被引用的资源，全部都被引用才报错
+            if (!reserve()) {
+                seg.lock.unlock();
+                if (!retain || !evict()) {
+                    // 写回结束后就有位置了，等一等而不是报错
+                    if (pending.get() > 0) {
+                        Thread.yield();
+                        continue;
+                    }
+                    throw Error.CacheFullException;
+                }
+                continue;
+            }
+            loading = new CountDownLatch(1);
+            seg.getting.put(key, loading);
+            seg.lock.unlock();
             break;
         }
 
@@ -73,41 +143,321 @@ public abstract class AbstractCache<T> {
              */
             obj = getForCache(key);
         } catch (Exception e) {
-            //有异常先把该资源锁住，缓存-1，注册信息删除
-            lock.lock();
-            count--;
-            getting.remove(key);
-            lock.unlock();
+            //有异常先把该资源锁住，缓存-1，注册信息删除，等待者醒来后会自己重新加载
+            seg.lock.lock();
+            count.decrementAndGet();
+            seg.getting.remove(key);
+            seg.lock.unlock();
+            loading.countDown();
             throw e;
         }
-        lock.lock();
-        getting.remove(key);
-        cache.put(key, obj);
-        references.put(key, 1);
-        lock.unlock();
+        seg.lock.lock();
+        seg.getting.remove(key);
+        seg.cache.put(key, obj);
+        seg.references.put(key, 1);
+        if (retain) {
+            seg.clock.addLast(key);
+            if (!cold) {
+                seg.referenced.add(key);
+            }
+        }
+        seg.lock.unlock();
+        loading.countDown();
 
         return obj;
     }
 
+    /**
+     * 资源已在缓存中时引用它并返回，不在缓存中或正在加载时返回null，不会去加载
+     */
+    protected T getIfCached(long key) {
+        return getIfCached(key, false);
+    }
+
+    /**
+     * cold同get，检查点、写回这类维护性的引用不设置访问位，不会让资源显得刚被用过
+     */
+    protected T getIfCached(long key, boolean cold) {
+        Segment<T> seg = segmentFor(key);
+        seg.lock.lock();
+        try {
+            T obj = seg.cache.get(key);
+            if (obj == null) {
+                return null;
+            }
+            seg.references.put(key, seg.references.get(key) + 1);
+            if (retain && !cold) {
+                seg.referenced.add(key);
+            }
+            return obj;
+        } finally {
+            seg.lock.unlock();
+        }
+    }
+
+    /**
+     * 从hand指向的段开始，逐段用CLOCK算法找一个引用为0且访问位已清的资源驱逐
+     * 同一时刻只持有一个段的锁，不会与get互相死锁
+     */
+    private boolean evict() {
+        int start = hand.getAndIncrement();
+        for (int i = 0; i < segments.length; i++) {
+            Segment<T> seg = segments[(start + i) & segmentMask];
+            long key = 0;
+            T obj = null;
+            CountDownLatch releasing = null;
+            seg.lock.lock();
+            try {
+                // 最多转两圈：第一圈清访问位，第二圈一定能遇到未被引用的资源(如果有的话)
+                int steps = seg.clock.size() * 2;
+                while (steps-- > 0) {
+                    key = seg.clock.pollFirst();
+                    if (seg.references.get(key) > 0 || seg.referenced.remove(key)) {
+                        seg.clock.addLast(key);
+                        continue;
+                    }
+                    obj = seg.cache.remove(key);
+                    seg.references.remove(key);
+                    releasing = markReleasing(seg, key);
+                    break;
+                }
+            } finally {
+                seg.lock.unlock();
+            }
+            if (obj != null) {
+                finishRelease(seg, key, obj, releasing);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 持段锁时调用：资源已从段中移除，写回前把key登记到getting中
+     * 同一资源的get会等写回结束后再去加载，读不到写回之前的旧版本
+     */
+    private CountDownLatch markReleasing(Segment<T> seg, long key) {
+        CountDownLatch releasing = new CountDownLatch(1);
+        seg.getting.put(key, releasing);
+        seg.releasing.add(releasing);
+        pending.incrementAndGet();
+        return releasing;
+    }
+
+    /**
+     * 在段锁外写回资源，写盘不会挡住同一段上其他资源的get和release
+     */
+    private void finishRelease(Segment<T> seg, long key, T obj, CountDownLatch releasing) {
+        try {
+            releaseForCache(obj);
+        } finally {
+            seg.lock.lock();
+            seg.getting.remove(key);
+            seg.releasing.remove(releasing);
+            seg.lock.unlock();
+            count.decrementAndGet();
+            pending.decrementAndGet();
+            releasing.countDown();
+        }
+    }
+
+    /**
+     * 等调用前已开始的段锁外写回全部结束，之后开始的不等
+     * 这些资源已不在段中，遍历缓存看不到它们，刷盘前要先等它们写完
+     */
+    protected void awaitReleasing() {
+        List<CountDownLatch> latches = new ArrayList<>();
+        for (Segment<T> seg : segments) {
+            seg.lock.lock();
+            try {
+                latches.addAll(seg.releasing);
+            } finally {
+                seg.lock.unlock();
+            }
+        }
+        for (CountDownLatch latch : latches) {
+            Uninterruptibles.awaitUninterruptibly(latch);
+        }
+    }
+
+    /**
+     * 如果资源未被引用且自冷访问载入后没有被正常访问过，立即驱逐并写回
+     * 用于批量扫描回收自己环中的页
+     */
+    protected boolean evictIfCold(long key) {
+        Segment<T> seg = segmentFor(key);
+        T obj;
+        CountDownLatch releasing;
+        seg.lock.lock();
+        try {
+            Integer ref = seg.references.get(key);
+            if (ref == null || ref > 0 || seg.referenced.contains(key)) {
+                return false;
+            }
+            obj = seg.cache.remove(key);
+            seg.references.remove(key);
+            seg.clock.remove(key);
+            releasing = markReleasing(seg, key);
+        } finally {
+            seg.lock.unlock();
+        }
+        finishRelease(seg, key, obj, releasing);
+        return true;
+    }
+
+    /**
+     * 丢弃一个未被引用的资源，不写回
+     * 用于截断文件后清掉已经不存在的页
+     */
+    protected void discard(long key) {
+        Segment<T> seg = segmentFor(key);
+        seg.lock.lock();
+        try {
+            // 正在加载或写回的等它结束，免得写回落在截断之后
+            CountDownLatch other;
+            while ((other = seg.getting.get(key)) != null) {
+                seg.lock.unlock();
+                try {
+                    other.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } finally {
+                    seg.lock.lock();
+                }
+            }
+            Integer ref = seg.references.get(key);
+            if (ref == null || ref > 0) {
+                return;
+            }
+            T obj = seg.cache.remove(key);
+            seg.references.remove(key);
+            seg.clock.remove(key);
+            seg.referenced.remove(key);
+            discardForCache(obj);
+            count.decrementAndGet();
+        } finally {
+            seg.lock.unlock();
+        }
+    }
+
+    /**
+     * 资源只被调用者自己引用时，在段锁内执行action并返回true，否则返回false
+     * 持锁期间其他线程拿不到这个资源，action可以放心改动它
+     */
+    protected boolean runExclusive(long key, Runnable action) {
+        Segment<T> seg = segmentFor(key);
+        seg.lock.lock();
+        try {
+            Integer ref = seg.references.get(key);
+            if (ref == null || ref != 1) {
+                return false;
+            }
+            action.run();
+            return true;
+        } finally {
+            seg.lock.unlock();
+        }
+    }
+
+    /**
+     * 逐段在段锁内引用所有未被引用且满足filter的资源，不设置访问位，返回时按key升序
+     * 段锁内只做判断，调用者在锁外处理它们，处理完逐个unpin
+     */
+    protected List<T> pinUnpinned(Predicate<T> filter) {
+        List<Long> keys = new ArrayList<>();
+        Map<Long, T> pinned = new HashMap<>();
+        for (Segment<T> seg : segments) {
+            seg.lock.lock();
+            try {
+                for (Map.Entry<Long, Integer> e : seg.references.entrySet()) {
+                    T obj = seg.cache.get(e.getKey());
+                    if (e.getValue() == 0 && filter.test(obj)) {
+                        e.setValue(1);
+                        pending.incrementAndGet();
+                        keys.add(e.getKey());
+                        pinned.put(e.getKey(), obj);
+                    }
+                }
+            } finally {
+                seg.lock.unlock();
+            }
+        }
+        Collections.sort(keys);
+        List<T> objs = new ArrayList<>(keys.size());
+        for (long key : keys) {
+            objs.add(pinned.get(key));
+        }
+        return objs;
+    }
+
+    /**
+     * 释放pinUnpinned引用的资源
+     */
+    protected void unpin(long key) {
+        release(key);
+        pending.decrementAndGet();
+    }
+
+    /**
+     * 当前缓存中所有资源的key，不引用资源，返回后资源可能已被驱逐
+     */
+    protected List<Long> cachedKeys() {
+        List<Long> keys = new ArrayList<>();
+        for (Segment<T> seg : segments) {
+            seg.lock.lock();
+            try {
+                keys.addAll(seg.cache.keySet());
+            } finally {
+                seg.lock.unlock();
+            }
+        }
+        Collections.sort(keys);
+        return keys;
+    }
+
+    /**
+     * 为一个新资源占一个位置，maxResource为0表示不限制
+     */
+    private boolean reserve() {
+        while (true) {
+            int c = count.get();
+            if (maxResource > 0 && c >= maxResource) {
+                return false;
+            }
+            if (count.compareAndSet(c, c + 1)) {
+                return true;
+            }
+        }
+    }
+
     /**
      * jdk8是抽象类方法默认为protected，之后是default比protected权限小，作者用的11所以修改了
      * 强行释放一个缓存
      */
     protected void release(long key) {
-        lock.lock();
+        Segment<T> seg = segmentFor(key);
+        T obj = null;
+        CountDownLatch releasing = null;
+        seg.lock.lock();
         try {
-            int ref = references.get(key) - 1;
-            if (ref == 0) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
-                count--;
+            int ref = seg.references.get(key) - 1;
+            if (ref == 0 && retain) {
+                // 保留在缓存中，等缓存满时由CLOCK驱逐
+                seg.references.put(key, 0);
+            } else if (ref == 0) {
+                obj = seg.cache.remove(key);
+                seg.references.remove(key);
+                seg.referenced.remove(key);
+                releasing = markReleasing(seg, key);
             } else {
-                references.put(key, ref);
+                seg.references.put(key, ref);
             }
         } finally {
-            lock.unlock();
+            seg.lock.unlock();
+        }
+        if (obj != null) {
+            finishRelease(seg, key, obj, releasing);
         }
     }
 
@@ -115,17 +465,22 @@ public abstract class AbstractCache<T> {
      * 关闭缓存，写回所有资源
      */
     protected void close() {
-        lock.lock();
-        try {
-            Set<Long> keys = cache.keySet();
-            for (long key : keys) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
+        for (Segment<T> seg : segments) {
+            seg.lock.lock();
+            try {
+                List<Long> keys = new ArrayList<>(seg.cache.keySet());
+                for (long key : keys) {
+                    T obj = seg.cache.get(key);
+                    releaseForCache(obj);
+                    seg.references.remove(key);
+                    seg.cache.remove(key);
+                    count.decrementAndGet();
+                }
+                seg.clock.clear();
+                seg.referenced.clear();
+            } finally {
+                seg.lock.unlock();
             }
-        } finally {
-            lock.unlock();
         }
     }
 
@@ -139,4 +494,10 @@ public abstract class AbstractCache<T> {
      * 当资源被驱逐时的写回行为
      */
     protected abstract void releaseForCache(T obj);
+
+    /**
+     * 资源被丢弃时的行为，不写回，默认什么也不做
+     */
+    protected void discardForCache(T obj) {
+    }
 }
@@ -0,0 +1,100 @@
+package top.wangqiaosong.minidb.backend.convert;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import top.wangqiaosong.minidb.backend.convert.LegacyReader.LegacyTable;
+import top.wangqiaosong.minidb.backend.dm.DataManager;
+import top.wangqiaosong.minidb.backend.dm.logger.Logger;
+import top.wangqiaosong.minidb.backend.dm.pageCache.PageCacheOptions;
+import top.wangqiaosong.minidb.backend.parser.statement.Begin;
+import top.wangqiaosong.minidb.backend.parser.statement.Create;
+import top.wangqiaosong.minidb.backend.parser.statement.Insert;
+import top.wangqiaosong.minidb.backend.tbm.Booter;
+import top.wangqiaosong.minidb.backend.tbm.TableManager;
+import top.wangqiaosong.minidb.backend.tm.TransactionManager;
+import top.wangqiaosong.minidb.backend.utils.Panic;
+import top.wangqiaosong.minidb.backend.utils.Parser;
+import top.wangqiaosong.minidb.backend.vm.VersionManager;
+import top.wangqiaosong.minidb.backend.vm.VersionManagerImpl;
+import top.wangqiaosong.minidb.common.Error;
+
+/**
+ * 离线把旧版本的数据库(.db、.log、.xid、.bt)转换成当前格式，旧文件不改动
+ * 页格式、uid的含义和日志格式都变了，旧的页和日志没法原样搬过来：
+ * 先按旧版本的恢复流程得到当前已提交的状态，再在新路径下用同样的表结构建表，逐行插入
+ * uid和索引都重新生成；已删除的行、未提交和已撤销的修改不会带过来，整个转换是一个事务
+ */
+public class Converter {
+
+    /**
+     * 转换from处的旧数据库，新库建在to处，返回转换的行数
+     */
+    public static long convert(String from, String to, long mem, PageCacheOptions opt) throws Exception {
+        if (!new File(from + LegacyReader.LOG_SUFFIX).exists() || !Logger.isLegacy(from)) {
+            Panic.panic(Error.NotLegacyFormatException);
+        }
+        TransactionManager oldTm = TransactionManager.open(from);
+        LegacyReader reader = LegacyReader.open(from, oldTm);
+        long rows = 0;
+        try {
+            List<LegacyTable> tables = new ArrayList<>();
+            for (LegacyTable tb : reader.loadTables(Parser.parseLong(Booter.open(from).load()))) {
+                // 建表的事务没提交，旧版本也读不到这张表
+                if (tb.committed) {
+                    tables.add(tb);
+                }
+            }
+
+            TransactionManager tm = TransactionManager.create(to);
+            DataManager dm = DataManager.create(to, mem, tm, opt);
+            VersionManager vm = new VersionManagerImpl(tm, dm);
+            TableManager tbm = TableManager.create(to, vm, dm);
+            try {
+                long xid = tbm.begin(new Begin()).xid;
+                // 新表插在表链表的开头，倒着建，表的顺序和原来一样
+                for (int i = tables.size() - 1; i >= 0; i--) {
+                    tbm.create(xid, toCreate(tables.get(i)));
+                }
+                for (LegacyTable tb : tables) {
+                    for (long uid : reader.rowUids(tb)) {
+                        String[] values = reader.readRow(tb, uid);
+                        if (values == null) {
+                            continue;
+                        }
+                        Insert insert = new Insert();
+                        insert.tableName = tb.name;
+                        insert.values = values;
+                        tbm.insert(xid, insert);
+                        rows++;
+                    }
+                }
+                tbm.commit(xid);
+            } finally {
+                tbm.close();
+                dm.close();
+                tm.close();
+            }
+        } finally {
+            reader.close();
+            oldTm.close();
+        }
+        return rows;
+    }
+
+    private static Create toCreate(LegacyTable tb) {
+        Create create = new Create();
+        create.tableName = tb.name;
+        create.fieldName = tb.fieldNames.toArray(new String[0]);
+        create.fieldType = tb.fieldTypes.toArray(new String[0]);
+        List<String> index = new ArrayList<>();
+        for (int i = 0; i < tb.indexes.size(); i++) {
+            if (tb.indexes.get(i) != 0) {
+                index.add(tb.fieldNames.get(i));
+            }
+        }
+        create.index = index.toArray(new String[0]);
+        return create;
+    }
+}
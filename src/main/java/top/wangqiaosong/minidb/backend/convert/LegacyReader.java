@@ -0,0 +1,395 @@
+package top.wangqiaosong.minidb.backend.convert;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import top.wangqiaosong.minidb.backend.tm.TransactionManager;
+import top.wangqiaosong.minidb.backend.utils.Panic;
+import top.wangqiaosong.minidb.backend.utils.ParseStringRes;
+import top.wangqiaosong.minidb.backend.utils.Parser;
+import top.wangqiaosong.minidb.common.Error;
+
+/**
+ * 只读地打开旧版本的数据库文件，不改动其中任何一个
+ * 旧版本的页固定8KB，普通页为[FSO 2][Data]，uid的低16位是记录在页内的偏移
+ * 日志是单个.log文件：[XChecksum 4][Log1][Log2]...，每条为[Size 4][Checksum 4][Data]
+ * 插入日志[0][XID][Pgno 4][Offset 2][Raw]，修改日志[1][XID][UID][OldRaw][NewRaw]
+ * 上次没有正常关闭时，按旧版本的恢复流程把日志重放到内存中的页上
+ */
+class LegacyReader {
+
+    static final int PAGE_SIZE = 1 << 13;
+    static final String DB_SUFFIX = ".db";
+    static final String LOG_SUFFIX = ".log";
+
+    // 第一页100~107字节在打开时写入随机字节，正常关闭时拷贝到108~115字节
+    private static final int OF_VC = 100;
+    private static final int LEN_VC = 8;
+
+    private static final byte LOG_TYPE_INSERT = 0;
+    private static final int SEED = 13331;
+    private static final int LEN_LOG_HEADER = 8;
+    private static final int OF_XID = 1;
+    private static final int OF_INSERT_PGNO = OF_XID + 8;
+    private static final int OF_INSERT_OFFSET = OF_INSERT_PGNO + 4;
+    private static final int OF_INSERT_RAW = OF_INSERT_OFFSET + 2;
+    private static final int OF_UPDATE_UID = OF_XID + 8;
+    private static final int OF_UPDATE_RAW = OF_UPDATE_UID + 8;
+
+    // DataItem: [ValidFlag 1][DataSize 2][Data]
+    private static final int OF_ITEM_SIZE = 1;
+    private static final int OF_ITEM_DATA = 3;
+
+    // Node: [LeafFlag 1][KeyNumber 2][SiblingUid 8][Son0 8][Key0 8]...
+    private static final int OF_NODE_KEYS = 1;
+    private static final int OF_NODE_SIBLING = 3;
+    private static final int OF_NODE_SONS = 11;
+
+    /**
+     * 只读的页留在一个小的LRU里，重放过日志的页一直留在内存
+     */
+    private static final int CACHED_PAGES = 1024;
+
+    /**
+     * 旧版本的一张表：表名、下一张表，以及每个字段的名字、类型和索引
+     */
+    static class LegacyTable {
+        long uid;
+        long nextUid;
+        boolean committed;
+        String name;
+        List<String> fieldNames = new ArrayList<>();
+        List<String> fieldTypes = new ArrayList<>();
+        List<Long> indexes = new ArrayList<>();
+    }
+
+    private RandomAccessFile db;
+    private TransactionManager tm;
+    private Map<Integer, byte[]> recovered = new HashMap<>();
+    private Map<Integer, byte[]> cached = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+            return size() > CACHED_PAGES;
+        }
+    };
+
+    private LegacyReader(RandomAccessFile db, TransactionManager tm) {
+        this.db = db;
+        this.tm = tm;
+    }
+
+    /**
+     * tm只用来判断事务状态，旧版本的.xid格式没有变
+     */
+    static LegacyReader open(String path, TransactionManager tm) {
+        File dbFile = new File(path + DB_SUFFIX);
+        File logFile = new File(path + LOG_SUFFIX);
+        if (!dbFile.exists() || !logFile.exists()) {
+            Panic.panic(Error.FileNotExistsException);
+        }
+        LegacyReader reader = null;
+        try {
+            reader = new LegacyReader(new RandomAccessFile(dbFile, "r"), tm);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        if (!reader.closedCleanly()) {
+            reader.recover(logFile);
+        }
+        return reader;
+    }
+
+    private boolean closedCleanly() {
+        byte[] pageOne = page(1);
+        return Arrays.equals(Arrays.copyOfRange(pageOne, OF_VC, OF_VC + LEN_VC),
+                Arrays.copyOfRange(pageOne, OF_VC + LEN_VC, OF_VC + 2 * LEN_VC));
+    }
+
+    /**
+     * 和旧版本的恢复一样：不活跃事务的日志按顺序redo，活跃事务的日志倒序undo，插入的记录标记为无效
+     * 全部日志的XChecksum对不上时旧版本拒绝打开，这里同样拒绝转换
+     */
+    private void recover(File logFile) {
+        Map<Long, List<byte[]>> active = new HashMap<>();
+        try (RandomAccessFile log = new RandomAccessFile(logFile, "r")) {
+            long length = log.length();
+            if (length < 4) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            int xChecksum = log.readInt();
+            int xCheck = 0;
+            long position = 4;
+            while (position + LEN_LOG_HEADER <= length) {
+                int size = log.readInt();
+                int checksum = log.readInt();
+                if (size < 0 || position + LEN_LOG_HEADER + size > length) {
+                    break;
+                }
+                byte[] data = new byte[size];
+                log.readFully(data);
+                if (calChecksum(0, data) != checksum) {
+                    break;
+                }
+                // XChecksum按整条日志[Size][Checksum][Data]滚动计算
+                xCheck = calChecksum(calChecksum(calChecksum(xCheck, Parser.int2Byte(size)), Parser.int2Byte(checksum)), data);
+                position += LEN_LOG_HEADER + size;
+
+                long xid = Parser.parseLong(Arrays.copyOfRange(data, OF_XID, OF_XID + 8));
+                if (tm.isActive(xid)) {
+                    active.computeIfAbsent(xid, k -> new ArrayList<>()).add(data);
+                } else {
+                    redo(data);
+                }
+            }
+            if (xCheck != xChecksum) {
+                Panic.panic(Error.BadLogFileException);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        for (List<byte[]> logs : active.values()) {
+            for (int i = logs.size() - 1; i >= 0; i--) {
+                undo(logs.get(i));
+            }
+        }
+    }
+
+    private static int calChecksum(int xCheck, byte[] data) {
+        for (byte b : data) {
+            xCheck = xCheck * SEED + b;
+        }
+        return xCheck;
+    }
+
+    private void redo(byte[] log) {
+        if (log[0] == LOG_TYPE_INSERT) {
+            int pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
+            short offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
+            write(pgno, offset, Arrays.copyOfRange(log, OF_INSERT_RAW, log.length));
+            return;
+        }
+        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
+        int length = (log.length - OF_UPDATE_RAW) / 2;
+        write(pgnoOf(uid), offsetOf(uid), Arrays.copyOfRange(log, OF_UPDATE_RAW + length, OF_UPDATE_RAW + length * 2));
+    }
+
+    private void undo(byte[] log) {
+        if (log[0] == LOG_TYPE_INSERT) {
+            int pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
+            short offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
+            byte[] raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
+            raw[0] = (byte) 1;
+            write(pgno, offset, raw);
+            return;
+        }
+        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
+        int length = (log.length - OF_UPDATE_RAW) / 2;
+        write(pgnoOf(uid), offsetOf(uid), Arrays.copyOfRange(log, OF_UPDATE_RAW, OF_UPDATE_RAW + length));
+    }
+
+    private void write(int pgno, int offset, byte[] raw) {
+        byte[] pg = recovered.get(pgno);
+        if (pg == null) {
+            pg = page(pgno).clone();
+            recovered.put(pgno, pg);
+        }
+        System.arraycopy(raw, 0, pg, offset, raw.length);
+    }
+
+    /**
+     * 文件末尾之后的页读成全0，日志中的插入可能落在还没写回的页上
+     */
+    private byte[] page(int pgno) {
+        byte[] pg = recovered.get(pgno);
+        if (pg != null) {
+            return pg;
+        }
+        pg = cached.get(pgno);
+        if (pg != null) {
+            return pg;
+        }
+        pg = new byte[PAGE_SIZE];
+        try {
+            long offset = (long) (pgno - 1) * PAGE_SIZE;
+            if (offset < db.length()) {
+                db.seek(offset);
+                db.read(pg, 0, (int) Math.min(PAGE_SIZE, db.length() - offset));
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        cached.put(pgno, pg);
+        return pg;
+    }
+
+    private static int pgnoOf(long uid) {
+        return (int) (uid >>> 32);
+    }
+
+    private static int offsetOf(long uid) {
+        return (int) (uid & ((1L << 16) - 1));
+    }
+
+    /**
+     * 读出uid处DataItem的数据，已被标记为无效时返回null
+     */
+    byte[] readItem(long uid) {
+        if (pgnoOf(uid) <= 0 || offsetOf(uid) + OF_ITEM_DATA > PAGE_SIZE) {
+            Panic.panic(Error.InvalidUidException);
+        }
+        byte[] pg = page(pgnoOf(uid));
+        int offset = offsetOf(uid);
+        if (pg[offset] != 0) {
+            return null;
+        }
+        int size = Parser.parseShort(Arrays.copyOfRange(pg, offset + OF_ITEM_SIZE, offset + OF_ITEM_DATA)) & 0xFFFF;
+        if (offset + OF_ITEM_DATA + size > PAGE_SIZE) {
+            Panic.panic(Error.BadPageException);
+        }
+        return Arrays.copyOfRange(pg, offset + OF_ITEM_DATA, offset + OF_ITEM_DATA + size);
+    }
+
+    /**
+     * Entry: [XMIN 8][XMAX 8][Data]
+     * 转换时只看创建它的事务是否已提交、删除它的事务是否已提交，得到当前已提交的状态
+     */
+    boolean isLive(byte[] entry) {
+        long xmin = Parser.parseLong(Arrays.copyOfRange(entry, 0, 8));
+        long xmax = Parser.parseLong(Arrays.copyOfRange(entry, 8, 16));
+        return tm.isCommitted(xmin) && (xmax == 0 || !tm.isCommitted(xmax));
+    }
+
+    private byte[] readEntry(long uid) {
+        byte[] entry = readItem(uid);
+        if (entry == null || entry.length < 16) {
+            Panic.panic(Error.NullEntryException);
+        }
+        return entry;
+    }
+
+    /**
+     * 从.bt中记下的第一张表开始，沿表链表读出所有表的结构
+     * 表: [TableName][NextTable][Field1Uid][Field2Uid]...  字段: [FieldName][TypeName][IndexUid]
+     */
+    List<LegacyTable> loadTables(long firstTableUid) {
+        List<LegacyTable> tables = new ArrayList<>();
+        long uid = firstTableUid;
+        while (uid != 0) {
+            byte[] entry = readEntry(uid);
+            byte[] raw = Arrays.copyOfRange(entry, 16, entry.length);
+            LegacyTable tb = new LegacyTable();
+            tb.uid = uid;
+            tb.committed = isLive(entry);
+            ParseStringRes res = Parser.parseString(raw);
+            tb.name = res.str;
+            int position = res.next;
+            tb.nextUid = Parser.parseLong(Arrays.copyOfRange(raw, position, position + 8));
+            position += 8;
+            while (position < raw.length) {
+                long fieldUid = Parser.parseLong(Arrays.copyOfRange(raw, position, position + 8));
+                position += 8;
+                byte[] fieldEntry = readEntry(fieldUid);
+                byte[] fieldRaw = Arrays.copyOfRange(fieldEntry, 16, fieldEntry.length);
+                res = Parser.parseString(fieldRaw);
+                tb.fieldNames.add(res.str);
+                int fp = res.next;
+                res = Parser.parseString(Arrays.copyOfRange(fieldRaw, fp, fieldRaw.length));
+                tb.fieldTypes.add(res.str);
+                fp += res.next;
+                tb.indexes.add(Parser.parseLong(Arrays.copyOfRange(fieldRaw, fp, fp + 8)));
+            }
+            tables.add(tb);
+            uid = tb.nextUid;
+        }
+        return tables;
+    }
+
+    /**
+     * 表的第一个有索引的字段的B+树叶子里有每一行(包括各个版本)恰好一次
+     * 从根沿最左的子节点走到最左的叶子，再顺着兄弟指针读完所有叶子
+     * B+树的修改都用SUPER_XID，不带版本，boot的数据就是根节点的uid
+     */
+    List<Long> rowUids(LegacyTable tb) {
+        List<Long> uids = new ArrayList<>();
+        long boot = 0;
+        for (long index : tb.indexes) {
+            if (index != 0) {
+                boot = index;
+                break;
+            }
+        }
+        if (boot == 0) {
+            return uids;
+        }
+        long nodeUid = Parser.parseLong(Arrays.copyOfRange(readItem(boot), 0, 8));
+        byte[] node = readItem(nodeUid);
+        while (node[0] != (byte) 1) {
+            node = readItem(sonOf(node, 0));
+        }
+        while (true) {
+            int keys = Parser.parseShort(Arrays.copyOfRange(node, OF_NODE_KEYS, OF_NODE_SIBLING));
+            for (int i = 0; i < keys; i++) {
+                uids.add(sonOf(node, i));
+            }
+            long sibling = Parser.parseLong(Arrays.copyOfRange(node, OF_NODE_SIBLING, OF_NODE_SONS));
+            if (sibling == 0) {
+                break;
+            }
+            node = readItem(sibling);
+        }
+        return uids;
+    }
+
+    private static long sonOf(byte[] node, int kth) {
+        int offset = OF_NODE_SONS + kth * 16;
+        return Parser.parseLong(Arrays.copyOfRange(node, offset, offset + 8));
+    }
+
+    /**
+     * 读出uid处的行，已失效或对当前已提交的状态不可见时返回null
+     * 行: 按字段顺序的值，int32 4字节，int64 8字节，string [Length 4][Bytes]
+     */
+    String[] readRow(LegacyTable tb, long uid) {
+        byte[] entry = readItem(uid);
+        if (entry == null || !isLive(entry)) {
+            return null;
+        }
+        String[] values = new String[tb.fieldTypes.size()];
+        int position = 16;
+        for (int i = 0; i < values.length; i++) {
+            switch (tb.fieldTypes.get(i)) {
+                case "int32":
+                    values[i] = String.valueOf(Parser.parseInt(Arrays.copyOfRange(entry, position, position + 4)));
+                    position += 4;
+                    break;
+                case "int64":
+                    values[i] = String.valueOf(Parser.parseLong(Arrays.copyOfRange(entry, position, position + 8)));
+                    position += 8;
+                    break;
+                case "string":
+                    ParseStringRes res = Parser.parseString(Arrays.copyOfRange(entry, position, entry.length));
+                    values[i] = res.str;
+                    position += res.next;
+                    break;
+                default:
+                    Panic.panic(Error.InvalidFieldException);
+            }
+        }
+        return values;
+    }
+
+    void close() {
+        try {
+            db.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+}
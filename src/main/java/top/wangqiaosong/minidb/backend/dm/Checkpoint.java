@@ -0,0 +1,108 @@
+package top.wangqiaosong.minidb.backend.dm;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Bytes;
+
+import top.wangqiaosong.minidb.backend.utils.Panic;
+import top.wangqiaosong.minidb.backend.utils.Parser;
+
+/**
+ * 模糊检查点，存在.ckpt文件中
+ * 文件结构：[RedoLsn 8][PageNumber 4][XidCount 4][Xid 8][FirstLsn 8]...[Checksum 4]
+ * RedoLsn：做检查点时还没写回的脏页里最早的RecLSN，之前的日志对应的修改都已在磁盘上
+ * PageNumber：做检查点时的页数，之前建的页可能没有日志落在RedoLsn之后，截断页文件时不能小于它
+ * Xid/FirstLsn：做检查点时活跃的事务和它第一条日志的位置，撤销要从这里读起
+ * 恢复从RedoLsn和所有FirstLsn中最小的位置开始读日志，更早的日志段可以删掉
+ * 和FreeSpaceMap一样先写临时文件再重命名
+ */
+class Checkpoint {
+    static final String CKPT_SUFFIX = ".ckpt";
+    static final String CKPT_TMP_SUFFIX = ".ckpt_tmp";
+
+    long redoLsn;
+    int pageNumber;
+    Map<Long, Long> active;
+
+    Checkpoint(long redoLsn, int pageNumber, Map<Long, Long> active) {
+        this.redoLsn = redoLsn;
+        this.pageNumber = pageNumber;
+        this.active = active;
+    }
+
+    /**
+     * 恢复从这里开始读日志
+     */
+    long startLsn() {
+        long start = redoLsn;
+        for (long lsn : active.values()) {
+            start = Math.min(start, lsn);
+        }
+        return start;
+    }
+
+    /**
+     * 读出上一个检查点，文件不存在或损坏时返回null，从头恢复
+     */
+    static Checkpoint load(String path) {
+        File f = new File(path + CKPT_SUFFIX);
+        if (!f.exists()) {
+            return null;
+        }
+        byte[] raw;
+        try {
+            raw = Files.readAllBytes(f.toPath());
+        } catch (IOException e) {
+            return null;
+        }
+        if (raw.length < 8 + 4 + 4 + 4) {
+            return null;
+        }
+        int count = Parser.parseInt(Arrays.copyOfRange(raw, 12, 16));
+        if (count < 0 || raw.length != 16 + count * 16 + 4
+                || checksum(Arrays.copyOf(raw, raw.length - 4)) != Parser.parseInt(Arrays.copyOfRange(raw, raw.length - 4, raw.length))) {
+            return null;
+        }
+        Map<Long, Long> active = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            int pos = 16 + i * 16;
+            active.put(Parser.parseLong(Arrays.copyOfRange(raw, pos, pos + 8)),
+                    Parser.parseLong(Arrays.copyOfRange(raw, pos + 8, pos + 16)));
+        }
+        return new Checkpoint(Parser.parseLong(Arrays.copyOf(raw, 8)),
+                Parser.parseInt(Arrays.copyOfRange(raw, 8, 12)), active);
+    }
+
+    void save(String path) {
+        byte[] raw = Bytes.concat(Parser.long2Byte(redoLsn), Parser.int2Byte(pageNumber), Parser.int2Byte(active.size()));
+        for (Map.Entry<Long, Long> e : active.entrySet()) {
+            raw = Bytes.concat(raw, Parser.long2Byte(e.getKey()), Parser.long2Byte(e.getValue()));
+        }
+        raw = Bytes.concat(raw, Parser.int2Byte(checksum(raw)));
+
+        File tmp = new File(path + CKPT_TMP_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(raw);
+            out.getFD().sync();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        try {
+            Files.move(tmp.toPath(), new File(path + CKPT_SUFFIX).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private static int checksum(byte[] raw) {
+        return Hashing.crc32c().hashBytes(raw).asInt();
+    }
+}
@@ -1,26 +1,100 @@
 package top.wangqiaosong.minidb.backend.dm;
 
+import java.util.List;
+
 import top.wangqiaosong.minidb.backend.dm.dataItem.DataItem;
 import top.wangqiaosong.minidb.backend.dm.logger.Logger;
 import top.wangqiaosong.minidb.backend.dm.page.PageOne;
 import top.wangqiaosong.minidb.backend.dm.pageCache.PageCache;
+import top.wangqiaosong.minidb.backend.dm.pageCache.PageCacheOptions;
+import top.wangqiaosong.minidb.backend.dm.pageIndex.FreeSpaceMap;
 import top.wangqiaosong.minidb.backend.tm.TransactionManager;
 
 public interface DataManager {
     DataItem read(long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    /**
+     * 释放uid占用的空间，之后uid可能被新记录重用，不能撤销
+     * 调用者保证它对所有事务都已不可见，也没有人再持有它
+     */
+    void free(long uid) throws Exception;
+
+    /**
+     * 放不进一页的大值存到溢出页链中，返回链头的uid，行里只需要存这个uid
+     * 链中的块和普通记录一样随xid写日志，事务回滚时一起失效
+     * 新链的引用数为1
+     */
+    long insertOverflow(long xid, byte[] data) throws Exception;
+
+    /**
+     * 沿溢出页链读出完整的值
+     */
+    byte[] readOverflow(long uid) throws Exception;
+
+    /**
+     * 又有一个版本引用了这条链，引用数加一，随xid写日志
+     */
+    void refOverflow(long xid, long uid) throws Exception;
+
+    /**
+     * 引用这条链的一个版本被清理，引用数减一，减到0时释放整条链，约定同free
+     */
+    void freeOverflow(long uid) throws Exception;
+    /**
+     * 等到目前为止写过的日志都落盘，事务提交前调用
+     */
+    void flushLog();
+
+    /**
+     * 做一次检查点，之后崩溃恢复只需从检查点记下的位置读日志，更早的日志段被删掉
+     * 后台线程定期调用
+     */
+    void checkpoint();
+
     void close();
 
+    /**
+     * 数据库创建时选定的页大小
+     */
+    int getPageSize();
+
+    /**
+     * 全表扫描前后调用，扫描读入的页不会挤掉缓存中的热点页
+     */
+    void beginBulkRead();
+    void endBulkRead();
+
+    /**
+     * 提示接下来要按顺序读这些uid，异步预读它们所在的页
+     */
+    void prefetch(List<Long> uids);
+
+    /**
+     * 把这些uid所在的页读进页缓存，未命中的页同时读，返回时都已读完(不保持引用)
+     * 读入的页按正常访问计，批量读时用prefetch
+     */
+    void loadPages(List<Long> uids) throws Exception;
+
     /**
      * 创建数据管理器，在此项目中一切接口的实现类才是主体
      * 从0创建，初始化页面即可
      */
     public static DataManager create(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.create(path, mem);
+        return create(path, mem, tm, new PageCacheOptions());
+    }
+
+    public static DataManager create(String path, long mem, TransactionManager tm, PageCacheOptions opt) {
+        PageCache pc = PageCache.create(path, mem, opt);
         Logger lg = Logger.create(path);
+        pc.setLogger(lg);
 
         DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        dm.path = path;
+        dm.fsm = FreeSpaceMap.open(path);
         dm.initPageOne();
+        // 覆盖掉同名旧库可能留下的检查点
+        dm.checkpoint();
+        dm.startCheckpointer();
         return dm;
     }
 
@@ -28,17 +102,26 @@ public interface DataManager {
      * 已有文件上创建，先启动检查，判断是否执行恢复流程，并重新在第一页生成字节
      */
     public static DataManager open(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.open(path, mem);
+        return open(path, mem, tm, new PageCacheOptions());
+    }
+
+    public static DataManager open(String path, long mem, TransactionManager tm, PageCacheOptions opt) {
+        PageCache pc = PageCache.open(path, mem, opt);
         Logger lg = Logger.open(path);
+        pc.setLogger(lg);
         DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
-        if(!dm.loadCheckPageOne()) {
-            Recover.recover(tm, lg, pc);
+        dm.path = path;
+        dm.fsm = FreeSpaceMap.open(path);
+        boolean clean = dm.loadCheckPageOne();
+        if(!clean) {
+            Recover.recover(tm, lg, pc, Checkpoint.load(path));
         }
         //构建索引
-        dm.fillPageIndex();
+        dm.loadPageIndex(clean);
         PageOne.setVcOpen(dm.pageOne);
         //写入磁盘
         dm.pc.flushPage(dm.pageOne);
+        dm.startCheckpointer();
 
         return dm;
     }
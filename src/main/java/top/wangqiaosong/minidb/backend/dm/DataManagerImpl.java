@@ -1,5 +1,21 @@
 package top.wangqiaosong.minidb.backend.dm;
 
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.primitives.Bytes;
+
 import top.wangqiaosong.minidb.backend.common.AbstractCache;
 import top.wangqiaosong.minidb.backend.dm.dataItem.DataItem;
 import top.wangqiaosong.minidb.backend.dm.dataItem.DataItemImpl;
@@ -8,10 +24,15 @@ import top.wangqiaosong.minidb.backend.dm.page.Page;
 import top.wangqiaosong.minidb.backend.dm.page.PageOne;
 import top.wangqiaosong.minidb.backend.dm.page.PageX;
 import top.wangqiaosong.minidb.backend.dm.pageCache.PageCache;
+import top.wangqiaosong.minidb.backend.dm.pageCache.PageCacheImpl;
+import top.wangqiaosong.minidb.backend.dm.pageIndex.FreeSpaceMap;
 import top.wangqiaosong.minidb.backend.dm.pageIndex.PageIndex;
 import top.wangqiaosong.minidb.backend.dm.pageIndex.PageInfo;
 import top.wangqiaosong.minidb.backend.tm.TransactionManager;
+import top.wangqiaosong.minidb.backend.tm.TransactionManagerImpl;
+import top.wangqiaosong.minidb.backend.common.SubArray;
 import top.wangqiaosong.minidb.backend.utils.Panic;
+import top.wangqiaosong.minidb.backend.utils.Parser;
 import top.wangqiaosong.minidb.backend.utils.Types;
 import top.wangqiaosong.minidb.common.Error;
 
@@ -19,19 +40,124 @@ import top.wangqiaosong.minidb.common.Error;
  * 先实现DataItem的缓存
  */
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager {
+    // 溢出块的额外开销：DataItem头3字节，下一块的uid 8字节
+    private static final int OVERFLOW_OVERHEAD = 3 + 8;
+    // 链头块内容开头的引用数
+    private static final int OVERFLOW_REFS = 4;
+    // loadPages每次同时引用的页数
+    private static final int LOAD_BATCH = PageCacheImpl.READ_THREADS;
+    // insertInto的返回值：页上有记录被引用着，整理不了
+    private static final long PAGE_PINNED = -1;
+    // 整理不了时先在同一页上重试几次，写回线程和检查点引用页只有写盘的一小会儿
+    private static final int PINNED_RETRIES = 3;
+    // 两次检查点之间的最长间隔，期间没有新日志就不做
+    private static final long CHECKPOINT_INTERVAL = 30 * 1000;
 
+    String path;
     TransactionManager tm;
     PageCache pc;
     Logger logger;
     PageIndex pIndex;
+    FreeSpaceMap fsm;
+    private Lock newPageLock;
     Page pageOne;
+    // 事务第一条日志的开头，做检查点时记下其中仍活跃的
+    private Map<Long, Long> firstLsn;
+    private Lock checkpointLock;
+    private long checkpointLsn;  // 上次检查点时的日志末尾
+    private Thread checkpointer;
+    private CountDownLatch stopCheckpoint;
 
     public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
         super(0);
         this.pc = pc;
         this.logger = logger;
         this.tm = tm;
-        this.pIndex = new PageIndex();
+        this.pIndex = new PageIndex(pc.getPageSize());
+        this.newPageLock = new ReentrantLock();
+        this.firstLsn = new ConcurrentHashMap<>();
+        this.checkpointLock = new ReentrantLock();
+    }
+
+    /**
+     * 打开或创建完成后启动，定期做检查点
+     */
+    void startCheckpointer() {
+        checkpointLsn = logger.tailLsn();
+        stopCheckpoint = new CountDownLatch(1);
+        checkpointer = new Thread(this::checkpointLoop, "checkpoint");
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+    }
+
+    /**
+     * 不用interrupt：检查点写页中途被中断会关掉页文件的FileChannel
+     */
+    void stopCheckpointer() {
+        stopCheckpoint.countDown();
+        try {
+            checkpointer.join();
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private void checkpointLoop() {
+        while(true) {
+            try {
+                if(stopCheckpoint.await(CHECKPOINT_INTERVAL, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            if(logger.tailLsn() != checkpointLsn) {
+                checkpoint();
+            }
+        }
+    }
+
+    /**
+     * 模糊检查点，不阻塞插入和修改：
+     * 先记下日志末尾，再写回能写的脏页，正在被修改的页留下它的RecLSN，
+     * 恢复从这些位置和活跃事务的第一条日志中最早的开始，之前的日志段删掉
+     */
+    @Override
+    public void checkpoint() {
+        checkpointLock.lock();
+        try {
+            long start = logger.tailLsn();
+            int pageNumber = pc.getPageNumber();
+            long redoLsn = Math.min(start, pc.flushForCheckpoint());
+            // 新页写页时镜像还没刷盘，检查点记下的页都要有镜像落盘
+            logger.flush(logger.tailLsn());
+
+            Map<Long, Long> active = new HashMap<>();
+            Iterator<Map.Entry<Long, Long>> it = firstLsn.entrySet().iterator();
+            while(it.hasNext()) {
+                Map.Entry<Long, Long> e = it.next();
+                if(tm.isActive(e.getKey())) {
+                    active.put(e.getKey(), e.getValue());
+                } else {
+                    it.remove();
+                }
+            }
+            Checkpoint ckpt = new Checkpoint(redoLsn, pageNumber, active);
+            ckpt.save(path);
+            logger.removeBefore(ckpt.startLsn());
+            checkpointLsn = start;
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    /**
+     * 在xid写第一条日志之前记下日志末尾，它的日志都在这之后
+     */
+    private void noteFirstLsn(long xid) {
+        if(xid != TransactionManagerImpl.SUPER_XID && !firstLsn.containsKey(xid)) {
+            firstLsn.putIfAbsent(xid, logger.tailLsn());
+        }
     }
 
     @Override
@@ -47,60 +173,302 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     @Override
     public long insert(long xid, byte[] data) throws Exception {
         byte[] raw = DataItem.wrapDataItemRaw(data);
-        if(raw.length > PageX.MAX_FREE_SPACE) {
+        int maxFreeSpace = PageX.maxFreeSpace(pc.getPageSize());
+        if(raw.length > maxFreeSpace) {
             throw Error.DataTooLargeException;
         }
 
-        PageInfo pi = null;
-        for(int i = 0; i < 5; i ++) {
-            pi = pIndex.select(raw.length);
-            if (pi != null) {
-                break;
-            } else {
-                int newPgno = pc.newPage(PageX.initRaw());
-                pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
+        int busy = 0;
+        while(true) {
+            PageInfo pi = pIndex.select(raw.length);
+            if (pi == null) {
+                newPage(raw.length);
+                continue;
+            }
+            long uid = insertInto(pi, xid, raw);
+            for(int i = 0; uid == PAGE_PINNED && i < PINNED_RETRIES; i ++) {
+                Thread.yield();
+                uid = insertInto(pi, xid, raw);
+            }
+            if(uid > 0) {
+                return uid;
+            }
+            // 页被别的线程先写满时别人已经插入成功，直接重试；页整理不了才算忙
+            if(uid == PAGE_PINNED && ++busy >= 5) {
+                throw Error.DatabaseBusyException;
             }
         }
-        if(pi == null) {
-            throw Error.DatabaseBusyException;
+    }
+
+    /**
+     * 多个线程同时找不到合适的页时，只有第一个建新页，其余的直接用它
+     */
+    private void newPage(int length) {
+        newPageLock.lock();
+        try {
+            if(pIndex.select(length) == null) {
+                int pgno = pc.newPage(PageX.initRaw(pc.getPageSize()));
+                pIndex.add(pgno, PageX.maxFreeSpace(pc.getPageSize()));
+            }
+        } finally {
+            newPageLock.unlock();
         }
+    }
 
+    /**
+     * 插入选中的页，返回uid
+     * 页仍在索引中，别的线程可能同时选中它，在页锁上排队，拿到锁后重新检查空间
+     * 空间已被别人用掉返回0；空闲空间零散时先整理页，页上还有记录被别人引用着就不能整理，返回PAGE_PINNED
+     */
+    private long insertInto(PageInfo pi, long xid, byte[] raw) throws Exception {
         Page pg = null;
         int freeSpace = 0;
         try {
             pg = pc.getPage(pi.pgno);
-            byte[] log = Recover.insertLog(xid, pg, raw);
-            logger.log(log);
+            Page page = pg;
+            pg.lock();
+            try {
+                if(!PageX.canInsert(pg, raw.length)) {
+                    freeSpace = PageX.getFreeSpace(pg);
+                    return 0;
+                }
+                if(PageX.needCompact(pg, raw.length) && !pc.runExclusive(pg, () -> PageX.compact(page))) {
+                    // 暂时只按连续空间放回索引，同样大小的插入不会马上又选中它
+                    freeSpace = PageX.getContiguousFreeSpace(pg);
+                    return PAGE_PINNED;
+                }
+                short slot = PageX.nextSlot(pg);
+                byte[] log = Recover.insertLog(xid, pi.pgno, slot, raw);
+                noteFirstLsn(xid);
+                long lsn = logger.log(log);
 
-            short offset = PageX.insert(pg, raw);
+                PageX.insert(pg, raw);
+                pg.setLsn(lsn);
+                freeSpace = PageX.getFreeSpace(pg);
+                return Types.addressToUid(pi.pgno, slot);
+            } finally {
+                pg.unlock();
+            }
+        } finally {
+            if(pg != null) {
+                pg.release();
+            }
+            pIndex.update(pi.pgno, freeSpace);
+        }
+    }
 
+    /**
+     * 释放uid占用的槽，空间留给之后的插入
+     */
+    @Override
+    public void free(long uid) throws Exception {
+        short slot = (short)(uid & ((1L << 16) - 1));
+        int pgno = (int)(uid >>> 32);
+        Page pg = pc.getPage(pgno);
+        pg.lock();
+        try {
+            long lsn = logger.log(Recover.freeLog(pgno, slot));
+            PageX.free(pg, slot);
+            pg.setLsn(lsn);
+            pIndex.update(pgno, PageX.getFreeSpace(pg));
+        } finally {
+            pg.unlock();
             pg.release();
-            return Types.addressToUid(pi.pgno, offset);
+        }
+    }
 
-        } finally {
-            // 将取出的pg重新插入pIndex
-            if(pg != null) {
-                pIndex.add(pi.pgno, PageX.getFreeSpace(pg));
-            } else {
-                pIndex.add(pi.pgno, freeSpace);
+    /**
+     * 溢出页链中每块的数据为[NextUid 8][内容]，最后一块NextUid为0
+     * 链头块的内容以[Refs 4]开头，是引用这条链的版本数，update时新旧版本可以共用一条链
+     * 每块按一整页的可用空间切，基本独占一页，从最后一块往前插，插入时已知道下一块的uid
+     */
+    @Override
+    public long insertOverflow(long xid, byte[] data) throws Exception {
+        data = Bytes.concat(Parser.int2Byte(1), data);
+        int chunk = PageX.maxFreeSpace(pc.getPageSize()) - OVERFLOW_OVERHEAD;
+        int n = Math.max(1, (data.length + chunk - 1) / chunk);
+        long next = 0;
+        for(int i = n - 1; i >= 0; i --) {
+            int from = i * chunk;
+            int to = Math.min(data.length, from + chunk);
+            byte[] raw = new byte[8 + to - from];
+            System.arraycopy(Parser.long2Byte(next), 0, raw, 0, 8);
+            System.arraycopy(data, from, raw, 8, to - from);
+            next = insert(xid, raw);
+        }
+        return next;
+    }
+
+    @Override
+    public byte[] readOverflow(long uid) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while(uid != 0) {
+            DataItem di = read(uid);
+            if(di == null) {
+                throw Error.InvalidUidException;
             }
+            try {
+                SubArray sa = di.data();
+                out.write(sa.raw, sa.start + 8, sa.end - sa.start - 8);
+                uid = Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start + 8));
+            } finally {
+                di.release();
+            }
+        }
+        byte[] data = out.toByteArray();
+        return Arrays.copyOfRange(data, OVERFLOW_REFS, data.length);
+    }
+
+    @Override
+    public void refOverflow(long xid, long uid) throws Exception {
+        addOverflowRefs(xid, uid, 1);
+    }
+
+    /**
+     * 减引用数的日志属于SUPER_XID，不会被撤销；加引用的事务崩溃时被撤销，引用数只会偏大，链不会被提前释放
+     */
+    @Override
+    public void freeOverflow(long uid) throws Exception {
+        if(addOverflowRefs(TransactionManagerImpl.SUPER_XID, uid, -1) > 0) {
+            return;
+        }
+        while(uid != 0) {
+            DataItem di = read(uid);
+            if(di == null) {
+                throw Error.InvalidUidException;
+            }
+            long next;
+            try {
+                SubArray sa = di.data();
+                next = Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start + 8));
+            } finally {
+                di.release();
+            }
+            free(uid);
+            uid = next;
+        }
+    }
+
+    /**
+     * 改链头块中的引用数，返回改后的值；同一条链的修改由DataItem的写锁串行
+     */
+    private int addOverflowRefs(long xid, long uid, int delta) throws Exception {
+        DataItem di = read(uid);
+        if(di == null) {
+            throw Error.InvalidUidException;
         }
+        try {
+            di.before();
+            try {
+                SubArray sa = di.data();
+                int refs = Parser.parseInt(Arrays.copyOfRange(sa.raw, sa.start + 8, sa.start + 8 + OVERFLOW_REFS)) + delta;
+                System.arraycopy(Parser.int2Byte(refs), 0, sa.raw, sa.start + 8, OVERFLOW_REFS);
+                return refs;
+            } finally {
+                di.after(xid);
+            }
+        } finally {
+            di.release();
+        }
+    }
+
+    /**
+     * 提交的事务写过的行和它改过的索引节点的日志都在当前末尾之前，刷到末尾即可
+     * 同时提交的事务由日志的后台线程合并成一次刷盘
+     */
+    @Override
+    public void flushLog() {
+        logger.flush(Long.MAX_VALUE);
     }
 
+    /**
+     * 关闭前再做一次检查点，删掉不再需要的日志段
+     */
     @Override
     public void close() {
+        stopCheckpointer();
         super.close();
+        checkpoint();
         logger.close();
 
+        // 空闲空间图先落盘，PageOne标记正常关闭在后，两者之间崩溃时下次打开不会信它
+        fsm.save(pIndex, pc.getPageNumber());
         PageOne.setVcClose(pageOne);
+        PageOne.setPageCount(pageOne, pc.getPageNumber());
         pageOne.release();
         pc.close();
     }
 
+    @Override
+    public int getPageSize() {
+        return pc.getPageSize();
+    }
+
+    @Override
+    public void beginBulkRead() {
+        pc.beginBulkRead();
+    }
+
+    @Override
+    public void endBulkRead() {
+        pc.endBulkRead();
+    }
+
+    /**
+     * 把uid所在的页去重排序，连续的页合并成一次预读
+     */
+    @Override
+    public void prefetch(List<Long> uids) {
+        TreeSet<Integer> pgnos = new TreeSet<>();
+        for(long uid : uids) {
+            pgnos.add((int)(uid >>> 32));
+        }
+        int from = 0, count = 0;
+        for(int pgno : pgnos) {
+            if(count > 0 && pgno == from + count) {
+                count ++;
+                continue;
+            }
+            if(count > 0) {
+                pc.prefetch(from, count);
+            }
+            from = pgno;
+            count = 1;
+        }
+        if(count > 0) {
+            pc.prefetch(from, count);
+        }
+    }
+
+    /**
+     * 不同的页每LOAD_BATCH个用getPages取一次，引用着的页数有上限，不会占满缓存
+     */
+    @Override
+    public void loadPages(List<Long> uids) throws Exception {
+        TreeSet<Integer> set = new TreeSet<>();
+        for(long uid : uids) {
+            set.add((int)(uid >>> 32));
+        }
+        List<Integer> pgnos = new ArrayList<>(set);
+        for(int from = 0; from < pgnos.size(); from += LOAD_BATCH) {
+            List<Integer> batch = pgnos.subList(from, Math.min(pgnos.size(), from + LOAD_BATCH));
+            int[] arr = new int[batch.size()];
+            for(int i = 0; i < arr.length; i ++) {
+                arr[i] = batch.get(i);
+            }
+            for(Page pg : pc.getPages(arr)) {
+                pg.release();
+            }
+        }
+    }
+
     // 为xid生成update日志
     public void logDataItem(long xid, DataItem di) {
         byte[] log = Recover.updateLog(xid, di);
-        logger.log(log);
+        noteFirstLsn(xid);
+        long lsn = logger.log(log);
+        // 页在after返回并释放之前不会被写回，此时PageLSN已经是这条日志
+        di.page().setLsn(lsn);
     }
 
     public void releaseDataItem(DataItem di) {
@@ -115,11 +483,21 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
      */
     @Override
     protected DataItem getForCache(long uid) throws Exception {
-        short offset = (short)(uid & ((1L << 16) - 1));
+        short slot = (short)(uid & ((1L << 16) - 1));
         uid >>>= 32;
         int pgno = (int)(uid & ((1L << 32) - 1));
         Page pg = pc.getPage(pgno);
-        return DataItem.parseDataItem(pg, offset, this);
+        // 加页锁读槽目录，不会和插入、释放同时改槽
+        pg.lock();
+        try {
+            if(PageX.getOffset(pg, slot) == 0) {
+                pg.release();
+                throw Error.InvalidUidException;
+            }
+            return DataItem.parseDataItem(pg, slot, this);
+        } finally {
+            pg.unlock();
+        }
     }
 
     @Override
@@ -129,7 +507,7 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     // 在创建文件时初始化PageOne
     void initPageOne() {
-        int pgno = pc.newPage(PageOne.InitRaw());
+        int pgno = pc.newPage(PageOne.InitRaw(pc.getPageSize(), pc.isCompressed()));
         assert pgno == 1;
         try {
             pageOne = pc.getPage(pgno);
@@ -149,18 +527,30 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         return PageOne.checkVc(pageOne);
     }
 
-    // 初始化pageIndex
+    // 正常关闭过就从空闲空间图装入pageIndex，否则扫描所有页
+    void loadPageIndex(boolean clean) {
+        if(!clean || !fsm.load(pIndex, pc.getPageNumber())) {
+            fillPageIndex();
+        }
+    }
+
+    // 扫描所有页初始化pageIndex
     void fillPageIndex() {
         int pageNumber = pc.getPageNumber();
-        for(int i = 2; i <= pageNumber; i ++) {
-            Page pg = null;
-            try {
-                pg = pc.getPage(i);
-            } catch (Exception e) {
-                Panic.panic(e);
+        pc.beginBulkRead();
+        try {
+            for(int i = 2; i <= pageNumber; i ++) {
+                Page pg = null;
+                try {
+                    pg = pc.getPage(i);
+                } catch (Exception e) {
+                    Panic.panic(e);
+                }
+                pIndex.add(pg.getPageNumber(), PageX.getFreeSpace(pg));
+                pg.release();
             }
-            pIndex.add(pg.getPageNumber(), PageX.getFreeSpace(pg));
-            pg.release();
+        } finally {
+            pc.endBulkRead();
         }
     }
 
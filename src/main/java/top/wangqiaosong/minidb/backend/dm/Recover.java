@@ -6,6 +6,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import com.google.common.primitives.Bytes;
 
@@ -16,8 +18,10 @@ import top.wangqiaosong.minidb.backend.dm.page.Page;
 import top.wangqiaosong.minidb.backend.dm.page.PageX;
 import top.wangqiaosong.minidb.backend.dm.pageCache.PageCache;
 import top.wangqiaosong.minidb.backend.tm.TransactionManager;
+import top.wangqiaosong.minidb.backend.tm.TransactionManagerImpl;
 import top.wangqiaosong.minidb.backend.utils.Panic;
 import top.wangqiaosong.minidb.backend.utils.Parser;
+import top.wangqiaosong.minidb.common.Error;
 
 /**
  * redo重做日志，提交事务
@@ -29,7 +33,9 @@ import top.wangqiaosong.minidb.backend.utils.Parser;
 public class Recover {
 
     private static final byte LOG_TYPE_INSERT = 0;
-    private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_FREE = 2;
+    private static final byte LOG_TYPE_DELTA = 3;
+    private static final byte LOG_TYPE_IMAGE = 4;
 
     private static final int REDO = 0;
     private static final int UNDO = 1;
@@ -37,38 +43,58 @@ public class Recover {
     static class InsertLogInfo {
         long xid;
         int pgno;
-        short offset;
+        short slot;
         byte[] raw;
     }
 
+    /**
+     * 每段修改在DataItem中的偏移，和修改前后的内容
+     */
     static class UpdateLogInfo {
         long xid;
         int pgno;
-        short offset;
-        byte[] oldRaw;
-        byte[] newRaw;
+        short slot;
+        List<Integer> offsets = new ArrayList<>();
+        List<byte[]> oldRaws = new ArrayList<>();
+        List<byte[]> newRaws = new ArrayList<>();
     }
 
-    public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
+    static class FreeLogInfo {
+        long xid;
+        int pgno;
+        short slot;
+    }
+
+    /**
+     * 有检查点时只从它记下的位置读日志，之前的日志对应的修改都已在页文件中
+     * 检查点之前建的页可能不再出现在日志里，截断页文件时按它记下的页数保留
+     * 没有检查点但开头的日志段已被删掉时，剩下的日志不够重建页文件，不能从头恢复
+     * 页写回前都记了页镜像，先用每页最后一份镜像覆盖文件中可能写坏的页，再redo
+     */
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc, Checkpoint ckpt) {
         System.out.println("Recovering...");
+        if (ckpt == null && lg.headLsn() > 0) {
+            Panic.panic(Error.MissingCheckpointException);
+        }
 
-        lg.rewind();
-        int maxPgno = 0;
+        long start = ckpt == null ? 0 : ckpt.startLsn();
+        lg.seek(start);
+        int maxPgno = ckpt == null ? 0 : ckpt.pageNumber;
+        Map<Integer, Long> images = new HashMap<>();
         while (true) {
+            long pos = lg.position();
             byte[] log = lg.next();
             if (log == null) break;
-            int pgno;
-            if (isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                pgno = li.pgno;
-            } else {
-                UpdateLogInfo li = parseUpdateLog(log);
-                pgno = li.pgno;
-            }
+            int pgno = pgnoOf(log);
             if (pgno > maxPgno) {
                 maxPgno = pgno;
             }
+            if (isImageLog(log)) {
+                images.put(pgno, pos);
+            }
         }
+        // 恢复中写回页也会记镜像，redo只读到这里
+        long end = lg.position();
         if (maxPgno == 0) {
             maxPgno = 1;
         }
@@ -76,74 +102,130 @@ public class Recover {
         pc.truncateByBgno(maxPgno);
         System.out.println("Truncate to " + maxPgno + " pages.");
 
-        redoTranscations(tm, lg, pc);
+        restoreImages(lg, pc, images);
+        System.out.println("Restore " + images.size() + " page images.");
+
+        Map<Long, List<byte[]>> logCache = redoTranscations(tm, lg, pc, start, end);
         System.out.println("Redo Transactions Over.");
 
-        undoTranscations(tm, lg, pc);
+        undoTranscations(tm, pc, logCache);
         System.out.println("Undo Transactions Over.");
 
         System.out.println("Recovery Over.");
     }
 
-    private static void redoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        lg.rewind();
-        while (true) {
+    /**
+     * 每页只用最后一份镜像：镜像之前的日志都已在镜像里，之后的日志redo时补上
+     * 写坏的页可能连读都读不出来，要在redo读页之前覆盖
+     */
+    private static void restoreImages(Logger lg, PageCache pc, Map<Integer, Long> images) {
+        for (Entry<Integer, Long> entry : images.entrySet()) {
+            lg.seek(entry.getValue());
             byte[] log = lg.next();
-            if (log == null) break;
-            if (isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if (!tm.isActive(xid)) {
-                    doInsertLog(pc, log, REDO);
-                }
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if (!tm.isActive(xid)) {
-                    doUpdateLog(pc, log, REDO);
-                }
-            }
+            pc.restorePage(entry.getKey(), Arrays.copyOfRange(log, OF_IMAGE_DATA, log.length));
         }
     }
 
-    private static void undoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
+    /**
+     * redo的工作线程数，每个线程同时只引用一页，不能超过页缓存的最小容量
+     */
+    private static final int REDO_WORKERS = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 8));
+    // 每个工作线程的队列长度，读日志比重做快时读线程在这里等
+    private static final int REDO_QUEUE_SIZE = 1024;
+
+    private static class RedoTask {
+        byte[] log;  // 为null时表示日志已读完
+        long lsn;
+    }
+
+    /**
+     * 只读一遍日志：活跃事务的日志留给undo，其余按页号分给工作线程并行重做
+     * 同一页的日志总在同一个线程里按日志顺序重做，不同页之间的顺序无关紧要
+     * 日志的LSN不大于页的PageLSN时，页上已经有这条日志的修改，跳过
+     */
+    private static Map<Long, List<byte[]>> redoTranscations(TransactionManager tm, Logger lg, PageCache pc, long start, long end) {
+        List<BlockingQueue<RedoTask>> queues = new ArrayList<>();
+        Thread[] workers = new Thread[REDO_WORKERS];
+        for (int i = 0; i < REDO_WORKERS; i++) {
+            BlockingQueue<RedoTask> queue = new ArrayBlockingQueue<>(REDO_QUEUE_SIZE);
+            queues.add(queue);
+            workers[i] = new Thread(() -> redoLoop(pc, queue), "redo-" + i);
+            workers[i].start();
+        }
+
         Map<Long, List<byte[]>> logCache = new HashMap<>();
-        lg.rewind();
-        while (true) {
+        lg.seek(start);
+        while (lg.position() < end) {
             byte[] log = lg.next();
             if (log == null) break;
-            if (isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if (tm.isActive(xid)) {
-                    //如果没有这个xid那就加一个集合然后logCache.get(xid).add(log);把xid-log存入
-                    if (!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    //如果有这个xid直接在value追加log
-                    logCache.get(xid).add(log);
-                }
+            if (isImageLog(log)) {
+                continue;
+            }
+            // 释放槽的日志都属于SUPER_XID，不会被撤销
+            long xid = xidOf(log);
+            if (tm.isActive(xid)) {
+                logCache.computeIfAbsent(xid, k -> new ArrayList<>()).add(log);
+                continue;
+            }
+            RedoTask task = new RedoTask();
+            task.log = log;
+            task.lsn = lg.position();
+            put(queues.get(pgnoOf(log) % REDO_WORKERS), task);
+        }
+        for (BlockingQueue<RedoTask> queue : queues) {
+            put(queue, new RedoTask());
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+        return logCache;
+    }
+
+    private static void put(BlockingQueue<RedoTask> queue, RedoTask task) {
+        try {
+            queue.put(task);
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private static void redoLoop(PageCache pc, BlockingQueue<RedoTask> queue) {
+        while (true) {
+            RedoTask task = null;
+            try {
+                task = queue.take();
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+            if (task.log == null) {
+                return;
+            }
+            if (isInsertLog(task.log)) {
+                doInsertLog(pc, task.log, REDO, task.lsn);
+            } else if (isFreeLog(task.log)) {
+                doFreeLog(pc, task.log, task.lsn);
             } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if (tm.isActive(xid)) {
-                    if (!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
-                }
+                doUpdateLog(pc, task.log, REDO, task.lsn);
             }
         }
+    }
 
-        // 对所有active log进行倒序undo
+    /**
+     * 对每个活跃事务的日志倒序undo，然后把它标记为已撤销
+     */
+    private static void undoTranscations(TransactionManager tm, PageCache pc, Map<Long, List<byte[]>> logCache) {
         for (Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
             List<byte[]> logs = entry.getValue();
             for (int i = logs.size() - 1; i >= 0; i--) {
                 byte[] log = logs.get(i);
                 if (isInsertLog(log)) {
-                    doInsertLog(pc, log, UNDO);
+                    doInsertLog(pc, log, UNDO, 0);
                 } else {
-                    doUpdateLog(pc, log, UNDO);
+                    doUpdateLog(pc, log, UNDO, 0);
                 }
             }
             tm.abort(entry.getKey());
@@ -154,20 +236,72 @@ public class Recover {
         return log[0] == LOG_TYPE_INSERT;
     }
 
-    // [LogType] [XID] [UID] [OldRaw] [NewRaw]
+    private static boolean isFreeLog(byte[] log) {
+        return log[0] == LOG_TYPE_FREE;
+    }
+
+    private static boolean isImageLog(byte[] log) {
+        return log[0] == LOG_TYPE_IMAGE;
+    }
+
+    // 各种日志的XID都紧跟在LogType之后
+    private static long xidOf(byte[] log) {
+        return Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_XID + 8));
+    }
+
+    private static int pgnoOf(byte[] log) {
+        if (isInsertLog(log)) {
+            return parseInsertLog(log).pgno;
+        } else if (isFreeLog(log)) {
+            return parseFreeLog(log).pgno;
+        } else if (isImageLog(log)) {
+            return Parser.parseInt(Arrays.copyOfRange(log, OF_IMAGE_PGNO, OF_IMAGE_DATA));
+        }
+        return parseUpdateLog(log).pgno;
+    }
+
+    // [LogType] [XID] [UID] [RangeCount 2] [Offset 2] [Length 2] [OldRaw] [NewRaw] ...
     private static final int OF_TYPE = 0;
     private static final int OF_XID = OF_TYPE + 1;
     private static final int OF_UPDATE_UID = OF_XID + 8;
-    private static final int OF_UPDATE_RAW = OF_UPDATE_UID + 8;
+    private static final int OF_DELTA_COUNT = OF_UPDATE_UID + 8;
+    private static final int OF_DELTA_RANGES = OF_DELTA_COUNT + 2;
+    // 两段修改之间相同的字节不超过这个数时合并成一段，比多记一个[Offset][Length]省
+    private static final int DELTA_MERGE_GAP = 2;
 
+    /**
+     * DataItem修改完成时调用，只记下和修改前不同的几段字节
+     * 删除只改XMAX的8字节，日志里不再带两份整行
+     */
     public static byte[] updateLog(long xid, DataItem di) {
-        byte[] logType = {LOG_TYPE_UPDATE};
-        byte[] xidRaw = Parser.long2Byte(xid);
-        byte[] uidRaw = Parser.long2Byte(di.getUid());
         byte[] oldRaw = di.getOldRaw();
         SubArray raw = di.getRaw();
-        byte[] newRaw = Arrays.copyOfRange(raw.raw, raw.start, raw.end);
-        return Bytes.concat(logType, xidRaw, uidRaw, oldRaw, newRaw);
+        List<byte[]> ranges = new ArrayList<>();
+        int i = 0;
+        while (i < oldRaw.length) {
+            if (oldRaw[i] == raw.raw[raw.start + i]) {
+                i++;
+                continue;
+            }
+            int from = i, to = i + 1, same = 0;
+            for (i = to; i < oldRaw.length && same <= DELTA_MERGE_GAP; i++) {
+                if (oldRaw[i] == raw.raw[raw.start + i]) {
+                    same++;
+                } else {
+                    to = i + 1;
+                    same = 0;
+                }
+            }
+            i = to;
+            ranges.add(Bytes.concat(Parser.short2Byte((short) from), Parser.short2Byte((short) (to - from)),
+                    Arrays.copyOfRange(oldRaw, from, to),
+                    Arrays.copyOfRange(raw.raw, raw.start + from, raw.start + to)));
+        }
+        byte[] logType = {LOG_TYPE_DELTA};
+        byte[] xidRaw = Parser.long2Byte(xid);
+        byte[] uidRaw = Parser.long2Byte(di.getUid());
+        byte[] countRaw = Parser.short2Byte((short) ranges.size());
+        return Bytes.concat(logType, xidRaw, uidRaw, countRaw, Bytes.concat(ranges.toArray(new byte[0][])));
     }
 
     /**
@@ -180,9 +314,9 @@ public class Recover {
         UpdateLogInfo li = new UpdateLogInfo();
         li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
         //8字节
-        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
+        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_DELTA_COUNT));
         //普通页从2字节起步 mysql单行字节不能超过65535 (1L<<16)-1
-        li.offset = (short) (uid & ((1L << 16) - 1));
+        li.slot = (short) (uid & ((1L << 16) - 1));
         uid >>>= 32;
         //&是 二进制按位与操作
         //12&5 的值是多少？答：12转成二进制数是1100（前四位省略了），
@@ -192,67 +326,70 @@ public class Recover {
         li.pgno = (int) (uid & ((1L << 32) - 1));
        //  System.out.println(3L&4294967296L); 000...0011 与操作 100..000 最终都为0
         //  System.out.println(3L&4294967295L);000...0011 与操作  111..11 最终后两位为真 等于3
-        int length = (log.length - OF_UPDATE_RAW) / 2;
-        li.oldRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW, OF_UPDATE_RAW + length);
-        li.newRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW + length, OF_UPDATE_RAW + length * 2);
+        int count = Parser.parseShort(Arrays.copyOfRange(log, OF_DELTA_COUNT, OF_DELTA_RANGES));
+        int pos = OF_DELTA_RANGES;
+        for (int i = 0; i < count; i++) {
+            int offset = Parser.parseShort(Arrays.copyOfRange(log, pos, pos + 2));
+            int length = Parser.parseShort(Arrays.copyOfRange(log, pos + 2, pos + 4));
+            pos += 4;
+            li.offsets.add(offset);
+            li.oldRaws.add(Arrays.copyOfRange(log, pos, pos + length));
+            li.newRaws.add(Arrays.copyOfRange(log, pos + length, pos + length * 2));
+            pos += length * 2;
+        }
         return li;
     }
 
-    private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
-        int pgno;
-        short offset;
-        byte[] raw;
-        if (flag == REDO) {
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            //new新的
-            raw = xi.newRaw;
-        } else {
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            //old不变
-            raw = xi.oldRaw;
-        }
+    private static void doUpdateLog(PageCache pc, byte[] log, int flag, long lsn) {
+        UpdateLogInfo xi = parseUpdateLog(log);
+        //redo用新的，undo用旧的
+        List<byte[]> raws = flag == REDO ? xi.newRaws : xi.oldRaws;
         Page pg = null;
         try {
-            pg = pc.getPage(pgno);
+            pg = pc.getPage(xi.pgno);
         } catch (Exception e) {
             Panic.panic(e);
         }
         try {
-            PageX.recoverUpdate(pg, raw, offset);
+            if (flag == REDO && lsn <= pg.getLsn()) {
+                return;
+            }
+            for (int i = 0; i < raws.size(); i++) {
+                PageX.recoverUpdate(pg, xi.slot, xi.offsets.get(i), raws.get(i));
+            }
+            if (flag == REDO) {
+                pg.setLsn(lsn);
+            }
         } finally {
             pg.release();
         }
     }
 
-    // [LogType] [XID] [Pgno] [Offset] [Raw] raw代表二进制数据
+    // [LogType] [XID] [Pgno] [Slot] [Raw] raw代表二进制数据
     private static final int OF_INSERT_PGNO = OF_XID + 8;
-    private static final int OF_INSERT_OFFSET = OF_INSERT_PGNO + 4;
-    private static final int OF_INSERT_RAW = OF_INSERT_OFFSET + 2;
+    private static final int OF_INSERT_SLOT = OF_INSERT_PGNO + 4;
+    private static final int OF_INSERT_RAW = OF_INSERT_SLOT + 2;
     /**
-     * 封装日志结构
+     * 封装日志结构，slot是记录将要放入的槽
      */
-    public static byte[] insertLog(long xid, Page pg, byte[] raw) {
+    public static byte[] insertLog(long xid, int pgno, short slot, byte[] raw) {
         byte[] logTypeRaw = {LOG_TYPE_INSERT};
         byte[] xidRaw = Parser.long2Byte(xid);
-        byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
-        byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(pg));
-        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
+        byte[] pgnoRaw = Parser.int2Byte(pgno);
+        byte[] slotRaw = Parser.short2Byte(slot);
+        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, slotRaw, raw);
     }
 
     private static InsertLogInfo parseInsertLog(byte[] log) {
         InsertLogInfo li = new InsertLogInfo();
         li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
-        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
-        li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
+        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_SLOT));
+        li.slot = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_SLOT, OF_INSERT_RAW));
         li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
         return li;
     }
 
-    private static void doInsertLog(PageCache pc, byte[] log, int flag) {
+    private static void doInsertLog(PageCache pc, byte[] log, int flag, long lsn) {
         InsertLogInfo li = parseInsertLog(log);
         Page pg = null;
         try {
@@ -261,12 +398,73 @@ public class Recover {
             Panic.panic(e);
         }
         try {
+            if (flag == REDO && lsn <= pg.getLsn()) {
+                return;
+            }
             if (flag == UNDO) {
                 DataItem.setDataItemRawInvalid(li.raw);
             }
-            PageX.recoverInsert(pg, li.raw, li.offset);
+            PageX.recoverInsert(pg, li.raw, li.slot);
+            if (flag == REDO) {
+                pg.setLsn(lsn);
+            }
+        } finally {
+            pg.release();
+        }
+    }
+
+    // [LogType] [XID] [Pgno] [Slot]，XID总是SUPER_XID
+    private static final int OF_FREE_PGNO = OF_XID + 8;
+    private static final int OF_FREE_SLOT = OF_FREE_PGNO + 4;
+    private static final int LEN_FREE_LOG = OF_FREE_SLOT + 2;
+    /**
+     * 释放槽的日志，只重做不撤销
+     */
+    public static byte[] freeLog(int pgno, short slot) {
+        byte[] logTypeRaw = {LOG_TYPE_FREE};
+        byte[] xidRaw = Parser.long2Byte(TransactionManagerImpl.SUPER_XID);
+        byte[] pgnoRaw = Parser.int2Byte(pgno);
+        byte[] slotRaw = Parser.short2Byte(slot);
+        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, slotRaw);
+    }
+
+    private static FreeLogInfo parseFreeLog(byte[] log) {
+        FreeLogInfo li = new FreeLogInfo();
+        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_FREE_PGNO));
+        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_FREE_PGNO, OF_FREE_SLOT));
+        li.slot = Parser.parseShort(Arrays.copyOfRange(log, OF_FREE_SLOT, LEN_FREE_LOG));
+        return li;
+    }
+
+    private static void doFreeLog(PageCache pc, byte[] log, long lsn) {
+        FreeLogInfo li = parseFreeLog(log);
+        Page pg = null;
+        try {
+            pg = pc.getPage(li.pgno);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            if (lsn <= pg.getLsn()) {
+                return;
+            }
+            PageX.recoverFree(pg, li.slot);
+            pg.setLsn(lsn);
         } finally {
             pg.release();
         }
     }
+
+    // [LogType] [XID] [Pgno] [Data]，XID总是SUPER_XID
+    private static final int OF_IMAGE_PGNO = OF_XID + 8;
+    private static final int OF_IMAGE_DATA = OF_IMAGE_PGNO + 4;
+    /**
+     * 页镜像，页写回原位置之前的整页内容，只用来修复写坏的页，不重做也不撤销
+     */
+    public static byte[] pageImageLog(int pgno, byte[] data) {
+        byte[] logTypeRaw = {LOG_TYPE_IMAGE};
+        byte[] xidRaw = Parser.long2Byte(TransactionManagerImpl.SUPER_XID);
+        byte[] pgnoRaw = Parser.int2Byte(pgno);
+        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, data);
+    }
 }
@@ -7,6 +7,7 @@ import com.google.common.primitives.Bytes;
 import top.wangqiaosong.minidb.backend.common.SubArray;
 import top.wangqiaosong.minidb.backend.dm.DataManagerImpl;
 import top.wangqiaosong.minidb.backend.dm.page.Page;
+import top.wangqiaosong.minidb.backend.dm.page.PageX;
 import top.wangqiaosong.minidb.backend.utils.Parser;
 import top.wangqiaosong.minidb.backend.utils.Types;
 
@@ -61,12 +62,13 @@ public interface DataItem {
         return Bytes.concat(valid, size, raw);
     }
 
-    // 从页面的offset处解析出dataItem
-    public static DataItem parseDataItem(Page pg, short offset, DataManagerImpl dm) {
+    // 从页面的slot处解析出dataItem，调用前确认slot不是空槽
+    public static DataItem parseDataItem(Page pg, short slot, DataManagerImpl dm) {
         byte[] raw = pg.getData();
+        int offset = PageX.getOffset(pg, slot);
         short size = Parser.parseShort(Arrays.copyOfRange(raw, offset + DataItemImpl.OF_SIZE, offset + DataItemImpl.OF_DATA));
         short length = (short) (size + DataItemImpl.OF_DATA);
-        long uid = Types.addressToUid(pg.getPageNumber(), offset);
+        long uid = Types.addressToUid(pg.getPageNumber(), slot);
         return new DataItemImpl(new SubArray(raw, offset, offset + length), new byte[length], pg, uid, dm);
     }
 
@@ -61,6 +61,7 @@ public class DataItemImpl implements DataItem {
     @Override
     public void before() {
         wLock.lock();
+        pg.beginUpdate();
         pg.setDirty(true);
         //保存前相数据，方便录入日志
         System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
@@ -72,6 +73,7 @@ public class DataItemImpl implements DataItem {
     @Override
     public void unBefore() {
         System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
+        pg.endUpdate();
         wLock.unlock();
     }
 
@@ -82,6 +84,7 @@ public class DataItemImpl implements DataItem {
     @Override
     public void after(long xid) {
         dm.logDataItem(xid, this);
+        pg.endUpdate();
         wLock.unlock();
     }
 
@@ -0,0 +1,228 @@
+package top.wangqiaosong.minidb.backend.dm.logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Bytes;
+
+import top.wangqiaosong.minidb.backend.utils.Panic;
+import top.wangqiaosong.minidb.backend.utils.Parser;
+import top.wangqiaosong.minidb.common.Error;
+
+/**
+ * 一个日志段文件
+ * 文件结构：[Header] [Log1] [Log2] ... [LogN] [BadTail]
+ * Header：[Magic 4][SegmentSize 4][StartLsn 8][HeaderChecksum 4]
+ * StartLsn是段中第一条日志开始处的LSN，段中偏移off处的LSN为StartLsn + off - HEADER_SIZE，
+ * 上一段的末尾就是下一段的开头，LSN连续不跳号
+ * 第0段文件名为path.log，第n段为path.log.n
+ */
+class LogSegment {
+    static final int MAGIC = 0x4d44424c;
+
+    static final int OF_MAGIC = 0;
+    static final int OF_SEGMENT_SIZE = OF_MAGIC + 4;
+    static final int OF_START_LSN = OF_SEGMENT_SIZE + 4;
+    static final int OF_HEADER_CHECKSUM = OF_START_LSN + 8;
+    static final int HEADER_SIZE = OF_HEADER_CHECKSUM + 4;
+
+    int no;
+    int segmentSize;
+    long startLsn;
+    long length;  // 已写入文件的长度，包括Header
+
+    private File file;
+    private RandomAccessFile raf;
+    private FileChannel fc;
+
+    static String nameOf(String path, int no) {
+        return path + LoggerImpl.LOG_SUFFIX + (no == 0 ? "" : "." + no);
+    }
+
+    static int checksum(byte[]... parts) {
+        Hasher hasher = Hashing.crc32c().newHasher();
+        for (byte[] part : parts) {
+            hasher.putBytes(part);
+        }
+        return hasher.hash().asInt();
+    }
+
+    /**
+     * 按段号从小到大列出path下已有的段号，只看文件名
+     */
+    static List<Integer> list(String path) {
+        File base = new File(path + LoggerImpl.LOG_SUFFIX);
+        File dir = base.getAbsoluteFile().getParentFile();
+        String prefix = base.getName();
+        List<Integer> nos = new ArrayList<>();
+        String[] names = dir.list();
+        if (names == null) {
+            return nos;
+        }
+        for (String name : names) {
+            if (name.equals(prefix)) {
+                nos.add(0);
+            } else if (name.startsWith(prefix + ".") && name.substring(prefix.length() + 1).matches("[1-9][0-9]*")) {
+                nos.add(Integer.parseInt(name.substring(prefix.length() + 1)));
+            }
+        }
+        Collections.sort(nos);
+        return nos;
+    }
+
+    /**
+     * 新建段文件，Header落盘后返回
+     */
+    static LogSegment create(String path, int no, int segmentSize, long startLsn) {
+        return create(new File(nameOf(path, no)), no, segmentSize, startLsn);
+    }
+
+    static LogSegment create(File f, int no, int segmentSize, long startLsn) {
+        try {
+            if (!f.createNewFile()) {
+                Panic.panic(Error.FileExistsException);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        LogSegment seg = new LogSegment(f, no);
+        seg.segmentSize = segmentSize;
+        seg.startLsn = startLsn;
+        byte[] header = Bytes.concat(Parser.int2Byte(MAGIC), Parser.int2Byte(segmentSize), Parser.long2Byte(startLsn));
+        seg.write(Bytes.concat(header, Parser.int2Byte(checksum(header))), 0);
+        seg.length = HEADER_SIZE;
+        seg.force();
+        return seg;
+    }
+
+    /**
+     * 打开段文件，Header不完整或校验失败时返回null
+     */
+    static LogSegment open(String path, int no) {
+        File f = new File(nameOf(path, no));
+        if (!f.canRead() || !f.canWrite()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+        LogSegment seg = new LogSegment(f, no);
+        seg.length = seg.size();
+        if (seg.length < HEADER_SIZE) {
+            seg.close();
+            return null;
+        }
+        byte[] header = seg.read(0, HEADER_SIZE);
+        if (Parser.parseInt(Arrays.copyOfRange(header, OF_MAGIC, OF_SEGMENT_SIZE)) != MAGIC
+                || Parser.parseInt(Arrays.copyOfRange(header, OF_HEADER_CHECKSUM, HEADER_SIZE))
+                    != checksum(Arrays.copyOf(header, OF_HEADER_CHECKSUM))) {
+            seg.close();
+            return null;
+        }
+        seg.segmentSize = Parser.parseInt(Arrays.copyOfRange(header, OF_SEGMENT_SIZE, OF_START_LSN));
+        seg.startLsn = Parser.parseLong(Arrays.copyOfRange(header, OF_START_LSN, OF_HEADER_CHECKSUM));
+        return seg;
+    }
+
+    private LogSegment(File f, int no) {
+        this.file = f;
+        this.no = no;
+        try {
+            raf = new RandomAccessFile(f, "rw");
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        fc = raf.getChannel();
+    }
+
+    long endLsn() {
+        return startLsn + length - HEADER_SIZE;
+    }
+
+    private long size() {
+        try {
+            return fc.size();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return 0;
+    }
+
+    /**
+     * 一次read/write可能只传输一部分，循环到读满或读到文件末尾，超出末尾的部分为0
+     */
+    byte[] read(long offset, int len) {
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        try {
+            while (buf.hasRemaining()) {
+                if (fc.read(buf, offset + buf.position()) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return buf.array();
+    }
+
+    private void write(byte[] data, long offset) {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            while (buf.hasRemaining()) {
+                fc.write(buf, offset + buf.position());
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 追加到段末尾，不刷盘
+     */
+    void append(byte[] data) {
+        write(data, length);
+        length += data.length;
+    }
+
+    void force() {
+        try {
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    void truncate(long offset) {
+        try {
+            fc.truncate(offset);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        length = offset;
+    }
+
+    void close() {
+        try {
+            fc.close();
+            raf.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 文件已经不在了也算删掉
+     */
+    void delete() {
+        close();
+        if (!file.delete() && file.exists()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+    }
+}
@@ -1,83 +1,91 @@
 package top.wangqiaosong.minidb.backend.dm.logger;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 import top.wangqiaosong.minidb.backend.utils.Panic;
-import top.wangqiaosong.minidb.backend.utils.Parser;
 import top.wangqiaosong.minidb.common.Error;
 
 /**
- *  每次插入一条Log后, 就会对XChecksum做一次更新.
- *     由于"插入Log->更新XChecksum"这个过程不能保证原子性, 所以如果在期间发生了错误, 那么整个
- *     日志文件将会被判断为失效.
+ *  日志分段存放，每条Log带自己的CRC32C，没有覆盖全部日志的校验和.
+ *     崩溃时只有最后一段的末尾可能写坏，打开时截掉即可.
  */
 public interface Logger {
-    void log(byte[] data);
+    /**
+     * 追加一条日志，返回它的LSN(日志结束处在文件中的偏移)，LSN单调递增
+     * 返回时日志不一定已落盘，需要持久化时调用flush
+     */
+    long log(byte[] data);
+
+    /**
+     * 保证LSN不超过lsn的日志都已落盘
+     */
+    void flush(long lsn);
+    /**
+     * 已追加日志的末尾，下一条日志从这里开始
+     */
+    long tailLsn();
     void truncate(long x) throws Exception;
+    /**
+     * 删掉日志末尾不超过lsn的段，这些日志恢复时不再需要
+     */
+    void removeBefore(long lsn);
+    /**
+     * 现存最早一段的开头，之前的日志已被removeBefore删掉；从没删过时为0
+     */
+    long headLsn();
     byte[] next();
+    /**
+     * 读日志的位置，next()之后就是刚读出的那条日志的LSN
+     */
+    long position();
     void rewind();
+    /**
+     * 从lsn处开始读，lsn必须是某条日志的开头，比现存最早的日志还早时从头读
+     */
+    void seek(long lsn);
     void close();
 
     public static Logger create(String path) {
-        File f = new File(path+LoggerImpl.LOG_SUFFIX);
-        try {
-            if(!f.createNewFile()) {
-                Panic.panic(Error.FileExistsException);
-            }
-        } catch (Exception e) {
-            Panic.panic(e);
-        }
-        if(!f.canRead() || !f.canWrite()) {
-            Panic.panic(Error.FileCannotRWException);
-        }
-
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-           Panic.panic(e);
-        }
+        return create(path, LoggerImpl.SEGMENT_SIZE);
+    }
 
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));
-        try {
-            fc.position(0);
-            fc.write(buf);
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+    /**
+     * 新建日志，只有一个空的第0段，LSN从0开始
+     */
+    public static Logger create(String path, int segmentSize) {
+        if(!LogSegment.list(path).isEmpty()) {
+            Panic.panic(Error.FileExistsException);
         }
-
-        return new LoggerImpl(raf, fc, 0);
+        List<LogSegment> segments = new ArrayList<>();
+        segments.add(LogSegment.create(path, 0, segmentSize, 0));
+        return new LoggerImpl(path, segments);
     }
 
+    /**
+     * 打开已有的日志
+     * 旧版本的日志是单个文件，.db的页格式和日志记录格式也都变了，不能直接打开，要先用Converter离线转换
+     */
     public static Logger open(String path) {
-        File f = new File(path+LoggerImpl.LOG_SUFFIX);
-        if(!f.exists()) {
+        List<Integer> nos = LogSegment.list(path);
+        if(nos.isEmpty()) {
             Panic.panic(Error.FileNotExistsException);
         }
-        if(!f.canRead() || !f.canWrite()) {
-            Panic.panic(Error.FileCannotRWException);
+        if(nos.get(0) == 0 && isLegacy(path)) {
+            Panic.panic(Error.LegacyLogFormatException);
         }
+        return new LoggerImpl(path, LoggerImpl.openSegments(path, nos));
+    }
 
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-           Panic.panic(e);
+    /**
+     * 第0段的开头不是合法的段Header，就是旧格式的文件
+     */
+    public static boolean isLegacy(String path) {
+        LogSegment seg = LogSegment.open(path, 0);
+        if(seg == null) {
+            return true;
         }
-
-        LoggerImpl lg = new LoggerImpl(raf, fc);
-        lg.init();
-
-        return lg;
+        seg.close();
+        return false;
     }
 }
@@ -1,10 +1,12 @@
 package top.wangqiaosong.minidb.backend.dm.logger;
 
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -15,215 +17,327 @@ import top.wangqiaosong.minidb.backend.utils.Parser;
 import top.wangqiaosong.minidb.common.Error;
 
 /**
- * 日志文件读写
+ * 日志读写
  * <p>
- * 日志文件标准格式为：
- * [XChecksum] [Log1] [Log2] ... [LogN] [BadTail]
- * XChecksum 为后续所有日志计算的Checksum，int类型
+ * 日志由若干段文件组成，每段的格式见LogSegment：
+ * [Header] [Log1] [Log2] ... [LogN] [BadTail]
+ * 一段写满SegmentSize后换下一段，一条日志不会跨段.
+ * 没有覆盖整个文件的校验和，追加日志只是在段末尾顺序写
  * <p>
  * 每条正确日志的格式为：
  * [Size] [Checksum] [Data]
  * Size 4字节int 标识Data长度
- * Checksum 4字节int
+ * Checksum 4字节int，Size和Data的CRC32C
  * raw在oracle可以理解为一些二进制信息数据类型，这里可以理解为底层的一些信息
+ * <p>
+ * 写段时先写完并刷完前一段才创建下一段，所以崩溃只可能弄坏最后一段，
+ * 打开时只检查最后一段，截掉它末尾的BadTail
+ * <p>
+ * 组提交：log只把日志追加到内存缓冲并返回LSN，由后台的log-flusher线程把攒下的一批日志
+ * 写入段文件，一批只刷一次盘.
+ * flush(lsn)只等到自己要的LSN落盘，刷盘期间新来的日志自动并入下一批，并发越高一批越大
  */
 public class LoggerImpl implements Logger {
-    //校验和是冗余校验的一种形式。
-    // 它是通过错误检测方法，对所传送数据的完整性进行检查的一种简单方法。
-    //校验种子:常用于CRC校验
-    //这里用的可能是哈希、累加结合的简化版本
-    private static final int SEED = 13331;
 
     private static final int OF_SIZE = 0;
     private static final int OF_CHECKSUM = OF_SIZE + 4;
     private static final int OF_DATA = OF_CHECKSUM + 4;
 
     public static final String LOG_SUFFIX = ".log";
+    // 默认每段16MB
+    public static final int SEGMENT_SIZE = 1 << 24;
+    // 缓冲的日志超过这个大小时，没人等也写出去
+    private static final int FLUSH_THRESHOLD = 1 << 20;
+    // 没人等落盘时，日志最多在缓冲中停留这么久
+    private static final long FLUSH_DELAY_NANOS = 10L * 1000 * 1000;
+
+    /**
+     * 缓冲中属于同一段的一串日志
+     */
+    private static class Chunk {
+        int no;
+        long startLsn;  // 这一段的StartLsn
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+    }
 
-    private RandomAccessFile file;
-    private FileChannel fc;
+    private String path;
+    private int segmentSize;
+    private List<LogSegment> segments;  // 按段号排列，最后一段是正在写的段
     private Lock lock;
 
-    private long position;  // 当前日志指针的位置
-    private long fileSize;  // 初始化时记录，log操作不更新
-    private int xChecksum;
+    private LogSegment reading;  // 读日志的位置
+    private int readIndex;
+    private long readOffset;
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc) {
-        this.file = raf;
-        this.fc = fc;
-        lock = new ReentrantLock();
-    }
+    private volatile long flushedLsn;  // 已经落盘的日志末尾
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc, int xChecksum) {
-        this.file = raf;
-        this.fc = fc;
-        this.xChecksum = xChecksum;
+    private List<Chunk> buffer;  // 还没写入文件的日志
+    private int bufferSize;
+    private int tailNo;  // 缓冲中日志写到的段
+    private long tailStartLsn;
+    private long tailLength;  // 这一段加上缓冲中日志后的长度
+    private long appendedLsn;  // 已追加(可能还在缓冲中)的日志末尾
+    private long requestedLsn;  // 有人在等落盘的最大LSN
+    private Condition needFlush;
+    private Condition flushed;
+    private boolean closed;
+    private Thread flusher;
+
+    LoggerImpl(String path, List<LogSegment> segments) {
+        this.path = path;
+        this.segments = new CopyOnWriteArrayList<>(segments);
         lock = new ReentrantLock();
-    }
+        LogSegment tail = segments.get(segments.size() - 1);
+        this.segmentSize = tail.segmentSize;
+        checkAndRemoveTail();
 
-    void init() {
-        long size = 0;
-        try {
-            size = file.length();
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        if (size < 4) {
-            Panic.panic(Error.BadLogFileException);
-        }
-        //Size 是一个四字节整数
-        ByteBuffer raw = ByteBuffer.allocate(4);
-        try {
-            /**
-             * 初始时从0读到4，故除init外其他方法都是从4开始读或写的
-             */
-            fc.position(0);
-            fc.read(raw);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        int xChecksum = Parser.parseInt(raw.array());
-        this.fileSize = size;
-        this.xChecksum = xChecksum;
+        tailNo = tail.no;
+        tailStartLsn = tail.startLsn;
+        tailLength = tail.length;
+        appendedLsn = tail.endLsn();
+        flushedLsn = appendedLsn;
+        rewind();
+        startFlusher();
+    }
 
-        checkAndRemoveTail();
+    private void startFlusher() {
+        buffer = new ArrayList<>();
+        needFlush = lock.newCondition();
+        flushed = lock.newCondition();
+        flusher = new Thread(this::flushLoop, "log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
     }
 
-    // 检查并移除bad tail
+    /**
+     * 前面的段都已完整落盘，只需逐条校验最后一段，截掉第一条坏日志之后的部分
+     */
     private void checkAndRemoveTail() {
-        //init时日志只有XChecksum（所以截断4之前的数据） 有可能有没写完的BadTail，这一节和事务有关联
-        rewind();
-
-        int xCheck = 0;
+        readIndex = segments.size() - 1;
+        reading = segments.get(readIndex);
+        readOffset = LogSegment.HEADER_SIZE;
         while (true) {
-            byte[] log = internNext();
+            byte[] log = internNext(false);
             if (log == null) break;
-            xCheck = calChecksum(xCheck, log);
-        }
-        if (xCheck != xChecksum) {
-            Panic.panic(Error.BadLogFileException);
-        }
-
-        try {
-            //之前的一些操作会移动position，此时position之前的值便是BadTail之前的值
-            // 截断文件到正常日志的末尾
-            truncate(position);
-        } catch (Exception e) {
-            Panic.panic(e);
-        }
-        try {
-            file.seek(position);
-        } catch (IOException e) {
-            Panic.panic(e);
         }
-        rewind();
+        reading.truncate(readOffset);
+        reading.force();
     }
 
-    private int calChecksum(int xCheck, byte[] log) {
-        //Java中涉及byte、short和char类型的运算操作首先会把这些值转换为int类型
-        //(byte=2 )+(int=1) =3
-        for (byte b : log) {
-            xCheck = xCheck * SEED + b;
-        }
-        return xCheck;
+    static int calChecksum(byte[] size, byte[] data) {
+        return LogSegment.checksum(size, data);
     }
 
     /**
-     * 重新讲讲通道和buffer读写文件，
-     * 首先将数据wrap包装成buffer，然后通过通道直接读写，其中需要position指定写的位置(从哪里开始写入),
-     * 向日志文件中写日志
+     * 追加到缓冲即返回，LSN是日志的末尾
+     * 缓冲攒够了立即唤醒后台线程写出，否则等有人flush或者最多等FLUSH_DELAY
      */
     @Override
-    public void log(byte[] data) {
+    public long log(byte[] data) {
         byte[] log = wrapLog(data);
-        ByteBuffer buf = ByteBuffer.wrap(log);
         lock.lock();
         try {
-            fc.position(fc.size());
-            fc.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+            // 放不下就换新段，空段至少放一条
+            if (tailLength > LogSegment.HEADER_SIZE && tailLength + log.length > segmentSize) {
+                tailNo++;
+                tailStartLsn = appendedLsn;
+                tailLength = LogSegment.HEADER_SIZE;
+            }
+            Chunk chunk = buffer.isEmpty() ? null : buffer.get(buffer.size() - 1);
+            if (chunk == null || chunk.no != tailNo) {
+                chunk = new Chunk();
+                chunk.no = tailNo;
+                chunk.startLsn = tailStartLsn;
+                buffer.add(chunk);
+            }
+            chunk.data.write(log, 0, log.length);
+            bufferSize += log.length;
+            tailLength += log.length;
+            appendedLsn += log.length;
+            if (bufferSize >= FLUSH_THRESHOLD) {
+                needFlush.signal();
+            }
+            return appendedLsn;
         } finally {
             lock.unlock();
         }
-        //先写入日志再去改校验和
-        updateXChecksum(log);
     }
 
     /**
-     * 更新checksum
+     * 只等待，不自己刷盘，lsn超过已追加的末尾时按末尾算
      */
-    private void updateXChecksum(byte[] log) {
-        this.xChecksum = calChecksum(this.xChecksum, log);
+    @Override
+    public void flush(long lsn) {
+        if (lsn <= flushedLsn) {
+            return;
+        }
+        lock.lock();
         try {
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));
-            //刷新缓冲区，保证内容写入磁盘
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+            lsn = Math.min(lsn, appendedLsn);
+            if (lsn > requestedLsn) {
+                requestedLsn = lsn;
+                needFlush.signal();
+            }
+            while (flushedLsn < lsn && !closed) {
+                flushed.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 后台线程：取走缓冲中的全部日志，依次追加到所属的段，最后刷一次盘
+     * 只有这个线程写文件，写盘时不持有锁，log可以继续往新缓冲里追加
+     */
+    private void flushLoop() {
+        while (true) {
+            List<Chunk> batch;
+            long end;
+            lock.lock();
+            try {
+                long delay = FLUSH_DELAY_NANOS;
+                while (true) {
+                    if (buffer.isEmpty()) {
+                        if (closed) {
+                            return;
+                        }
+                        needFlush.awaitUninterruptibly();
+                        delay = FLUSH_DELAY_NANOS;
+                        continue;
+                    }
+                    if (closed || requestedLsn > flushedLsn || bufferSize >= FLUSH_THRESHOLD || delay <= 0) {
+                        break;
+                    }
+                    delay = needFlush.awaitNanos(delay);
+                }
+                batch = buffer;
+                buffer = new ArrayList<>();
+                bufferSize = 0;
+                end = appendedLsn;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            LogSegment tail = segments.get(segments.size() - 1);
+            for (Chunk chunk : batch) {
+                if (chunk.no != tail.no) {
+                    // 前一段落盘后才创建下一段
+                    tail.force();
+                    tail = LogSegment.create(path, chunk.no, segmentSize, chunk.startLsn);
+                    segments.add(tail);
+                }
+                tail.append(chunk.data.toByteArray());
+            }
+            tail.force();
+            lock.lock();
+            try {
+                flushedLsn = end;
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
         }
     }
 
     /**
      * 将数据先包装成日志格式
      */
-    private byte[] wrapLog(byte[] data) {
-        byte[] checksum = Parser.int2Byte(calChecksum(0, data));
+    static byte[] wrapLog(byte[] data) {
         byte[] size = Parser.int2Byte(data.length);
+        byte[] checksum = Parser.int2Byte(calChecksum(size, data));
         //三段拼成一个字节数组
         return Bytes.concat(size, checksum, data);
     }
 
     @Override
-    public void truncate(long x) throws Exception {
+    public long headLsn() {
+        return segments.get(0).startLsn;
+    }
+
+    @Override
+    public long tailLsn() {
         lock.lock();
         try {
-            //截取文件的前x字节
-            fc.truncate(x);
+            return appendedLsn;
         } finally {
             lock.unlock();
         }
     }
 
-    //日志格式[Size][Checksum][Data] Size默认为4 Checksum=4 这段文件从size开始读
-    private byte[] internNext() {
-        if (position + OF_DATA >= fileSize) {
-            return null;
-        }
-        // 1读取size
-        ByteBuffer tmp = ByteBuffer.allocate(4);//filechannel写入数据
+    /**
+     * 最后一段正在写，不会删
+     */
+    @Override
+    public void removeBefore(long lsn) {
+        lock.lock();
         try {
-            fc.position(position);
-            fc.read(tmp);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        int size = Parser.parseInt(tmp.array());
-        if (position + size + OF_DATA > fileSize) {
-            return null;
+            while (segments.size() > 1 && segments.get(0).endLsn() <= lsn) {
+                segments.remove(0).delete();
+            }
+            rewind();
+        } finally {
+            lock.unlock();
         }
-        /** 2读取checksum+data 4+4+4，其实都是写死的大小，size为4.单个日志checksum为4，data为size大小也是4，
-         * 写成变量只是为了便于修改和扩展
-         * 真正要求的是总的校验和
-         **/
-        ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);
+    }
+
+    /**
+     * 丢掉LSN x之后的日志
+     */
+    @Override
+    public void truncate(long x) throws Exception {
+        flush(Long.MAX_VALUE);
+        lock.lock();
         try {
-            fc.position(position);
-            fc.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+            while (segments.size() > 1 && segments.get(segments.size() - 1).startLsn > x) {
+                segments.remove(segments.size() - 1).delete();
+            }
+            LogSegment tail = segments.get(segments.size() - 1);
+            if (x < tail.endLsn()) {
+                tail.truncate(Math.max(LogSegment.HEADER_SIZE, x - tail.startLsn + LogSegment.HEADER_SIZE));
+                tail.force();
+            }
+            tailNo = tail.no;
+            tailStartLsn = tail.startLsn;
+            tailLength = tail.length;
+            appendedLsn = tail.endLsn();
+            flushedLsn = appendedLsn;
+            requestedLsn = Math.min(requestedLsn, appendedLsn);
+            rewind();
+        } finally {
+            lock.unlock();
         }
+    }
 
-        byte[] log = buf.array();
-        // 3校验 checksum 比较校验和大小  8->12
-        int checkSum1 = calChecksum(0, Arrays.copyOfRange(log, OF_DATA, log.length));
-        //4->8
+    /**
+     * 读出当前位置的日志，读完一段接着读下一段
+     * crossSegment为false时只读当前段
+     */
+    private byte[] internNext(boolean crossSegment) {
+        while (readOffset + OF_DATA > reading.length) {
+            if (!crossSegment || readIndex == segments.size() - 1) {
+                return null;
+            }
+            readIndex++;
+            reading = segments.get(readIndex);
+            readOffset = LogSegment.HEADER_SIZE;
+        }
+        // 1读取size
+        byte[] size = reading.read(readOffset, 4);
+        int len = Parser.parseInt(size);
+        if (len < 0 || readOffset + OF_DATA + len > reading.length) {
+            return null;
+        }
+        // 2读取checksum+data
+        byte[] log = reading.read(readOffset, OF_DATA + len);
+        // 3校验 checksum
+        int checkSum1 = calChecksum(size, Arrays.copyOfRange(log, OF_DATA, log.length));
         int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
         if (checkSum1 != checkSum2) {
             return null;
         }
-        position += log.length;
+        readOffset += log.length;
         return log;
     }
 
@@ -231,7 +345,7 @@ public class LoggerImpl implements Logger {
     public byte[] next() {
         lock.lock();
         try {
-            byte[] log = internNext();
+            byte[] log = internNext(true);
             if (log == null) return null;
             return Arrays.copyOfRange(log, OF_DATA, log.length);
         } finally {
@@ -239,19 +353,114 @@ public class LoggerImpl implements Logger {
         }
     }
 
+    @Override
+    public long position() {
+        lock.lock();
+        try {
+            return reading.startLsn + readOffset - LogSegment.HEADER_SIZE;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public void rewind() {
-        position = 4;
+        readIndex = 0;
+        reading = segments.get(0);
+        readOffset = LogSegment.HEADER_SIZE;
     }
 
+    @Override
+    public void seek(long lsn) {
+        lock.lock();
+        try {
+            rewind();
+            while (readIndex < segments.size() - 1 && segments.get(readIndex + 1).startLsn <= lsn) {
+                readIndex++;
+            }
+            reading = segments.get(readIndex);
+            readOffset = LogSegment.HEADER_SIZE + Math.max(0, lsn - reading.startLsn);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 缓冲中的日志全部写出后再关闭文件
+     */
     @Override
     public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            needFlush.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+        for (LogSegment seg : segments) {
+            seg.close();
+        }
+    }
+
+    /**
+     * 测试模拟进程崩溃用：缓冲中还没写出的日志直接丢掉，停掉后台线程并关闭文件
+     * 还在等落盘的flush直接返回，不会卡住
+     */
+    void crash() {
+        lock.lock();
         try {
-            fc.close();
-            file.close();
-        } catch (IOException e) {
+            buffer.clear();
+            bufferSize = 0;
+            closed = true;
+            needFlush.signal();
+            flushed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
             Panic.panic(e);
         }
+        for (LogSegment seg : segments) {
+            seg.close();
+        }
     }
 
+    /**
+     * 打开已有的段，检查段号连续、前后段的LSN首尾相接
+     * 最后一段的Header不完整说明创建它时崩溃了，里面还没有日志，删掉
+     */
+    static List<LogSegment> openSegments(String path, List<Integer> nos) {
+        List<LogSegment> segments = new ArrayList<>();
+        for (int i = 0; i < nos.size(); i++) {
+            int no = nos.get(i);
+            LogSegment seg = LogSegment.open(path, no);
+            if (seg == null) {
+                if (i == nos.size() - 1 && i > 0) {
+                    new File(LogSegment.nameOf(path, no)).delete();
+                    break;
+                }
+                Panic.panic(Error.BadLogFileException);
+            }
+            if (i > 0) {
+                LogSegment prev = segments.get(i - 1);
+                if (no != prev.no + 1) {
+                    Panic.panic(Error.BadLogFileException);
+                }
+            }
+            segments.add(seg);
+        }
+        for (int i = 1; i < segments.size(); i++) {
+            if (segments.get(i).startLsn != segments.get(i - 1).endLsn()) {
+                Panic.panic(Error.BadLogFileException);
+            }
+        }
+        return segments;
+    }
 }
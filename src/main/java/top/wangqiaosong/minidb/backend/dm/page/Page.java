@@ -7,8 +7,13 @@ package top.wangqiaosong.minidb.backend.dm.page;
  * 		在对Page做任何的更新之前, 一定需要调用Dirty().
  * Page释放协议:
  * 		在对Page操作完之后, 一定要调用Release()释放掉该页.
+ * WAL协议:
+ * 		所有页的前8字节是PageLSN, 记录最后一次修改该页的日志的LSN, 页写回前日志必须先落盘到这个位置.
  */
 public interface Page {
+    int OF_LSN = 0;
+    int LEN_LSN = 8;
+
     void lock();
     void unlock();
 
@@ -20,4 +25,24 @@ public interface Page {
     boolean isDirty();
     int getPageNumber();
     byte[] getData();
+
+    long getLsn();
+
+    /**
+     * 记录修改该页的日志LSN，只增不减
+     */
+    void setLsn(long lsn);
+
+    /**
+     * 页上次由干净变脏时的PageLSN，之后修改它的日志都从这里之后开始
+     */
+    long getRecLsn();
+
+    /**
+     * DataItem在before和after之间会不持页锁直接改页，改动可能还没写日志
+     * 这期间页不能写回，检查点据此跳过这样的页
+     */
+    void beginUpdate();
+    void endUpdate();
+    boolean isUpdating();
 }
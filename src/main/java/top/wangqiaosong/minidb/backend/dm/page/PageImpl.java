@@ -1,14 +1,19 @@
 package top.wangqiaosong.minidb.backend.dm.page;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import top.wangqiaosong.minidb.backend.dm.pageCache.PageCache;
+import top.wangqiaosong.minidb.backend.utils.Parser;
 
 public class PageImpl implements Page {
     private int pageNumber;
     private byte[] data;
-    private boolean dirty;
+    private volatile boolean dirty;
+    private volatile long recLsn;
+    private AtomicInteger updating;
     private Lock lock;
 
     private PageCache pc;
@@ -22,6 +27,7 @@ public class PageImpl implements Page {
         this.data = data;
         this.pc = pc;
         lock = new ReentrantLock();
+        updating = new AtomicInteger(0);
     }
 
     public void lock() {
@@ -37,6 +43,9 @@ public class PageImpl implements Page {
     }
 
     public void setDirty(boolean dirty) {
+        if(dirty && !this.dirty) {
+            recLsn = getLsn();
+        }
         this.dirty = dirty;
     }
 
@@ -52,4 +61,44 @@ public class PageImpl implements Page {
         return data;
     }
 
+    public long getLsn() {
+        return Parser.parseLong(Arrays.copyOfRange(data, OF_LSN, OF_LSN + LEN_LSN));
+    }
+
+    public void setLsn(long lsn) {
+        // 同一页上的多条更新可能并发写日志，取最大的
+        lock.lock();
+        try {
+            if(lsn > getLsn()) {
+                System.arraycopy(Parser.long2Byte(lsn), 0, data, OF_LSN, LEN_LSN);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getRecLsn() {
+        return recLsn;
+    }
+
+    /**
+     * 在页锁内计数，检查点持页锁写页时不会有新的修改开始
+     */
+    public void beginUpdate() {
+        lock.lock();
+        try {
+            updating.incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void endUpdate() {
+        updating.decrementAndGet();
+    }
+
+    public boolean isUpdating() {
+        return updating.get() > 0;
+    }
+
 }
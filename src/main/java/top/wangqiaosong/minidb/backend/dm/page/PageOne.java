@@ -2,7 +2,7 @@ package top.wangqiaosong.minidb.backend.dm.page;
 
 import java.util.Arrays;
 
-import top.wangqiaosong.minidb.backend.dm.pageCache.PageCache;
+import top.wangqiaosong.minidb.backend.utils.Parser;
 import top.wangqiaosong.minidb.backend.utils.RandomUtil;
 
 /**
@@ -10,20 +10,48 @@ import top.wangqiaosong.minidb.backend.utils.RandomUtil;
  * ValidCheck
  * db启动时给100~107字节处填入一个随机字节，db关闭时将其拷贝到108~115字节
  * 用于判断上一次数据库是否正常关闭
+ * 前8字节同普通页一样是PageLSN，之后4字节是创建时选定的页大小，再之后1字节是标志位
+ * 再之后4字节是正常关闭时的页数，文件按区预分配后文件长度不再等于页数
  */
 public class PageOne {
+    public static final int OF_PAGE_SIZE = Page.OF_LSN + Page.LEN_LSN;
+    public static final int OF_FLAGS = OF_PAGE_SIZE + 4;
+    public static final int OF_PAGE_COUNT = OF_FLAGS + 1;
+    // 其余页在文件中是压缩存放的
+    private static final byte FLAG_COMPRESS = 1;
     private static final int OF_VC = 100;
     private static final int LEN_VC = 8;
 
     /**
      * 第一页初始化，随机字节
      */
-    public static byte[] InitRaw() {
-        byte[] raw = new byte[PageCache.PAGE_SIZE];
+    public static byte[] InitRaw(int pageSize, boolean compress) {
+        byte[] raw = new byte[pageSize];
+        System.arraycopy(Parser.int2Byte(pageSize), 0, raw, OF_PAGE_SIZE, 4);
+        if(compress) {
+            raw[OF_FLAGS] |= FLAG_COMPRESS;
+        }
         setVcOpen(raw);
         return raw;
     }
 
+    public static int getPageSize(byte[] raw) {
+        return Parser.parseInt(Arrays.copyOfRange(raw, OF_PAGE_SIZE, OF_PAGE_SIZE + 4));
+    }
+
+    public static boolean isCompressed(byte[] raw) {
+        return (raw[OF_FLAGS] & FLAG_COMPRESS) != 0;
+    }
+
+    public static int getPageCount(byte[] raw) {
+        return Parser.parseInt(Arrays.copyOfRange(raw, OF_PAGE_COUNT, OF_PAGE_COUNT + 4));
+    }
+
+    public static void setPageCount(Page pg, int pageCount) {
+        pg.setDirty(true);
+        System.arraycopy(Parser.int2Byte(pageCount), 0, pg.getData(), OF_PAGE_COUNT, 4);
+    }
+
     public static void setVcOpen(Page pg) {
         pg.setDirty(true);
         setVcOpen(pg.getData());
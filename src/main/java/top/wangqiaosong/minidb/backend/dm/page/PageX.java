@@ -1,84 +1,249 @@
 package top.wangqiaosong.minidb.backend.dm.page;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
 
-import top.wangqiaosong.minidb.backend.dm.pageCache.PageCache;
-import top.wangqiaosong.minidb.backend.utils.Parser;
+import top.wangqiaosong.minidb.backend.utils.Panic;
+import top.wangqiaosong.minidb.common.Error;
 
 /**
  * PageX管理普通页
- * 普通页结构
- * [Free  Space   Offset] [Data]
- * Free Space Offset: 2字节 空闲位置开始偏移
- * [Free Space Offset] 表示空闲空间的位置指针.
- * 空闲空间指存放数据的地方
- * Free Space Offset实际相当于一个指针，2字节的数字代表位置，表示从哪里开始存数据
+ * 普通页是槽页结构
+ * [PageLSN] [SlotCount] [DataStart] [Garbage] [Slot 0] [Slot 1] ... [空闲空间] ... [Data]
+ * PageLSN: 8字节 见Page
+ * SlotCount: 2字节 槽目录中槽的个数
+ * DataStart: 2字节 最靠前的一条记录的位置，它和槽目录末尾之间是连续的空闲空间
+ * Garbage: 2字节 数据区中已释放的记录留下的字节数，整理(compact)后归0
+ * 槽目录从页头往后长，记录从页尾往前长，每个槽4字节：[Offset 2][Length 2]，Offset为0表示空槽
+ * uid中存的是槽号，记录在页内移动只改槽中的Offset，uid不变
+ * 2字节字段都按无符号数读取，32KB的页刚初始化时DataStart为32768
+ * 页大小由数据库创建时决定，各方法都以页数据的长度为准
  */
 public class PageX {
-    //raw代表 mysql中传输的字节数据
-    private static final short OF_FREE = 0;
-    // 一个普通页面以一个 2 字节无符号数起始，表示这一页的空闲位置的偏移。剩下的部分都是实际存储的data数据。
-    private static final short OF_DATA = 2;
+    private static final int OF_SLOT_COUNT = Page.OF_LSN + Page.LEN_LSN;
+    private static final int OF_DATA_START = OF_SLOT_COUNT + 2;
+    private static final int OF_GARBAGE = OF_DATA_START + 2;
+    private static final int OF_SLOTS = OF_GARBAGE + 2;
+    private static final int LEN_SLOT = 4;
+
     /**
-     * 空闲空间=页大小-初始占的2字节
+     * 一条记录最多能用的空间=页大小-页头-一个槽
      */
-    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
+    public static int maxFreeSpace(int pageSize) {
+        return pageSize - OF_SLOTS - LEN_SLOT;
+    }
 
-    public static byte[] initRaw() {
-        byte[] raw = new byte[PageCache.PAGE_SIZE];
-        //普通页设置数据空间，pageX是普通页
-        setFSO(raw, OF_DATA);
+    public static byte[] initRaw(int pageSize) {
+        byte[] raw = new byte[pageSize];
+        setU16(raw, OF_DATA_START, pageSize);
         return raw;
     }
 
-    //插入数据 raw是插入数据，ofData表示要复制的数组，raw表示复制到的目的数组
-    //srcPos指源数组要复制的起始位置，destPos指目的数组放置的起始位置，OF_DATA为复制的长度
-    private static void setFSO(byte[] raw, short ofData) {
-        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+    private static int getU16(byte[] raw, int offset) {
+        return (raw[offset] & 0xFF) << 8 | (raw[offset + 1] & 0xFF);
+    }
+
+    private static void setU16(byte[] raw, int offset, int value) {
+        raw[offset] = (byte)(value >>> 8);
+        raw[offset + 1] = (byte)value;
+    }
+
+    private static int slotPos(int slot) {
+        return OF_SLOTS + slot * LEN_SLOT;
+    }
+
+    private static int slotCount(byte[] raw) {
+        return getU16(raw, OF_SLOT_COUNT);
+    }
+
+    // 第一个空槽，没有空槽时是新增的槽
+    private static int freeSlot(byte[] raw) {
+        int n = slotCount(raw);
+        for(int i = 0; i < n; i ++) {
+            if(getU16(raw, slotPos(i)) == 0) {
+                return i;
+            }
+        }
+        return n;
+    }
+
+    // 槽目录末尾到DataStart之间的连续空闲空间
+    private static int contiguous(byte[] raw) {
+        return getU16(raw, OF_DATA_START) - slotPos(slotCount(raw));
+    }
+
+    // 放入length字节的记录需要的空间，没有空槽时还要算上一个新槽
+    private static int needed(byte[] raw, int length) {
+        return length + (freeSlot(raw) == slotCount(raw) ? LEN_SLOT : 0);
+    }
+
+    /**
+     * 记录在页内的位置，空槽或槽号越界返回0
+     */
+    public static int getOffset(Page pg, short slot) {
+        byte[] raw = pg.getData();
+        int s = slot & 0xFFFF;
+        if(s >= slotCount(raw)) {
+            return 0;
+        }
+        return getU16(raw, slotPos(s));
+    }
+
+    /**
+     * 下一条记录将放入的槽，写insert日志时用
+     */
+    public static short nextSlot(Page pg) {
+        return (short)freeSlot(pg.getData());
     }
 
-    // 获取pg的FSO
-    public static short getFSO(Page pg) {
-        return getFSO(pg.getData());
+    /**
+     * 页能否放下length字节的记录(可能需要先整理)
+     */
+    public static boolean canInsert(Page pg, int length) {
+        return getFreeSpace(pg) >= length;
     }
 
     /**
-     * raw代表数据库传递的字节数据
-     * 拿setFSO放入的字节数据
+     * 连续空闲空间放不下，但加上已释放的空间能放下，插入前要先整理
      */
-    private static short getFSO(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
+    public static boolean needCompact(Page pg, int length) {
+        byte[] raw = pg.getData();
+        int need = needed(raw, length);
+        return contiguous(raw) < need && contiguous(raw) + getU16(raw, OF_GARBAGE) >= need;
     }
 
-    // 将raw插入pg中，返回插入位置
+    // 将raw插入pg中，返回插入的槽号，调用前保证连续空闲空间足够
     public static short insert(Page pg, byte[] raw) {
         pg.setDirty(true);
-        short offset = getFSO(pg.getData());
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
-        setFSO(pg.getData(), (short) (offset + raw.length));
-        return offset;
+        byte[] data = pg.getData();
+        int slot = freeSlot(data);
+        place(data, slot, raw);
+        return (short)slot;
     }
 
-    // 获取页面的空闲空间大小
-    public static int getFreeSpace(Page pg) {
-        return PageCache.PAGE_SIZE - (int) getFSO(pg.getData());
+    private static void place(byte[] data, int slot, byte[] raw) {
+        int n = slotCount(data);
+        if(slot >= n) {
+            // 中间补出来的槽都是空槽
+            for(int i = slotPos(n); i < slotPos(slot + 1); i ++) {
+                data[i] = 0;
+            }
+            setU16(data, OF_SLOT_COUNT, slot + 1);
+        }
+        int offset = getU16(data, OF_DATA_START) - raw.length;
+        System.arraycopy(raw, 0, data, offset, raw.length);
+        setU16(data, OF_DATA_START, offset);
+        setU16(data, slotPos(slot) + 2, raw.length);
+        setU16(data, slotPos(slot), offset);
     }
 
-    // 将raw插入pg中的offset位置，并将pg的offset设置为较大的offset(崩溃后恢复数据阶段)
-    public static void recoverInsert(Page pg, byte[] raw, short offset) {
-        //插入数据时页变为脏页
+    /**
+     * 释放一个槽，记录占的空间计入Garbage，等整理时收回
+     * 紧挨着DataStart的记录直接收回；末尾的空槽从槽目录中去掉
+     */
+    public static void free(Page pg, short slot) {
+        byte[] data = pg.getData();
+        int s = slot & 0xFFFF;
+        int n = slotCount(data);
+        if(s >= n || getU16(data, slotPos(s)) == 0) {
+            return;
+        }
+        pg.setDirty(true);
+        int offset = getU16(data, slotPos(s));
+        int length = getU16(data, slotPos(s) + 2);
+        if(offset == getU16(data, OF_DATA_START)) {
+            setU16(data, OF_DATA_START, offset + length);
+        } else {
+            setU16(data, OF_GARBAGE, getU16(data, OF_GARBAGE) + length);
+        }
+        setU16(data, slotPos(s), 0);
+        setU16(data, slotPos(s) + 2, 0);
+        while(n > 0 && getU16(data, slotPos(n - 1)) == 0) {
+            n --;
+        }
+        setU16(data, OF_SLOT_COUNT, n);
+    }
+
+    /**
+     * 把所有记录挪到页尾连成一片，Garbage并入连续空闲空间
+     * 会移动记录，调用者必须保证没有别人持有这一页上的记录
+     */
+    public static void compact(Page pg) {
         pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        byte[] data = pg.getData();
+        int n = slotCount(data);
+        List<Integer> slots = new ArrayList<>();
+        for(int i = 0; i < n; i ++) {
+            if(getU16(data, slotPos(i)) != 0) {
+                slots.add(i);
+            }
+        }
+        // 从最靠后的记录开始往后挪，目标位置总不小于原位置，不会覆盖还没挪的记录
+        slots.sort((a, b) -> getU16(data, slotPos(b)) - getU16(data, slotPos(a)));
+        int end = data.length;
+        for(int slot : slots) {
+            int offset = getU16(data, slotPos(slot));
+            int length = getU16(data, slotPos(slot) + 2);
+            end -= length;
+            System.arraycopy(data, offset, data, end, length);
+            setU16(data, slotPos(slot), end);
+        }
+        setU16(data, OF_DATA_START, end);
+        setU16(data, OF_GARBAGE, 0);
+    }
+
+    /**
+     * 获取页面还能放下的最大记录，包括已释放但还没整理的空间
+     */
+    public static int getFreeSpace(Page pg) {
+        byte[] raw = pg.getData();
+        return Math.max(0, contiguous(raw) + getU16(raw, OF_GARBAGE) - needed(raw, 0));
+    }
+
+    /**
+     * 不整理时页面能放下的最大记录
+     */
+    public static int getContiguousFreeSpace(Page pg) {
+        byte[] raw = pg.getData();
+        return Math.max(0, contiguous(raw) - needed(raw, 0));
+    }
 
-        short rawFSO = getFSO(pg.getData());
-        if (rawFSO < offset + raw.length) {
-            setFSO(pg.getData(), (short) (offset + raw.length));
+    // 将raw放到pg的slot中(崩溃后恢复数据阶段)，槽中已有同样长度的记录时原地覆盖
+    public static void recoverInsert(Page pg, byte[] raw, short slot) {
+        pg.setDirty(true);
+        byte[] data = pg.getData();
+        int s = slot & 0xFFFF;
+        int offset = getOffset(pg, slot);
+        if(offset != 0) {
+            if(getU16(data, slotPos(s) + 2) == raw.length) {
+                System.arraycopy(raw, 0, data, offset, raw.length);
+                return;
+            }
+            free(pg, slot);
+        }
+        int need = raw.length + Math.max(0, s + 1 - slotCount(data)) * LEN_SLOT;
+        if(contiguous(data) < need) {
+            // 恢复时每页只由一个redo线程改，也没有被引用的记录，可以直接整理
+            compact(pg);
+        }
+        if(contiguous(data) < need) {
+            Panic.panic(Error.BadPageException);
         }
+        place(data, s, raw);
     }
 
-    // 将raw插入pg中的offset位置，不更新update
-    public static void recoverUpdate(Page pg, byte[] raw, short offset) {
+    // 将raw覆盖到slot中记录的start处(崩溃后恢复数据阶段)
+    public static void recoverUpdate(Page pg, short slot, int start, byte[] raw) {
+        int offset = getOffset(pg, slot);
+        if(offset == 0) {
+            return;
+        }
         pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        System.arraycopy(raw, 0, pg.getData(), offset + start, raw.length);
+    }
+
+    // 释放slot(崩溃后恢复数据阶段)，已经是空槽时什么也不做
+    public static void recoverFree(Page pg, short slot) {
+        free(pg, slot);
     }
 }
@@ -0,0 +1,161 @@
+package top.wangqiaosong.minidb.backend.dm.pageCache;
+
+import java.util.Arrays;
+
+/**
+ * LZ4块格式的纯Java实现，只用于压缩单个页
+ * 每个序列：[token][字面量长度扩展][字面量][偏移2字节小端][匹配长度扩展]
+ * token高4位是字面量长度，低4位是匹配长度-4，等于15时后面跟若干字节累加，遇到非255的字节结束
+ */
+final class Lz4 {
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_LOG = 12;
+    // 最后5个字节必须是字面量，最后一个匹配至少离末尾12字节开始
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_OFFSET = 65535;
+    // 连续找不到匹配时逐渐加大步长，不可压缩的页很快扫完
+    private static final int SKIP_TRIGGER = 6;
+
+    private static final ThreadLocal<int[]> TABLE = ThreadLocal.withInitial(() -> new int[1 << HASH_LOG]);
+
+    private Lz4() {}
+
+    /**
+     * 把src的前len字节压缩写到dst的[dstOff, dstLimit)中
+     * 返回写完后在dst中的位置，放不下返回-1
+     */
+    static int compress(byte[] src, int len, byte[] dst, int dstOff, int dstLimit) {
+        int[] table = TABLE.get();
+        Arrays.fill(table, -1);
+        int anchor = 0, ip = 0, op = dstOff;
+        int matchLimit = len - MF_LIMIT;
+        while(ip < matchLimit) {
+            int seq = readInt(src, ip);
+            int h = hash(seq);
+            int ref = table[h];
+            table[h] = ip;
+            if(ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+                ip += 1 + ((ip - anchor) >>> SKIP_TRIGGER);
+                continue;
+            }
+            // 向前扩展匹配
+            while(ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+                ip --;
+                ref --;
+            }
+            // 向后扩展匹配
+            int end = ip + MIN_MATCH, r = ref + MIN_MATCH;
+            int limit = len - LAST_LITERALS;
+            while(end < limit && src[end] == src[r]) {
+                end ++;
+                r ++;
+            }
+            op = writeSequence(src, anchor, ip - anchor, ip - ref, end - ip - MIN_MATCH, dst, op, dstLimit);
+            if(op < 0) {
+                return -1;
+            }
+            ip = end;
+            anchor = ip;
+        }
+        return writeSequence(src, anchor, len - anchor, 0, -1, dst, op, dstLimit);
+    }
+
+    /**
+     * matchLen为-1表示最后一个只有字面量的序列
+     */
+    private static int writeSequence(byte[] src, int litStart, int litLen, int offset, int matchLen,
+                                     byte[] dst, int op, int dstLimit) {
+        int need = 1 + litLen + litLen / 255 + 1 + (matchLen < 0 ? 0 : 2 + matchLen / 255 + 1);
+        if(op + need > dstLimit) {
+            return -1;
+        }
+        int token = Math.min(litLen, 15) << 4;
+        if(matchLen >= 0) {
+            token |= Math.min(matchLen, 15);
+        }
+        dst[op ++] = (byte)token;
+        if(litLen >= 15) {
+            op = writeLength(litLen - 15, dst, op);
+        }
+        System.arraycopy(src, litStart, dst, op, litLen);
+        op += litLen;
+        if(matchLen < 0) {
+            return op;
+        }
+        dst[op ++] = (byte)offset;
+        dst[op ++] = (byte)(offset >>> 8);
+        if(matchLen >= 15) {
+            op = writeLength(matchLen - 15, dst, op);
+        }
+        return op;
+    }
+
+    private static int writeLength(int len, byte[] dst, int op) {
+        while(len >= 255) {
+            dst[op ++] = (byte)255;
+            len -= 255;
+        }
+        dst[op ++] = (byte)len;
+        return op;
+    }
+
+    /**
+     * 把src的[srcOff, srcEnd)解压到dst，返回解压出的字节数，数据损坏返回-1
+     */
+    static int decompress(byte[] src, int srcOff, int srcEnd, byte[] dst) {
+        int ip = srcOff, op = 0;
+        try {
+            while(ip < srcEnd) {
+                int token = src[ip ++] & 0xFF;
+                int lit = token >>> 4;
+                if(lit == 15) {
+                    int b;
+                    do {
+                        b = src[ip ++] & 0xFF;
+                        lit += b;
+                    } while(b == 255);
+                }
+                if(ip + lit > srcEnd) {
+                    return -1;
+                }
+                System.arraycopy(src, ip, dst, op, lit);
+                ip += lit;
+                op += lit;
+                if(ip >= srcEnd) {
+                    break;
+                }
+                int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+                ip += 2;
+                int match = token & 15;
+                if(match == 15) {
+                    int b;
+                    do {
+                        b = src[ip ++] & 0xFF;
+                        match += b;
+                    } while(b == 255);
+                }
+                match += MIN_MATCH;
+                int ref = op - offset;
+                if(offset == 0 || ref < 0) {
+                    return -1;
+                }
+                // 匹配可能与输出重叠，只能逐字节拷贝
+                for(int i = 0; i < match; i ++) {
+                    dst[op ++] = dst[ref ++];
+                }
+            }
+        } catch(ArrayIndexOutOfBoundsException e) {
+            return -1;
+        }
+        return op;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+    }
+
+    private static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
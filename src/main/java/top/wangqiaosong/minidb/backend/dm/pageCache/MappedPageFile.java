@@ -0,0 +1,170 @@
+package top.wangqiaosong.minidb.backend.dm.pageCache;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import top.wangqiaosong.minidb.backend.utils.Panic;
+
+/**
+ * 用内存映射读写.db文件
+ * 文件按CHUNK_SIZE分块映射，读写页时直接拷贝映射区，不走系统调用，也不需要全局文件锁
+ * 映射会把文件撑到块的边界，逻辑长度由size记录，关闭时把文件截回逻辑长度
+ */
+class MappedPageFile implements PageFile {
+    // 每块64MB，是页大小的整数倍，一页不会跨块
+    static final long CHUNK_SIZE = 1L << 26;
+    private static final int OS_PAGE_SIZE = 4096;
+
+    private RandomAccessFile file;
+    private FileChannel fc;
+    private volatile MappedByteBuffer[] chunks;
+    // 只在新增映射和截断时加锁
+    private Lock mapLock;
+    private AtomicLong size;
+
+    MappedPageFile(RandomAccessFile file, FileChannel fc) {
+        this.file = file;
+        this.fc = fc;
+        this.chunks = new MappedByteBuffer[0];
+        this.mapLock = new ReentrantLock();
+        long length = 0;
+        try {
+            length = file.length();
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        this.size = new AtomicLong(length);
+    }
+
+    private MappedByteBuffer chunk(int idx) {
+        MappedByteBuffer[] cs = chunks;
+        if(idx < cs.length && cs[idx] != null) {
+            return cs[idx];
+        }
+        mapLock.lock();
+        try {
+            cs = Arrays.copyOf(chunks, Math.max(chunks.length, idx + 1));
+            if(cs[idx] == null) {
+                cs[idx] = fc.map(FileChannel.MapMode.READ_WRITE, idx * CHUNK_SIZE, CHUNK_SIZE);
+            }
+            chunks = cs;
+            return cs[idx];
+        } catch(IOException e) {
+            Panic.panic(e);
+        } finally {
+            mapLock.unlock();
+        }
+        return null;
+    }
+
+    /**
+     * 每次取一个独立position的视图，多个线程可以同时读写同一块
+     */
+    private ByteBuffer view(long offset) {
+        ByteBuffer buf = chunk((int)(offset / CHUNK_SIZE)).duplicate();
+        buf.position((int)(offset % CHUNK_SIZE));
+        return buf;
+    }
+
+    @Override
+    public void read(long offset, byte[] buf) {
+        view(offset).get(buf);
+    }
+
+    @Override
+    public void read(long offset, byte[] buf, int length) {
+        view(offset).get(buf, 0, length);
+    }
+
+    @Override
+    public void write(long offset, byte[] buf) {
+        write(offset, buf, buf.length);
+    }
+
+    @Override
+    public void write(long offset, byte[] buf, int length) {
+        view(offset).put(buf, 0, length);
+        extend(offset + length);
+    }
+
+    /**
+     * 只改逻辑长度，映射区本来就覆盖到块的边界
+     */
+    @Override
+    public void extend(long end) {
+        long cur;
+        while((cur = size.get()) < end && !size.compareAndSet(cur, end)) {
+        }
+    }
+
+    /**
+     * 每个操作系统页摸一个字节，触发缺页把映射区读进内存
+     */
+    @Override
+    public void prefetch(long offset, int length) {
+        for(long p = offset; p < offset + length; p += OS_PAGE_SIZE) {
+            ByteBuffer buf = chunk((int)(p / CHUNK_SIZE));
+            buf.get((int)(p % CHUNK_SIZE));
+        }
+    }
+
+    /**
+     * 映射本身已经按块把文件撑大，这里只推进逻辑长度
+     */
+    @Override
+    public void preallocate(long from, long to) {
+        extend(to);
+    }
+
+    @Override
+    public void force() {
+        for(MappedByteBuffer chunk : chunks) {
+            if(chunk != null) {
+                chunk.force();
+            }
+        }
+    }
+
+    @Override
+    public long length() {
+        return size.get();
+    }
+
+    /**
+     * 只在恢复时调用，此时没有其他线程访问映射
+     */
+    @Override
+    public void setLength(long length) {
+        mapLock.lock();
+        try {
+            // 旧的映射超出了新的文件末尾，丢掉后按需重新映射
+            chunks = new MappedByteBuffer[0];
+            file.setLength(length);
+            size.set(length);
+        } catch(IOException e) {
+            Panic.panic(e);
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            force();
+            chunks = new MappedByteBuffer[0];
+            file.setLength(size.get());
+            fc.close();
+            file.close();
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+}
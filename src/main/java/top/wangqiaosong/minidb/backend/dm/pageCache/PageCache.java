@@ -5,6 +5,7 @@ import java.io.FileNotFoundException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
 
+import top.wangqiaosong.minidb.backend.dm.logger.Logger;
 import top.wangqiaosong.minidb.backend.dm.page.Page;
 import top.wangqiaosong.minidb.backend.utils.Panic;
 import top.wangqiaosong.minidb.common.Error;
@@ -16,20 +17,85 @@ import top.wangqiaosong.minidb.common.Error;
 public interface PageCache {
     //向左移位，其实就是8192,2的13次方B，数据页大小默认为8KB
     /**
-     * 页大小8Kb
+     * 默认页大小8Kb
      */
     public static final int PAGE_SIZE = 1 << 13;
+    /**
+     * 可选的页大小范围，必须是2的幂
+     * 页内偏移和DataItem长度都是2字节，所以上限是32KB
+     */
+    public static final int MIN_PAGE_SIZE = 1 << 12;
+    public static final int MAX_PAGE_SIZE = 1 << 15;
+    /**
+     * 可选的区大小范围
+     */
+    public static final int MIN_EXTENT_SIZE = 1 << 20;
+    public static final int MAX_EXTENT_SIZE = 1 << 26;
 
     int newPage(byte[] initData);
     Page getPage(int pgno) throws Exception;
+    /**
+     * 一次取多页，未命中的页同时读，全部引用后按pgnos的顺序返回
+     * 每个返回的页都要各自release，一次取的页数要远小于缓存容量
+     */
+    Page[] getPages(int[] pgnos) throws Exception;
     void close();
     void release(Page page);
 
     void truncateByBgno(int maxPgno);
     int getPageNumber();
+    int getPageSize();
+    /**
+     * 除第一页外，页在文件中是否压缩存放
+     */
+    boolean isCompressed();
     void flushPage(Page pg);
 
+    /**
+     * pg只被调用者引用时，在别的线程拿不到它的情况下执行action，返回是否执行了
+     * 用于在页内移动记录
+     */
+    boolean runExclusive(Page pg, Runnable action);
+
+    /**
+     * 当前线程开始批量读(全表扫描等)，之后读入的页只在一个小环中循环使用，不挤占热点页
+     * 必须与endBulkRead成对调用，可以嵌套
+     */
+    void beginBulkRead();
+    void endBulkRead();
+
+    /**
+     * 提示将要读[fromPgno, fromPgno+count)的页，异步预读，不等待读完
+     */
+    void prefetch(int fromPgno, int count);
+
+    /**
+     * 写回页之前先把日志刷到该页的PageLSN
+     */
+    void setLogger(Logger logger);
+
+    /**
+     * 检查点：写回缓存中能写的脏页(包括被引用着的页)并刷盘，
+     * 返回仍未写回的脏页中最小的RecLSN，没有时返回Long.MAX_VALUE
+     */
+    long flushForCheckpoint();
+
+    /**
+     * 恢复时用日志中的页镜像覆盖页在文件中的内容，要在redo读这一页之前调用
+     */
+    void restorePage(int pgno, byte[] data);
+
     public static PageCacheImpl create(String path, long memory) {
+        return create(path, memory, new PageCacheOptions());
+    }
+
+    public static PageCacheImpl create(String path, long memory, PageCacheOptions opt) {
+        if(!PageCacheImpl.validPageSize(opt.pageSize)) {
+            Panic.panic(Error.InvalidPageSizeException);
+        }
+        if(!PageCacheImpl.validExtentSize(opt.extentSize, opt.pageSize)) {
+            Panic.panic(Error.InvalidExtentSizeException);
+        }
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
         try {
             if(!f.createNewFile()) {
@@ -50,11 +116,16 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
            Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        PageFile pf = opt.mmap ? new MappedPageFile(raf, fc) : new PageFileImpl(raf, fc);
+        return new PageCacheImpl(pf, (int)(memory/opt.pageSize), opt.pageSize, opt.compress, opt.extentSize);
 
     }
 
     public static PageCacheImpl open(String path, long memory) {
+        return open(path, memory, new PageCacheOptions());
+    }
+
+    public static PageCacheImpl open(String path, long memory, PageCacheOptions opt) {
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
         if(!f.exists()) {
             Panic.panic(Error.FileNotExistsException);
@@ -71,6 +142,11 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
            Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        PageFile pf = opt.mmap ? new MappedPageFile(raf, fc) : new PageFileImpl(raf, fc);
+        int pageSize = PageCacheImpl.readPageSize(pf);
+        if(!PageCacheImpl.validExtentSize(opt.extentSize, pageSize)) {
+            Panic.panic(Error.InvalidExtentSizeException);
+        }
+        return new PageCacheImpl(pf, (int)(memory/pageSize), pageSize, PageCacheImpl.readCompressed(pf), opt.extentSize);
     }
 }
@@ -1,61 +1,367 @@
 package top.wangqiaosong.minidb.backend.dm.pageCache;
 
-import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import com.google.common.util.concurrent.Uninterruptibles;
+
 import top.wangqiaosong.minidb.backend.common.AbstractCache;
+import top.wangqiaosong.minidb.backend.dm.Recover;
+import top.wangqiaosong.minidb.backend.dm.logger.Logger;
 import top.wangqiaosong.minidb.backend.dm.page.Page;
 import top.wangqiaosong.minidb.backend.dm.page.PageImpl;
+import top.wangqiaosong.minidb.backend.dm.page.PageOne;
 import top.wangqiaosong.minidb.backend.utils.Panic;
+import top.wangqiaosong.minidb.backend.utils.Parser;
 import top.wangqiaosong.minidb.common.Error;
 
 /**
  * 讲一下为什么用this
+ * 页面释放后仍留在缓存中，缓存满时由AbstractCache按CLOCK算法驱逐，脏页在驱逐时写回
+ * 驱逐和新建页只写入文件不刷盘，刷盘交给后台写线程按批进行；数据的持久性由先刷盘的日志保证
+ * 任何页写回前都先把日志刷到该页的PageLSN(WAL)，并把整页作为页镜像记进日志一起刷盘，
+ * 写到一半崩溃的页恢复时用镜像修好，redo才能按PageLSN跳过日志
+ * 每个线程的访问按等间隔检测顺序/跨步读，命中后由预读线程异步把后面的页读进操作系统页缓存
+ * 预读不经过本缓存，不会挤掉热点页，只是让之后的未命中不用等磁盘
+ * getPages一次取多页时，未命中的页交给读线程池同时读，不再一页页等磁盘
+ * 开启压缩后，除第一页外的页写回时先压缩，放在页原本位置的开头，页的剩余部分不写，
+ * 在支持稀疏文件的文件系统上不占磁盘；压不小的页原样存放
+ * 设置了区大小时，文件按区一次预分配，新页从已分配的区中取，不用每页都修改文件元数据
  */
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     
     private static final int MEM_MIN_LIM = 10;
     public static final String DB_SUFFIX = ".db";
+    /**
+     * 批量读环的大小，32页即256KB
+     */
+    public static final int BULK_READ_RING_SIZE = 32;
+
+    /**
+     * 一次批量读私有的页环，记录由扫描自己读入的页
+     */
+    private static class BulkReadRing {
+        ArrayDeque<Integer> pages = new ArrayDeque<>();
+        int depth;
+    }
+
+    /**
+     * 一次预读的页数
+     */
+    public static final int PREFETCH_PAGES = 16;
+    // 连续两次相同间隔(三次访问)后开始预读
+    private static final int PREFETCH_TRIGGER = 2;
+    // 超过这个间隔不认为是跨步读
+    private static final int PREFETCH_MAX_STRIDE = 16;
+    private static final int PREFETCH_THREADS = 2;
+    private static final int PREFETCH_QUEUE = 256;
+    /**
+     * getPages的读线程数
+     */
+    public static final int READ_THREADS = 4;
+    /**
+     * 检查点一批最多引用的页数，一批的页镜像只刷一次日志
+     */
+    private static final int CHECKPOINT_BATCH = 64;
 
-    private RandomAccessFile file;
-    private FileChannel fc;
-    private Lock fileLock;
+    /**
+     * 压缩页在文件中的格式：[最高位为1|压缩后长度 4字节][LZ4数据]
+     * 原样存放的页开头是非负的PageLSN，最高位总是0，两者不会混淆
+     */
+    private static final int COMPRESSED = 0x80000000;
+    private static final int LEN_SLOT_HEADER = 4;
+
+    /**
+     * 一个线程的访问流
+     */
+    private static class Stream {
+        int lastPgno;
+        int stride;
+        int run;
+        int prefetchedUntil;
+    }
+
+    private PageFile pf;
+    private int pageSize;
+    private boolean compress;
+    /**
+     * 区大小和文件已分配到的位置，allocated之前的页都可以直接写
+     */
+    private long extentSize;
+    private volatile long allocated;
+    private Lock extentLock;
+    // 压缩和解压用的缓冲区，每个线程一个
+    private ThreadLocal<byte[]> slotBuf;
+    private PageFramePool frames;
+    private volatile Logger logger;
     /**
      * 非阻塞模型，线程安全的Integer
      */
     private AtomicInteger pageNumbers;
+    private ThreadLocal<BulkReadRing> bulkRead = new ThreadLocal<>();
+    private ThreadLocal<Stream> stream = ThreadLocal.withInitial(Stream::new);
+    /**
+     * 预读只是提示，队列满了直接丢弃
+     */
+    private ThreadPoolExecutor prefetcher;
+    /**
+     * getPages的读线程池，调用者会等待结果，任务不能丢
+     */
+    private ThreadPoolExecutor reader;
+
+    /**
+     * 后台写线程，脏页释放累计到writerThreshold个时被唤醒
+     */
+    private Thread writer;
+    private Lock writerLock;
+    private Condition writerWakeUp;
+    private AtomicInteger dirtyReleased;
+    private int writerThreshold;
+    private volatile boolean closed;
 
     PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource) {
-        super(maxResource);
+        this(new PageFileImpl(file, fileChannel), maxResource);
+    }
+
+    PageCacheImpl(PageFile pf, int maxResource) {
+        this(pf, maxResource, PAGE_SIZE);
+    }
+
+    PageCacheImpl(PageFile pf, int maxResource, int pageSize) {
+        this(pf, maxResource, pageSize, false);
+    }
+
+    PageCacheImpl(PageFile pf, int maxResource, int pageSize, boolean compress) {
+        this(pf, maxResource, pageSize, compress, 0);
+    }
+
+    PageCacheImpl(PageFile pf, int maxResource, int pageSize, boolean compress, int extentSize) {
+        super(maxResource, DEFAULT_SEGMENTS, true);
         if(maxResource < MEM_MIN_LIM) {
             Panic.panic(Error.MemTooSmallException);
         }
-        long length = 0;
-        try {
-            length = file.length();
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        this.file = file;
-        this.fc = fileChannel;
-        this.fileLock = new ReentrantLock();
-        this.pageNumbers = new AtomicInteger((int)length / PAGE_SIZE);
+        long length = pf.length();
+        this.pf = pf;
+        this.pageSize = pageSize;
+        this.compress = compress;
+        this.slotBuf = ThreadLocal.withInitial(() -> new byte[pageSize]);
+        this.frames = new PageFramePool(maxResource, pageSize);
+        // 正常关闭过的数据库以第一页记录的页数为准，文件末尾可能还有预分配的空间
+        int recorded = readPageCount(pf);
+        this.pageNumbers = new AtomicInteger(recorded > 0 ? recorded : (int)(length / pageSize));
+        this.extentSize = extentSize;
+        this.allocated = length;
+        this.extentLock = new ReentrantLock();
+
+        this.writerLock = new ReentrantLock();
+        this.writerWakeUp = writerLock.newCondition();
+        this.dirtyReleased = new AtomicInteger(0);
+        this.writerThreshold = maxResource / 4;
+        this.writer = new Thread(this::writeLoop, "page-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+
+        this.prefetcher = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS, 1, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(PREFETCH_QUEUE), r -> {
+                    Thread t = new Thread(r, "page-prefetch");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.DiscardPolicy());
+        this.prefetcher.allowCoreThreadTimeOut(true);
+
+        this.reader = new ThreadPoolExecutor(READ_THREADS, READ_THREADS, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "page-reader");
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.reader.allowCoreThreadTimeOut(true);
     }
 
+    /**
+     * 新页的PageLSN记为当前日志末尾，修改它的日志都在这之后
+     */
     public int newPage(byte[] initData) {
+        Logger lg = logger;
+        if(lg != null) {
+            System.arraycopy(Parser.long2Byte(lg.tailLsn()), 0, initData, Page.OF_LSN, Page.LEN_LSN);
+        }
         int pgno = pageNumbers.incrementAndGet();
-        Page pg = new PageImpl(pgno, initData, null);
-        flush(pg);
+        allocate(pageOffset(pgno + 1));
+        // 新页的镜像不等刷盘：镜像没落盘时，之后改这一页的日志也没落盘，恢复时页会被截掉
+        logImage(pgno, initData);
+        writeSlot(pgno, initData);
         return pgno;
     }
 
+    /**
+     * 保证文件已分配到end，写页之前调用
+     * 新区只包含还没写过的页，预分配写0不会覆盖别的线程的页
+     */
+    private void allocate(long end) {
+        if(end <= allocated) {
+            return;
+        }
+        if(extentSize == 0) {
+            if(compress) {
+                // 压缩页写不满自己的位置，先把文件撑到页尾，重新打开时才能算对页数
+                pf.extend(end);
+            }
+            return;
+        }
+        extentLock.lock();
+        try {
+            if(end <= allocated) {
+                return;
+            }
+            long to = (end + extentSize - 1) / extentSize * extentSize;
+            if(compress) {
+                // 写0会把压缩页省下的空间占掉，只扩展长度
+                pf.extend(to);
+            } else {
+                pf.preallocate(allocated, to);
+            }
+            allocated = to;
+        } finally {
+            extentLock.unlock();
+        }
+    }
+
     public Page getPage(int pgno) throws Exception {
-        return get((long)pgno);
+        detectSequential(pgno);
+        BulkReadRing ring = bulkRead.get();
+        if(ring == null) {
+            return get((long)pgno);
+        }
+        // 环满了先回收最早读入的页，空出的位置留给这次读
+        while(ring.pages.size() >= BULK_READ_RING_SIZE) {
+            evictIfCold(ring.pages.pollFirst());
+        }
+        return get((long)pgno, true);
+    }
+
+    /**
+     * 命中的页直接引用，未命中的页都提交给读线程池
+     * 调用者自己不读文件：被中断的线程读FileChannel会把它关掉
+     * 提交出去的读全部结束后才返回，调用者被中断也照样等完(中断标记保留)，读线程引用的页总有人释放
+     * 任何一页失败都会释放已经引用的页，再抛出第一个异常
+     */
+    public Page[] getPages(int[] pgnos) throws Exception {
+        Page[] pages = new Page[pgnos.length];
+        List<Integer> misses = new ArrayList<>();
+        for(int i = 0; i < pgnos.length; i ++) {
+            pages[i] = getIfCached((long)pgnos[i]);
+            if(pages[i] == null) {
+                misses.add(i);
+            }
+        }
+        if(misses.isEmpty()) {
+            return pages;
+        }
+
+        List<Future<Page>> futures = new ArrayList<>();
+        Exception err = null;
+        try {
+            for(int i : misses) {
+                long pgno = pgnos[i];
+                futures.add(reader.submit(() -> get(pgno)));
+            }
+        } catch(Exception e) {
+            err = e;
+        }
+        for(int j = 0; j < futures.size(); j ++) {
+            try {
+                pages[misses.get(j)] = Uninterruptibles.getUninterruptibly(futures.get(j));
+            } catch(ExecutionException e) {
+                if(err == null) {
+                    err = e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+                }
+            }
+        }
+        if(err != null) {
+            for(Page pg : pages) {
+                if(pg != null) {
+                    release(pg);
+                }
+            }
+            throw err;
+        }
+        return pages;
+    }
+
+    /**
+     * 连续PREFETCH_TRIGGER次以相同的正间隔访问时，预读后面PREFETCH_PAGES个间隔的页
+     * 预读窗口剩一半时再向前推进，不会每次访问都提交
+     */
+    private void detectSequential(int pgno) {
+        Stream s = stream.get();
+        int stride = pgno - s.lastPgno;
+        if(stride > 0 && stride <= PREFETCH_MAX_STRIDE && stride == s.stride) {
+            s.run ++;
+        } else {
+            s.stride = stride;
+            s.run = 1;
+            s.prefetchedUntil = pgno;
+        }
+        s.lastPgno = pgno;
+        if(s.run < PREFETCH_TRIGGER || pgno + stride * PREFETCH_PAGES / 2 <= s.prefetchedUntil) {
+            return;
+        }
+        int from = Math.max(s.prefetchedUntil, pgno) + stride;
+        int until = pgno + stride * PREFETCH_PAGES;
+        s.prefetchedUntil = until;
+        if(stride == 1) {
+            prefetch(from, until - from + 1);
+            return;
+        }
+        for(int p = from; p <= until; p += stride) {
+            prefetch(p, 1);
+        }
+    }
+
+    public void prefetch(int fromPgno, int count) {
+        int until = Math.min(fromPgno + count - 1, pageNumbers.get());
+        // 按PREFETCH_PAGES切成多次读，单次读的缓冲区有上限
+        for(int from = Math.max(fromPgno, 1); from <= until && !closed; from += PREFETCH_PAGES) {
+            long offset = pageOffset(from);
+            int length = (Math.min(from + PREFETCH_PAGES - 1, until) - from + 1) * pageSize;
+            prefetcher.execute(() -> pf.prefetch(offset, length));
+        }
+    }
+
+    public void beginBulkRead() {
+        BulkReadRing ring = bulkRead.get();
+        if(ring == null) {
+            ring = new BulkReadRing();
+            bulkRead.set(ring);
+        }
+        ring.depth ++;
+    }
+
+    public void endBulkRead() {
+        BulkReadRing ring = bulkRead.get();
+        if(ring == null) {
+            return;
+        }
+        ring.depth --;
+        if(ring.depth == 0) {
+            // 剩下的页留给CLOCK，它们没有访问位，会最先被驱逐
+            bulkRead.remove();
+        }
     }
 
     /**
@@ -64,23 +370,20 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     @Override
     protected Page getForCache(long key) throws Exception {
         int pgno = (int)key;
-        long offset = PageCacheImpl.pageOffset(pgno);
-
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
-        fileLock.lock();
-        try {
-            fc.position(offset);
-            fc.read(buf);
-        } catch(IOException e) {
-            Panic.panic(e);
+        long offset = pageOffset(pgno);
+        BulkReadRing ring = bulkRead.get();
+        if(ring != null) {
+            ring.pages.addLast(pgno);
         }
-        fileLock.unlock();
+
+        byte[] buf = frames.allocate();
+        readSlot(pgno, buf);
         /**
          * this用法是将自己PageCache作为参数传入构造
          * 相当于接口实现类也可以代表接口
          * 这里代表了接口作为形参的意义！
          */
-        return new PageImpl(pgno, buf.array(), this);
+        return new PageImpl(pgno, buf, this);
         //也可以传一个内部类
 //        return new PageImpl(pgno, buf.array(), new PageCache() {
 //            @Override
@@ -123,44 +426,283 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     @Override
     protected void releaseForCache(Page pg) {
         if(pg.isDirty()) {
-            flush(pg);
+            writePage(pg, logImage(pg.getPageNumber(), pg.getData()));
             pg.setDirty(false);
         }
+        // 页已经不在缓存中，没有人持有它，页帧可以复用
+        frames.free(pg.getData());
+    }
+
+    /**
+     * 截断后丢掉的页不写回，页帧同样归还
+     */
+    @Override
+    protected void discardForCache(Page pg) {
+        frames.free(pg.getData());
+    }
+
+    int freeFrames() {
+        return frames.freeFrames();
+    }
+
+    int allocatedFrames() {
+        return frames.allocatedFrames();
     }
 
     public void release(Page page) {
+        boolean dirty = page.isDirty();
         release((long)page.getPageNumber());
+        if(dirty && dirtyReleased.incrementAndGet() == writerThreshold) {
+            writerLock.lock();
+            try {
+                writerWakeUp.signal();
+            } finally {
+                writerLock.unlock();
+            }
+        }
+    }
+
+    private void writeLoop() {
+        while(true) {
+            writerLock.lock();
+            try {
+                while(!closed && dirtyReleased.get() < writerThreshold) {
+                    writerWakeUp.await();
+                }
+                if(closed) {
+                    return;
+                }
+            } catch(InterruptedException e) {
+                return;
+            } finally {
+                writerLock.unlock();
+            }
+            dirtyReleased.set(0);
+            writeDirtyPages(0);
+        }
+    }
+
+    /**
+     * 把未被引用的脏页按页号顺序写回，整批只刷一次盘
+     * 段锁内只引用这些页，写日志、写页都在锁外，和flushForCheckpoint一样靠引用和页锁挡住修改
+     * 原本就被引用的页可能正在修改、日志还没写，留到下一批
+     */
+    private void writeDirtyPages(int exceptPgno) {
+        List<Page> pages = pinUnpinned(p -> p.isDirty() && p.getPageNumber() != exceptPgno);
+        if(pages.isEmpty()) {
+            return;
+        }
+        try {
+            writePages(pages);
+        } finally {
+            for(Page pg : pages) {
+                unpin(pg.getPageNumber());
+            }
+        }
+        pf.force();
+    }
+
+    /**
+     * 分两遍写回已被引用的页：先在页锁内逐页记下镜像，整批日志只刷一次，再逐页写原位置
+     * 两遍之间页可能又被改过，写出的比镜像新也没关系：新的修改都有日志，恢复时从镜像redo
+     * 正在修改的页跳过，返回它们中最小的RecLSN，没有时返回Long.MAX_VALUE
+     */
+    private long writePages(List<Page> pages) {
+        long minRecLsn = Long.MAX_VALUE;
+        long imageLsn = 0;
+        List<Page> imaged = new ArrayList<>();
+        for(Page pg : pages) {
+            pg.lock();
+            try {
+                if(!pg.isDirty()) {
+                    continue;
+                }
+                if(pg.isUpdating()) {
+                    minRecLsn = Math.min(minRecLsn, pg.getRecLsn());
+                    continue;
+                }
+                imageLsn = Math.max(imageLsn, logImage(pg.getPageNumber(), pg.getData()));
+                imaged.add(pg);
+            } finally {
+                pg.unlock();
+            }
+        }
+        for(Page pg : imaged) {
+            pg.lock();
+            try {
+                if(!pg.isDirty()) {
+                    continue;
+                }
+                if(pg.isUpdating()) {
+                    minRecLsn = Math.min(minRecLsn, pg.getRecLsn());
+                    continue;
+                }
+                writePage(pg, imageLsn);
+                pg.setDirty(false);
+            } finally {
+                pg.unlock();
+            }
+        }
+        return minRecLsn;
     }
 
     public void flushPage(Page pg) {
         flush(pg);
     }
 
-    private void flush(Page pg) {
-        int pgno = pg.getPageNumber();
-        long offset = pageOffset(pgno);
+    /**
+     * 先引用页再加页锁写回，写的过程中页不会被驱逐、页帧不会被复用
+     * 插入和释放槽都在页锁内写日志、改页；DataItem的修改不持页锁，由isUpdating挡住
+     * 第一页不写日志，由DM自己写回，不算在内
+     * 被驱逐的页写回时没有刷盘，这里最后总要刷一次
+     * 遍历时正在被驱逐的页已不在缓存里，刷盘前先等它们写完，否则检查点会越过没落盘的修改
+     * 脏页按批引用再写，一批不超过缓存的四分之一，不会挤得别的线程读不进页
+     */
+    public long flushForCheckpoint() {
+        long minRecLsn = Long.MAX_VALUE;
+        int batchSize = Math.min(CHECKPOINT_BATCH, writerThreshold);
+        List<Page> batch = new ArrayList<>();
+        for(long key : cachedKeys()) {
+            if(key == 1) {
+                continue;
+            }
+            Page pg = getIfCached(key, true);
+            if(pg == null) {
+                continue;
+            }
+            if(!pg.isDirty()) {
+                release(pg);
+                continue;
+            }
+            batch.add(pg);
+            if(batch.size() >= batchSize) {
+                minRecLsn = Math.min(minRecLsn, writeAndRelease(batch));
+            }
+        }
+        minRecLsn = Math.min(minRecLsn, writeAndRelease(batch));
+        awaitReleasing();
+        pf.force();
+        return minRecLsn;
+    }
 
-        fileLock.lock();
+    private long writeAndRelease(List<Page> batch) {
         try {
-            ByteBuffer buf = ByteBuffer.wrap(pg.getData());
-            fc.position(offset);
-            fc.write(buf);
-            fc.force(false);
-        } catch(IOException e) {
-            Panic.panic(e);
+            return writePages(batch);
         } finally {
-            fileLock.unlock();
+            for(Page pg : batch) {
+                release(pg);
+            }
+            batch.clear();
         }
     }
 
+    private void flush(Page pg) {
+        writePage(pg, logImage(pg.getPageNumber(), pg.getData()));
+        pf.force();
+    }
+
+    /**
+     * 把整页作为页镜像记进日志，返回它的LSN，不用记时返回0
+     * 页在原位置写到一半崩溃时新旧内容混在一起，PageLSN可能已是新的，按它跳过日志修不好，
+     * 恢复时先用最后一份镜像覆盖再redo
+     * 第一页不写日志，由DM自己写回和检查
+     */
+    private long logImage(int pgno, byte[] data) {
+        Logger lg = logger;
+        if(lg == null || pgno == 1) {
+            return 0;
+        }
+        return lg.log(Recover.pageImageLog(pgno, data));
+    }
+
+    /**
+     * 日志先落盘到PageLSN和这一页的镜像，再写页
+     */
+    private void writePage(Page pg, long imageLsn) {
+        Logger lg = logger;
+        if(lg != null) {
+            lg.flush(Math.max(pg.getLsn(), imageLsn));
+        }
+        writeSlot(pg.getPageNumber(), pg.getData());
+    }
+
+    /**
+     * 缓存中的旧页直接丢掉，镜像原样写回，落盘留给之后的写回和检查点
+     * 还没落盘时再次崩溃，下次恢复会再用同一份镜像
+     */
+    public void restorePage(int pgno, byte[] data) {
+        discard(pgno);
+        allocate(pageOffset(pgno + 1));
+        writeSlot(pgno, data);
+    }
+
+    /**
+     * 第一页要在知道是否压缩之前读出来，始终原样存放
+     */
+    private void writeSlot(int pgno, byte[] data) {
+        long offset = pageOffset(pgno);
+        if(!compress || pgno == 1) {
+            pf.write(offset, data);
+            return;
+        }
+        byte[] slot = slotBuf.get();
+        int end = Lz4.compress(data, data.length, slot, LEN_SLOT_HEADER, pageSize);
+        if(end < 0) {
+            pf.write(offset, data);
+            return;
+        }
+        int header = COMPRESSED | (end - LEN_SLOT_HEADER);
+        System.arraycopy(Parser.int2Byte(header), 0, slot, 0, LEN_SLOT_HEADER);
+        pf.write(offset, slot, end);
+    }
+
+    /**
+     * 先读槽头：压缩页只再读压缩后的长度，未压缩的页直接读进页帧
+     */
+    private void readSlot(int pgno, byte[] buf) {
+        long offset = pageOffset(pgno);
+        if(!compress || pgno == 1) {
+            pf.read(offset, buf);
+            return;
+        }
+        byte[] slot = slotBuf.get();
+        pf.read(offset, slot, LEN_SLOT_HEADER);
+        if((slot[0] & 0x80) == 0) {
+            pf.read(offset, buf);
+            return;
+        }
+        int length = Parser.parseInt(Arrays.copyOf(slot, LEN_SLOT_HEADER)) & ~COMPRESSED;
+        if(length > pageSize - LEN_SLOT_HEADER) {
+            Panic.panic(Error.BadPageException);
+        }
+        pf.read(offset + LEN_SLOT_HEADER, slot, length);
+        if(Lz4.decompress(slot, 0, length, buf) != pageSize) {
+            Panic.panic(Error.BadPageException);
+        }
+    }
+
+    public boolean runExclusive(Page pg, Runnable action) {
+        return runExclusive((long)pg.getPageNumber(), action);
+    }
+
+    public void setLogger(Logger logger) {
+        this.logger = logger;
+    }
+
     public void truncateByBgno(int maxPgno) {
         long size = pageOffset(maxPgno + 1);
+        // 被截掉的页不能再从缓存中读到，先丢掉，免得写线程又把它们写回文件末尾之后
+        int oldPageNumber = pageNumbers.getAndSet(maxPgno);
+        for(int pgno = maxPgno + 1; pgno <= oldPageNumber; pgno ++) {
+            discard(pgno);
+        }
+        extentLock.lock();
         try {
-            file.setLength(size);
-        } catch (IOException e) {
-            Panic.panic(e);
+            pf.setLength(size);
+            allocated = size;
+        } finally {
+            extentLock.unlock();
         }
-        pageNumbers.set(maxPgno);
     }
 
     /**
@@ -168,24 +710,130 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
      */
     @Override
     public void close() {
+        prefetcher.shutdown();
+        reader.shutdown();
+        try {
+            prefetcher.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            reader.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch(InterruptedException e) {
+            Panic.panic(e);
+        }
+        writerLock.lock();
+        try {
+            closed = true;
+            writerWakeUp.signal();
+        } finally {
+            writerLock.unlock();
+        }
+        try {
+            writer.join();
+        } catch(InterruptedException e) {
+            Panic.panic(e);
+        }
+        // 第一页带着正常关闭的校验，其余页落盘之后才能写它
+        writeDirtyPages(1);
         super.close();
+        pf.force();
+        pf.close();
+    }
+
+    /**
+     * 测试模拟进程崩溃用：脏页不写回也不刷盘，停掉后台线程并关闭文件
+     */
+    void crash() {
+        prefetcher.shutdownNow();
+        try {
+            prefetcher.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch(InterruptedException e) {
+            Panic.panic(e);
+        }
+        writerLock.lock();
+        try {
+            closed = true;
+            writerWakeUp.signal();
+        } finally {
+            writerLock.unlock();
+        }
         try {
-            fc.close();
-            file.close();
-        } catch (IOException e) {
+            writer.join();
+        } catch(InterruptedException e) {
             Panic.panic(e);
         }
+        pf.close();
     }
 
     public int getPageNumber() {
         return pageNumbers.intValue();
     }
 
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public boolean isCompressed() {
+        return compress;
+    }
+
     /**
      * 定位position
      */
-    private static long pageOffset(int pgno) {
-        return (pgno-1) * PAGE_SIZE;
+    private long pageOffset(int pgno) {
+        // 按long计算，文件超过2GB也不会溢出
+        return (long)(pgno-1) * pageSize;
+    }
+
+    static boolean validPageSize(int pageSize) {
+        return pageSize >= MIN_PAGE_SIZE && pageSize <= MAX_PAGE_SIZE && (pageSize & (pageSize - 1)) == 0;
+    }
+
+    static boolean validExtentSize(int extentSize, int pageSize) {
+        return extentSize == 0 || (extentSize >= MIN_EXTENT_SIZE && extentSize <= MAX_EXTENT_SIZE
+                && extentSize % pageSize == 0);
+    }
+
+    /**
+     * 同readPageSize，从文件头读第一页中上次正常关闭时的页数，没有记录返回0
+     */
+    static int readPageCount(PageFile pf) {
+        if(pf.length() < PageOne.OF_PAGE_COUNT + 4) {
+            return 0;
+        }
+        byte[] buf = new byte[PageOne.OF_PAGE_COUNT + 4];
+        pf.read(0, buf);
+        return PageOne.getPageSize(buf) != 0 ? PageOne.getPageCount(buf) : 0;
+    }
+
+    /**
+     * 同readPageSize，从文件头读第一页中的压缩标志
+     * 没有记录页大小的文件不是数据库文件，那里的字节不是标志位
+     */
+    static boolean readCompressed(PageFile pf) {
+        if(pf.length() < PageOne.OF_FLAGS + 1) {
+            return false;
+        }
+        byte[] buf = new byte[PageOne.OF_FLAGS + 1];
+        pf.read(0, buf);
+        return PageOne.getPageSize(buf) != 0 && PageOne.isCompressed(buf);
+    }
+
+    /**
+     * 打开时页大小还未知，直接从文件头读第一页中记录的页大小
+     * 第一页还没写入或没有记录页大小(只用作页缓存的文件)的按默认页大小处理
+     */
+    static int readPageSize(PageFile pf) {
+        if(pf.length() < PageOne.OF_PAGE_SIZE + 4) {
+            return PAGE_SIZE;
+        }
+        byte[] buf = new byte[PageOne.OF_PAGE_SIZE + 4];
+        pf.read(0, buf);
+        int pageSize = PageOne.getPageSize(buf);
+        if(pageSize == 0) {
+            return PAGE_SIZE;
+        }
+        if(!validPageSize(pageSize)) {
+            Panic.panic(Error.InvalidPageSizeException);
+        }
+        return pageSize;
     }
     
 }
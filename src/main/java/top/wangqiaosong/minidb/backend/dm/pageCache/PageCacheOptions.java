@@ -0,0 +1,27 @@
+package top.wangqiaosong.minidb.backend.dm.pageCache;
+
+/**
+ * 页面缓存的可选配置，默认值与原先行为一致
+ */
+public class PageCacheOptions {
+    /**
+     * 用内存映射代替FileChannel读写.db文件
+     */
+    public boolean mmap;
+
+    /**
+     * 页大小，只在创建数据库时生效，打开时以第一页中记录的为准
+     */
+    public int pageSize = PageCache.PAGE_SIZE;
+
+    /**
+     * 写回时压缩页，只在创建数据库时生效，打开时以第一页中记录的为准
+     */
+    public boolean compress;
+
+    /**
+     * 文件每次增长的大小，0表示逐页增长
+     * 预分配后文件长度不等于页数，页数要靠第一页记录，只用于数据库文件
+     */
+    public int extentSize;
+}
@@ -0,0 +1,56 @@
+package top.wangqiaosong.minidb.backend.dm.pageCache;
+
+/**
+ * .db文件的读写方式
+ * PageCacheImpl只按偏移量读写整页，具体是普通文件读写还是内存映射由实现决定
+ */
+interface PageFile {
+    /**
+     * 从offset处读满buf，超出文件末尾的部分补0
+     */
+    void read(long offset, byte[] buf);
+
+    /**
+     * 从offset处读length字节到buf的开头，超出文件末尾的部分补0
+     */
+    void read(long offset, byte[] buf, int length);
+
+    /**
+     * 把buf写到offset处
+     */
+    void write(long offset, byte[] buf);
+
+    /**
+     * 把buf的前length字节写到offset处
+     */
+    void write(long offset, byte[] buf, int length);
+
+    /**
+     * 文件长度至少为size，只增不减，新增的部分不占磁盘空间
+     */
+    void extend(long size);
+
+    /**
+     * 为[from, to)实际分配磁盘空间并落盘，之后写这段不再修改文件元数据
+     */
+    void preallocate(long from, long to);
+
+    /**
+     * 把[offset, offset+length)预先读进操作系统的页缓存，之后读这些页不用等磁盘
+     */
+    void prefetch(long offset, int length);
+
+    /**
+     * 刷盘
+     */
+    void force();
+
+    /**
+     * 文件的实际长度
+     */
+    long length();
+
+    void setLength(long size);
+
+    void close();
+}
@@ -0,0 +1,161 @@
+package top.wangqiaosong.minidb.backend.dm.pageCache;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import top.wangqiaosong.minidb.backend.utils.Panic;
+
+/**
+ * 通过FileChannel读写.db文件
+ * 全部使用带偏移量的read/write(pread/pwrite)，不改动channel的position，
+ * 不同页的读写可以并行，不需要文件锁
+ */
+class PageFileImpl implements PageFile {
+
+    private RandomAccessFile file;
+    private FileChannel fc;
+    // 预读线程各自的缓冲区，读到的内容直接丢弃
+    private ThreadLocal<ByteBuffer> prefetchBuf = new ThreadLocal<>();
+    // 预分配时每次写0的大小
+    private static final int PREALLOCATE_CHUNK = 1 << 20;
+
+    PageFileImpl(RandomAccessFile file, FileChannel fc) {
+        this.file = file;
+        this.fc = fc;
+    }
+
+    @Override
+    public void read(long offset, byte[] buf) {
+        read(offset, buf, buf.length);
+    }
+
+    @Override
+    public void read(long offset, byte[] buf, int length) {
+        try {
+            ByteBuffer bb = ByteBuffer.wrap(buf, 0, length);
+            while(bb.hasRemaining()) {
+                if(fc.read(bb, offset + bb.position()) < 0) {
+                    break;
+                }
+            }
+            // buf可能是复用的页帧，读到文件末尾时清掉上次留下的内容
+            Arrays.fill(buf, bb.position(), length, (byte)0);
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    public void write(long offset, byte[] buf) {
+        write(offset, buf, buf.length);
+    }
+
+    @Override
+    public void write(long offset, byte[] buf, int length) {
+        try {
+            ByteBuffer bb = ByteBuffer.wrap(buf, 0, length);
+            while(bb.hasRemaining()) {
+                fc.write(bb, offset + bb.position());
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 一次大的顺序读，内核会把读到的页留在页缓存中
+     */
+    @Override
+    public void prefetch(long offset, int length) {
+        ByteBuffer bb = prefetchBuf.get();
+        if(bb == null || bb.capacity() < length) {
+            bb = ByteBuffer.allocateDirect(length);
+            prefetchBuf.set(bb);
+        }
+        bb.clear();
+        bb.limit(length);
+        try {
+            while(bb.hasRemaining()) {
+                if(fc.read(bb, offset + bb.position()) < 0) {
+                    break;
+                }
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    public void force() {
+        try {
+            fc.force(false);
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    public long length() {
+        try {
+            return file.length();
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        return 0;
+    }
+
+    /**
+     * 检查和扩展放在锁里，并发的extend不会把文件改短
+     * 写之前先extend，所以写入不会与这里的检查交错出更短的长度
+     */
+    @Override
+    public synchronized void extend(long size) {
+        try {
+            if(fc.size() < size) {
+                file.setLength(size);
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * Java没有fallocate，写一遍0来分配磁盘块，最后连同文件长度一起刷盘
+     */
+    @Override
+    public void preallocate(long from, long to) {
+        ByteBuffer zeros = ByteBuffer.allocateDirect((int)Math.min(to - from, PREALLOCATE_CHUNK));
+        try {
+            for(long offset = from; offset < to; ) {
+                zeros.clear();
+                zeros.limit((int)Math.min(zeros.capacity(), to - offset));
+                offset += fc.write(zeros, offset);
+            }
+            fc.force(true);
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    public void setLength(long size) {
+        try {
+            file.setLength(size);
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            fc.close();
+            file.close();
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+}
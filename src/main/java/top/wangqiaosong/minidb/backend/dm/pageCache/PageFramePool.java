@@ -0,0 +1,84 @@
+package top.wangqiaosong.minidb.backend.dm.pageCache;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 页帧池
+ * 页帧在第一次用到时才分配，总数不超过缓存能容纳的页数；页被驱逐后页帧回到空闲链表给下一次读盘复用，
+ * 缓存稳定后读页不再分配新数组，缓存没用满时也不会占着整块内存
+ */
+class PageFramePool {
+
+    private ArrayDeque<byte[]> free;
+    private int frameSize;
+    private int maxFrames;
+    private int allocated;  // 已分配的页帧数，含空闲的
+    private Lock lock;
+    private Condition freed;
+
+    PageFramePool(int maxFrames, int frameSize) {
+        this.free = new ArrayDeque<>();
+        this.frameSize = frameSize;
+        this.maxFrames = maxFrames;
+        this.lock = new ReentrantLock();
+        this.freed = lock.newCondition();
+    }
+
+    /**
+     * 取一个空闲页帧，内容是上一次使用留下的，调用方负责写满
+     * 空闲链表为空且未到上限时新分配；到了上限就等别人归还
+     * 缓存的资源数不超过上限，页帧又总在让出缓存位置之前归还，正常情况下不会等
+     */
+    byte[] allocate() {
+        lock.lock();
+        try {
+            while(true) {
+                byte[] frame = free.pollFirst();
+                if(frame != null) {
+                    return frame;
+                }
+                if(allocated < maxFrames) {
+                    allocated ++;
+                    return new byte[frameSize];
+                }
+                freed.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 归还页帧，调用方之后不能再访问它
+     */
+    void free(byte[] frame) {
+        lock.lock();
+        try {
+            free.addLast(frame);
+            freed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int freeFrames() {
+        lock.lock();
+        try {
+            return free.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int allocatedFrames() {
+        lock.lock();
+        try {
+            return allocated;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package top.wangqiaosong.minidb.backend.dm.pageIndex;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import top.wangqiaosong.minidb.backend.utils.Panic;
+import top.wangqiaosong.minidb.backend.utils.Parser;
+
+/**
+ * 空闲空间图，DM正常关闭时把PageIndex存进.fsm文件，下次打开直接装入，不用把每一页都读一遍
+ * 文件结构：[PageCount 4][Interval 1][Interval 1]...
+ * 第i个Interval是第i+2页的空闲空间所在的区间，一页只占一个字节
+ * 只在正常关闭后可信：崩溃后PageOne校验失败，照旧扫描所有页重建，下次关闭时再覆盖
+ * 和Booter一样先写临时文件再重命名，不会读到写了一半的文件
+ */
+public class FreeSpaceMap {
+    public static final String FSM_SUFFIX = ".fsm";
+    public static final String FSM_TMP_SUFFIX = ".fsm_tmp";
+
+    private String path;
+
+    public static FreeSpaceMap open(String path) {
+        new File(path + FSM_TMP_SUFFIX).delete();
+        return new FreeSpaceMap(path);
+    }
+
+    private FreeSpaceMap(String path) {
+        this.path = path;
+    }
+
+    /**
+     * 把文件装入pIndex，文件不存在或和数据文件的页数对不上返回false
+     */
+    public boolean load(PageIndex pIndex, int pageNumber) {
+        File f = new File(path + FSM_SUFFIX);
+        if (!f.exists()) {
+            return false;
+        }
+        byte[] raw;
+        try {
+            raw = Files.readAllBytes(f.toPath());
+        } catch (IOException e) {
+            return false;
+        }
+        if (raw.length < 4 || Parser.parseInt(Arrays.copyOf(raw, 4)) != pageNumber
+                || raw.length != 4 + Math.max(0, pageNumber - 1)) {
+            return false;
+        }
+        pIndex.load(Arrays.copyOfRange(raw, 4, raw.length));
+        return true;
+    }
+
+    public void save(PageIndex pIndex, int pageNumber) {
+        File tmp = new File(path + FSM_TMP_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(Parser.int2Byte(pageNumber));
+            out.write(pIndex.dump(pageNumber));
+            out.getFD().sync();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        try {
+            Files.move(tmp.toPath(), new File(path + FSM_SUFFIX).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+}
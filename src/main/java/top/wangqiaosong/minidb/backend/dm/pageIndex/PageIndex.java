@@ -1,9 +1,8 @@
 package top.wangqiaosong.minidb.backend.dm.pageIndex;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 
 import top.wangqiaosong.minidb.backend.dm.pageCache.PageCache;
 
@@ -15,9 +14,12 @@ import top.wangqiaosong.minidb.backend.dm.pageCache.PageCache;
  * 设置 threshold := pcacher.PAGE_SIZE / _NO_INTERVALS,
  * 然后划分出_NO_INTERVALS端区间, 分别表示FreeSpace大小为:
  * [0, threshold), [threshold, 2*threshold), ...
- * 每个区间内的页用链表组织起来.
+ * 每个区间内的页号放在一个并发有序集合里，无锁读写.
  * <p>
- * dm层是要由上层模块调用的，其中包含了对并发操作的一些规定，导致下层方法的一些特殊设计逻辑
+ * select只给出候选页，不把页取走，多个插入线程可以同时选中同一页，
+ * 由页锁保证一次只有一个线程往页里写，写完用update告知新的空闲空间.
+ * 同一区间内总是先选页号最小的页，插入集中在少数页上，文件不容易变得零散.
+ * 索引只是提示，实际能否放下以加页锁后页面本身为准
  */
 public class PageIndex {
     // 将一页划成40个区间
@@ -26,57 +28,111 @@ public class PageIndex {
      * 按40一个划分后的表空间阈值
      * 每个空间的大小
      */
-    private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
+    private final int threshold;
 
-    private Lock lock;
     /**
-     * 索引,结构：一个索引号对应一个pageInfo
+     * 索引，第i个集合是空闲空间落在第i个区间的页号
      */
-    private List<PageInfo>[] lists;
+    private ConcurrentSkipListSet<Integer>[] lists;
+    /**
+     * 页号到页信息，页在哪个区间以这里的freeSpace为准
+     */
+    private Map<Integer, PageInfo> pages;
 
-    @SuppressWarnings("unchecked")
     public PageIndex() {
-        lock = new ReentrantLock();
-        lists = new List[INTERVALS_NO + 1];
+        this(PageCache.PAGE_SIZE);
+    }
+
+    @SuppressWarnings("unchecked")
+    public PageIndex(int pageSize) {
+        threshold = pageSize / INTERVALS_NO;
+        lists = new ConcurrentSkipListSet[INTERVALS_NO + 1];
         for (int i = 0; i < INTERVALS_NO + 1; i++) {
-            lists[i] = new ArrayList<>();
+            lists[i] = new ConcurrentSkipListSet<>();
         }
+        pages = new ConcurrentHashMap<>();
+    }
+
+    private int interval(int freeSpace) {
+        return Math.min(freeSpace / threshold, INTERVALS_NO);
     }
 
     /**
-     * select移除了页面
-     * 上层模块对此页使用完再添加回索引
+     * 新页或启动时扫描到的页加入索引，页已在索引中时等同于update
      */
     public void add(int pgno, int freeSpace) {
-        lock.lock();
-        try {
-            int number = freeSpace / THRESHOLD;
-            lists[number].add(new PageInfo(pgno, freeSpace));
-        } finally {
-            lock.unlock();
+        PageInfo pi = pages.computeIfAbsent(pgno, k -> new PageInfo(pgno, -1));
+        move(pi, freeSpace);
+    }
+
+    /**
+     * 页上插入或释放了记录后更新它的空闲空间
+     */
+    public void update(int pgno, int freeSpace) {
+        PageInfo pi = pages.get(pgno);
+        if (pi == null) {
+            return;
+        }
+        move(pi, freeSpace);
+    }
+
+    // 同一页的更新按PageInfo串行，区间集合之间的挪动对select来说是瞬时的
+    private void move(PageInfo pi, int freeSpace) {
+        synchronized (pi) {
+            if (pi.freeSpace >= 0) {
+                if (interval(pi.freeSpace) == interval(freeSpace)) {
+                    pi.freeSpace = freeSpace;
+                    return;
+                }
+                lists[interval(pi.freeSpace)].remove(pi.pgno);
+            }
+            pi.freeSpace = freeSpace;
+            lists[interval(freeSpace)].add(pi.pgno);
         }
     }
 
     /**
-     * 被选择的页面会被移除，不支持页面的并发写入
+     * 选出一个空闲空间大于spaceSize的页，页仍留在索引中
+     * 从刚好够用的区间往上找，每个区间取页号最小的页
      */
     public PageInfo select(int spaceSize) {
-        lock.lock();
-        try {
-            //空间数量，刚好40是直接移除第40号区间数据，不是40号索引就+1只要数据不空就也移除了
-            int number = spaceSize / THRESHOLD;
-            if (number < INTERVALS_NO) number++;
-            while (number <= INTERVALS_NO) {
-                if (lists[number].size() == 0) {
-                    number++;
-                    continue;
+        //空间数量，刚好40是直接选第40号区间，不是40号就+1，保证区间内的页都放得下
+        int number = spaceSize / threshold;
+        if (number < INTERVALS_NO) number++;
+        while (number <= INTERVALS_NO) {
+            // 集合可能刚被并发清空，用ceiling而不是first()，空时返回null
+            Integer pgno = lists[number].ceiling(0);
+            if (pgno != null) {
+                PageInfo pi = pages.get(pgno);
+                if (pi != null) {
+                    return pi;
                 }
-                return lists[number].remove(0);
             }
-            return null;
-        } finally {
-            lock.unlock();
+            number++;
         }
+        return null;
     }
 
+    /**
+     * 第2页到第pageNumber页各自所在的区间，每页一个字节，不在索引中的页记为0
+     */
+    public byte[] dump(int pageNumber) {
+        byte[] raw = new byte[Math.max(0, pageNumber - 1)];
+        for (int pgno = 2; pgno <= pageNumber; pgno++) {
+            PageInfo pi = pages.get(pgno);
+            if (pi != null && pi.freeSpace > 0) {
+                raw[pgno - 2] = (byte) interval(pi.freeSpace);
+            }
+        }
+        return raw;
+    }
+
+    /**
+     * 装入dump的结果，空闲空间按区间下界算，只会少估，不会选出放不下的页
+     */
+    public void load(byte[] raw) {
+        for (int i = 0; i < raw.length; i++) {
+            add(i + 2, raw[i] * threshold);
+        }
+    }
 }
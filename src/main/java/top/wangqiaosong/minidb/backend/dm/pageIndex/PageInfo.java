@@ -9,7 +9,7 @@ public class PageInfo {
     /**
      * 空闲空间即数据空间
      */
-    public int freeSpace;
+    public volatile int freeSpace;
 
     public PageInfo(int pgno, int freeSpace) {
         this.pgno = pgno;
@@ -10,6 +10,7 @@ import top.wangqiaosong.minidb.backend.common.SubArray;
 import top.wangqiaosong.minidb.backend.dm.DataManager;
 import top.wangqiaosong.minidb.backend.dm.dataItem.DataItem;
 import top.wangqiaosong.minidb.backend.im.Node.InsertAndSplitRes;
+import top.wangqiaosong.minidb.backend.im.Node.LeafDeleteRes;
 import top.wangqiaosong.minidb.backend.im.Node.LeafSearchRangeRes;
 import top.wangqiaosong.minidb.backend.im.Node.SearchNextRes;
 import top.wangqiaosong.minidb.backend.tm.TransactionManagerImpl;
@@ -31,7 +32,7 @@ public class BPlusTree {
      * CreateBPlusTree 创建一棵B+树, 并返回其bootUUID.
      */
     public static long create(DataManager dm) throws Exception {
-        byte[] rawRoot = Node.newNilRootRaw();
+        byte[] rawRoot = Node.newNilRootRaw(Node.balanceNumber(dm.getPageSize()));
         //B+ 树在插入删除时，会动态调整，根节点不是固定节点，
         // 于是设置一个 bootDataItem，该 DataItem 中存储了根节点的 UID。
         // 可以注意到，IM 在操作 DM 时，使用的事务都是 SUPER_XID。提高优先级不受其他影响
@@ -77,7 +78,7 @@ public class BPlusTree {
         bootLock.lock();
         try {
             //生成一个根节点
-            byte[] rootRaw = Node.newRootRaw(left, right, rightKey);
+            byte[] rootRaw = Node.newRootRaw(left, right, rightKey, Node.balanceNumber(dm.getPageSize()));
             long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
             bootDataItem.before();
             SubArray diRaw = bootDataItem.data();
@@ -163,6 +164,24 @@ public class BPlusTree {
         }
     }
 
+    /**
+     * 从B+树中删除(key, uid)这一项，返回是否找到
+     * 和searchRange一样先定位到key所在的叶子节点，找不到再往右试探兄弟节点
+     */
+    public boolean delete(long key, long uid) throws Exception {
+        long leafUid = searchLeaf(rootUid(), key);
+        while (leafUid != 0) {
+            Node leaf = Node.loadNode(this, leafUid);
+            LeafDeleteRes res = leaf.leafDelete(key, uid);
+            leaf.release();
+            if (res.deleted) {
+                return true;
+            }
+            leafUid = res.siblingUid;
+        }
+        return false;
+    }
+
     class InsertRes {
         long newNode, newKey;
     }
@@ -33,12 +33,25 @@ public class Node {
     static final int NODE_HEADER_SIZE = SIBLING_OFFSET + 8;
     /**
      * 当BALANCE_NUMBER*2=一个Node所含子节点的个数时，会出现节点分裂,对应着needSplit方法
+     * BALANCE_NUMBER随页大小变化，8KB的页为32，页越大扇出越大
      */
-    static final int BALANCE_NUMBER = 32;
+    static int balanceNumber(int pageSize) {
+        return pageSize / 256;
+    }
+
     /**
      * 一个Node的大小 一个key,Son都占8个字节=2*8
      */
-    static final int NODE_SIZE = NODE_HEADER_SIZE + (2 * 8) * (BALANCE_NUMBER * 2 + 2);
+    static int nodeSize(int balanceNumber) {
+        return NODE_HEADER_SIZE + (2 * 8) * (balanceNumber * 2 + 2);
+    }
+
+    /**
+     * 节点创建后大小不变，从节点的长度反推BALANCE_NUMBER
+     */
+    static int getRawBalanceNumber(SubArray raw) {
+        return ((raw.end - raw.start - NODE_HEADER_SIZE) / (2 * 8) - 2) / 2;
+    }
 
     BPlusTree tree;
     DataItem dataItem;
@@ -107,7 +120,7 @@ public class Node {
 
     static void shiftRawKth(SubArray raw, int kth) {
         int begin = raw.start + NODE_HEADER_SIZE + (kth + 1) * (8 * 2);
-        int end = raw.start + NODE_SIZE - 1;
+        int end = raw.end - 1;
         // node -> [ [16] [32]  [新节点] [] [] [] [][end] ]  从左向右移动，给新的元素提供位置
         for (int i = end; i >= begin; i--) {
             raw.raw[i] = raw.raw[i - (8 * 2)];
@@ -117,9 +130,10 @@ public class Node {
     /**
      * 新建一个根节点,该根节点的初始两个子节点为left和right, 初始键值为key
      */
-    static byte[] newRootRaw(long left, long right, long key) {
+    static byte[] newRootRaw(long left, long right, long key, int balanceNumber) {
         //keyNumber可以不同，每个node大小相同
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        int nodeSize = nodeSize(balanceNumber);
+        SubArray raw = new SubArray(new byte[nodeSize], 0, nodeSize);
         //初始两个子节点为left和right，初始键值为key
         setRawIsLeaf(raw, false);//该结点不是叶子结点
         setRawNoKeys(raw, 2);//该节点有2个子节点
@@ -136,8 +150,9 @@ public class Node {
     /**
      * newNilRootRaw 新建一个空的根节点, 返回其二进制内容.
      */
-    static byte[] newNilRootRaw() {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    static byte[] newNilRootRaw(int balanceNumber) {
+        int nodeSize = nodeSize(balanceNumber);
+        SubArray raw = new SubArray(new byte[nodeSize], 0, nodeSize);
 
         setRawIsLeaf(raw, true);
         setRawNoKeys(raw, 0);
@@ -310,6 +325,44 @@ public class Node {
         }
     }
 
+    class LeafDeleteRes {
+        boolean deleted;
+        long siblingUid;//当前节点找完还没找到，key可能在邻节点中
+    }
+
+    /**
+     * 在叶子节点中删除(key, uid)这一项，后面的项往前挪
+     * 删除后不做节点合并，空的叶子节点查找和插入时都会被跳到邻节点
+     */
+    public LeafDeleteRes leafDelete(long key, long uid) {
+        LeafDeleteRes res = new LeafDeleteRes();
+        dataItem.before();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            for (int kth = 0; kth < noKeys; kth++) {
+                long ik = getRawKthKey(raw, kth);
+                if (ik > key) {
+                    return res;
+                }
+                if (ik == key && getRawKthSon(raw, kth) == uid) {
+                    int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);
+                    System.arraycopy(raw.raw, offset + 8 * 2, raw.raw, offset, (noKeys - kth - 1) * (8 * 2));
+                    setRawNoKeys(raw, noKeys - 1);
+                    res.deleted = true;
+                    return res;
+                }
+            }
+            res.siblingUid = getRawSibling(raw);
+            return res;
+        } finally {
+            if (res.deleted) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+
     /**
      * 此方法只是认定可以插入为分裂做数据预处理，真正的分裂操作在 insertAndSplit
      * if和else逻辑很重要
@@ -375,7 +428,7 @@ public class Node {
      * 是否需要分裂
      */
     private boolean needSplit() {
-        return BALANCE_NUMBER * 2 == getRawNoKeys(raw);
+        return getRawBalanceNumber(raw) * 2 == getRawNoKeys(raw);
     }
 
 
@@ -394,15 +447,17 @@ public class Node {
     private SplitRes split() throws Exception {
         //四步操作：装载nodeRaw
         //给新的node划分一块内存
-        SubArray nodeRaw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);//1
+        int balanceNumber = getRawBalanceNumber(raw);
+        int nodeSize = raw.end - raw.start;
+        SubArray nodeRaw = new SubArray(new byte[nodeSize], 0, nodeSize);//1
         setRawIsLeaf(nodeRaw, getRawIfLeaf(raw));//2
-        setRawNoKeys(nodeRaw, BALANCE_NUMBER);//3
+        setRawNoKeys(nodeRaw, balanceNumber);//3
         setRawSibling(nodeRaw, getRawSibling(raw));//4
         //从BALANCE_NUMBER（复制后一半的数据）开始把raw复制到noderaw里面，
-        copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);
+        copyRawFromKth(raw, nodeRaw, balanceNumber);
         //插入nodeRaw的uid
         long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw);
-        setRawNoKeys(raw, BALANCE_NUMBER);
+        setRawNoKeys(raw, balanceNumber);
         setRawSibling(raw, son);
 
         SplitRes res = new SplitRes();
@@ -129,6 +129,10 @@ public class Field {
         bt.insert(uKey, uid);
     }
 
+    public void delete(Object key, long uid) throws Exception {
+        bt.delete(value2Uid(key), uid);
+    }
+
     /**
      * B+树范围查询
      */
@@ -198,6 +202,12 @@ public class Field {
                 res.shift = 8;
                 break;
             case "string":
+                // 存在行外的字符串先只解析出指针
+                if (Overflow.isOverflow(raw)) {
+                    res.v = Overflow.parse(raw);
+                    res.shift = Overflow.POINTER_SIZE;
+                    break;
+                }
                 ParseStringRes r = Parser.parseString(raw);
                 res.v = r.str;
                 res.shift = r.next;
@@ -0,0 +1,63 @@
+package top.wangqiaosong.minidb.backend.tbm;
+
+import java.util.Arrays;
+
+import com.google.common.primitives.Bytes;
+
+import top.wangqiaosong.minidb.backend.dm.DataManager;
+import top.wangqiaosong.minidb.backend.dm.page.PageX;
+import top.wangqiaosong.minidb.backend.utils.Parser;
+
+/**
+ * 存在行外的字符串
+ * 行中只留一个指针：[Length|FLAG 4][Uid 8]，内容在DM的溢出页链中
+ * 普通字符串开头4字节是长度，最高位不会是1，据此区分
+ * 解析行时不读内容，输出或建索引用到这个字段时才沿链读出
+ */
+class Overflow {
+    static final int FLAG = 0x80000000;
+    static final int POINTER_SIZE = 4 + 8;
+
+    int length;
+    long uid;
+
+    /**
+     * 编码后超过一页可用空间四分之一的字符串放到行外，一页至少还能放下几行
+     */
+    static int threshold(int pageSize) {
+        return PageX.maxFreeSpace(pageSize) / 4;
+    }
+
+    static boolean isOverflow(byte[] raw) {
+        return (Parser.parseInt(Arrays.copyOf(raw, 4)) & FLAG) != 0;
+    }
+
+    /**
+     * 把字符串写入溢出页链，返回行中要存的指针
+     */
+    static byte[] store(DataManager dm, long xid, String str) throws Exception {
+        byte[] data = str.getBytes();
+        Overflow o = new Overflow();
+        o.length = data.length;
+        o.uid = dm.insertOverflow(xid, data);
+        return o.pointer();
+    }
+
+    /**
+     * 行中的指针，新版本照抄它就和旧版本共用同一条链
+     */
+    byte[] pointer() {
+        return Bytes.concat(Parser.int2Byte(length | FLAG), Parser.long2Byte(uid));
+    }
+
+    static Overflow parse(byte[] raw) {
+        Overflow o = new Overflow();
+        o.length = Parser.parseInt(Arrays.copyOf(raw, 4)) & ~FLAG;
+        o.uid = Parser.parseLong(Arrays.copyOfRange(raw, 4, POINTER_SIZE));
+        return o;
+    }
+
+    String load(DataManager dm) throws Exception {
+        return new String(dm.readOverflow(uid));
+    }
+}
@@ -2,9 +2,14 @@ package top.wangqiaosong.minidb.backend.tbm;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.google.common.primitives.Bytes;
 
@@ -35,6 +40,14 @@ public class Table {
     byte status;
     long nextUid;
     List<Field> fields = new ArrayList<>();
+    // 语句执行期间持有读锁，清理释放槽时持有写锁
+    ReadWriteLock vacuumLock = new ReentrantReadWriteLock();
+    // 等着变成死版本的uid，事务结束时由TableManager放入
+    Set<Long> candidates = ConcurrentHashMap.newKeySet();
+    // 打开后是否已经全表扫过一次，之后只看候选
+    private boolean scanned;
+    // 按索引读记录时，每次先把这么多条记录所在的页一起读进缓存
+    private static final int READ_WINDOW = 64;
 
     /**
      * 读取表
@@ -133,13 +146,17 @@ public class Table {
      */
     public int delete(long xid, Delete delete) throws Exception {
         List<Long> uids = parseWhere(delete.where);
-        int count = 0;
-        for (Long uid : uids) {
-            if (((TableManagerImpl) tbm).vm.delete(xid, uid)) {
-                count++;
+        List<Long> deleted = new ArrayList<>();
+        try {
+            for (Long uid : uids) {
+                if (((TableManagerImpl) tbm).vm.delete(xid, uid)) {
+                    deleted.add(uid);
+                }
             }
+        } finally {
+            ((TableManagerImpl) tbm).written(xid, this, deleted, Collections.emptyList());
         }
-        return count;
+        return deleted.size();
     }
 
     /**
@@ -164,25 +181,46 @@ public class Table {
             throw Error.FieldNotFoundException;
         }
         Object value = fd.string2Value(update.value);
+        // 中途出错时已经写出的版本也要记下，事务回滚后新版本要被清理
+        List<Long> deleted = new ArrayList<>();
+        List<Long> inserted = new ArrayList<>();
+        try {
+            return update(xid, uids, fd, value, deleted, inserted);
+        } finally {
+            ((TableManagerImpl) tbm).written(xid, this, deleted, inserted);
+        }
+    }
+
+    private int update(long xid, List<Long> uids, Field fd, Object value,
+                       List<Long> deleted, List<Long> inserted) throws Exception {
         int count = 0;
         for (Long uid : uids) {
             //读取一个entry
             byte[] raw = ((TableManagerImpl) tbm).vm.read(xid, uid);
             if (raw == null) continue;
 
-            ((TableManagerImpl) tbm).vm.delete(xid, uid);
+            if (((TableManagerImpl) tbm).vm.delete(xid, uid)) {
+                deleted.add(uid);
+            }
 
             Map<String, Object> entry = parseEntry(raw);
             entry.put(fd.fieldName, value);
-            raw = entry2Raw(entry);
+            // 没改的行外字段照抄指针，和旧版本共用溢出页链，链上的引用数先加一再插入新版本
+            for (Object v : entry.values()) {
+                if (v instanceof Overflow) {
+                    ((TableManagerImpl) tbm).dm.refOverflow(xid, ((Overflow) v).uid);
+                }
+            }
+            raw = entry2Raw(xid, entry);
             long uuid = ((TableManagerImpl) tbm).vm.insert(xid, raw);
+            inserted.add(uuid);
 
             count++;
 
             for (Field field : fields) {
                 if (field.isIndexed()) {
                     //b+树加入新node
-                    field.insert(entry.get(field.fieldName), uuid);
+                    field.insert(loadValue(entry, field), uuid);
                 }
             }
         }
@@ -191,23 +229,47 @@ public class Table {
 
     /**
      * 读操作处理where字段以及后面的字段
+     * 没有where时是全表扫描，按批量读访问页缓存，避免冲掉热点页
      */
     public String read(long xid, Select read) throws Exception {
-        List<Long> uids = parseWhere(read.where);
-        StringBuilder sb = new StringBuilder();
-        for (Long uid : uids) {
-            byte[] raw = ((TableManagerImpl) tbm).vm.read(xid, uid);
-            if (raw == null) continue;
-            Map<String, Object> entry = parseEntry(raw);
-            sb.append(printEntry(entry)).append("\n");
+        boolean bulk = read.where == null;
+        if (bulk) {
+            ((TableManagerImpl) tbm).dm.beginBulkRead();
+        }
+        try {
+            List<Field> projected = project(read.fields);
+            List<Long> uids = parseWhere(read.where);
+            // 全表扫描只让操作系统异步预读，读入的页仍在批量读的小环里
+            if (bulk && uids.size() > 1) {
+                ((TableManagerImpl) tbm).dm.prefetch(uids);
+            }
+            StringBuilder sb = new StringBuilder();
+            for (int from = 0; from < uids.size(); from += READ_WINDOW) {
+                List<Long> window = uids.subList(from, Math.min(uids.size(), from + READ_WINDOW));
+                // 索引查出的记录一条条读之前，先把这一段所在的页同时读进缓存
+                if (!bulk && window.size() > 1) {
+                    ((TableManagerImpl) tbm).dm.loadPages(window);
+                }
+                for (Long uid : window) {
+                    byte[] raw = ((TableManagerImpl) tbm).vm.read(xid, uid);
+                    if (raw == null) continue;
+                    Map<String, Object> entry = parseEntry(raw);
+                    sb.append(printEntry(entry, projected)).append("\n");
+                }
+            }
+            return sb.toString();
+        } finally {
+            if (bulk) {
+                ((TableManagerImpl) tbm).dm.endBulkRead();
+            }
         }
-        return sb.toString();
     }
 
     public void insert(long xid, Insert insert) throws Exception {
         Map<String, Object> entry = string2Entry(insert.values);
-        byte[] raw = entry2Raw(entry);
+        byte[] raw = entry2Raw(xid, entry);
         long uid = ((TableManagerImpl) tbm).vm.insert(xid, raw);
+        ((TableManagerImpl) tbm).written(xid, this, Collections.emptyList(), Collections.singletonList(uid));
         for (Field field : fields) {
             if (field.isIndexed()) {
                 field.insert(entry.get(field.fieldName), uid);
@@ -215,6 +277,91 @@ public class Table {
         }
     }
 
+    /**
+     * 清理死版本，返回清理的条数
+     * delete只设置xmax，update是删除加插入，旧版本一直占着页空间和索引项
+     * 1 只检查候选版本：已提交事务删掉的、已回滚事务插入的。打开后第一次清理还没有候选，
+     *   通过一个索引字段扫一遍全表，补上上次运行留下的死版本；没有候选的表不读任何页
+     * 2 从所有索引中删掉指向死版本的项，再让DM释放它们的槽，溢出页链上的引用数减一，
+     *   没有版本再引用时整条链释放，空间回到PageIndex
+     * 读版本和索引按批量读进行，不会把热点页挤出页缓存
+     * 第2步持有写锁，保证没有语句拿着刚从索引查出、还没读的uid，槽被复用后不会读到别的记录
+     * 拿不到写锁说明有语句在执行(可能在等行锁)，不等待，下一轮再清理
+     */
+    public int vacuum(long horizon) throws Exception {
+        if (scanned && candidates.isEmpty()) {
+            return 0;
+        }
+        Map<Long, Map<String, Object>> dead = new HashMap<>();
+        List<Long> overflows = new ArrayList<>();
+        ((TableManagerImpl) tbm).dm.beginBulkRead();
+        try {
+            if (!scanned) {
+                for (Field field : fields) {
+                    if (field.isIndexed()) {
+                        for (Long uid : field.search(Long.MIN_VALUE, Long.MAX_VALUE)) {
+                            collectDead(uid, horizon, dead, overflows);
+                        }
+                        break;
+                    }
+                }
+                scanned = true;
+            }
+            for (Long uid : candidates) {
+                collectDead(uid, horizon, dead, overflows);
+            }
+        } finally {
+            ((TableManagerImpl) tbm).dm.endBulkRead();
+        }
+        if (dead.isEmpty()) {
+            return 0;
+        }
+        if (!vacuumLock.writeLock().tryLock()) {
+            candidates.addAll(dead.keySet());
+            return 0;
+        }
+        try {
+            for (Map.Entry<Long, Map<String, Object>> e : dead.entrySet()) {
+                for (Field field : fields) {
+                    if (field.isIndexed()) {
+                        field.delete(e.getValue().get(field.fieldName), e.getKey());
+                    }
+                }
+                ((TableManagerImpl) tbm).dm.free(e.getKey());
+            }
+            for (long uid : overflows) {
+                ((TableManagerImpl) tbm).dm.freeOverflow(uid);
+            }
+            candidates.removeAll(dead.keySet());
+            return dead.size();
+        } finally {
+            vacuumLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * uid是死版本时记下它的各字段(索引字段要用值删索引项)和它的溢出页链
+     */
+    private void collectDead(long uid, long horizon, Map<Long, Map<String, Object>> dead, List<Long> overflows) throws Exception {
+        if (dead.containsKey(uid)) {
+            return;
+        }
+        byte[] raw = ((TableManagerImpl) tbm).vm.readDead(uid, horizon);
+        if (raw == null) {
+            return;
+        }
+        Map<String, Object> entry = parseEntry(raw);
+        for (Field field : fields) {
+            if (entry.get(field.fieldName) instanceof Overflow) {
+                overflows.add(((Overflow) entry.get(field.fieldName)).uid);
+            }
+            if (field.isIndexed()) {
+                loadValue(entry, field);
+            }
+        }
+        dead.put(uid, entry);
+    }
+
     private Map<String, Object> string2Entry(String[] values) throws Exception {
         if (values.length != fields.size()) {
             throw Error.InvalidValuesException;
@@ -334,12 +481,39 @@ public class Table {
         return res;
     }
 
-    private String printEntry(Map<String, Object> entry) {
+    /**
+     * select要输出的字段，*为全部字段
+     */
+    private List<Field> project(String[] names) throws Exception {
+        if (names == null || names.length == 0 || "*".equals(names[0])) {
+            return fields;
+        }
+        List<Field> projected = new ArrayList<>();
+        for (String name : names) {
+            Field fd = null;
+            for (Field field : fields) {
+                if (field.fieldName.equals(name)) {
+                    fd = field;
+                    break;
+                }
+            }
+            if (fd == null) {
+                throw Error.FieldNotFoundException;
+            }
+            projected.add(fd);
+        }
+        return projected;
+    }
+
+    /**
+     * 只输出要输出的字段，没输出的行外字段不会去读溢出页
+     */
+    private String printEntry(Map<String, Object> entry, List<Field> projected) throws Exception {
         StringBuilder sb = new StringBuilder("[");
-        for (int i = 0; i < fields.size(); i++) {
-            Field field = fields.get(i);
-            sb.append(field.printValue(entry.get(field.fieldName)));
-            if (i == fields.size() - 1) {
+        for (int i = 0; i < projected.size(); i++) {
+            Field field = projected.get(i);
+            sb.append(field.printValue(loadValue(entry, field)));
+            if (i == projected.size() - 1) {
                 sb.append("]");
             } else {
                 sb.append(", ");
@@ -359,10 +533,36 @@ public class Table {
         return entry;
     }
 
-    private byte[] entry2Raw(Map<String, Object> entry) {
+    /**
+     * 取出字段的值，存在行外的字符串此时才从溢出页链读出
+     */
+    private Object loadValue(Map<String, Object> entry, Field field) throws Exception {
+        Object v = entry.get(field.fieldName);
+        if (v instanceof Overflow) {
+            v = ((Overflow) v).load(((TableManagerImpl) tbm).dm);
+            entry.put(field.fieldName, v);
+        }
+        return v;
+    }
+
+    /**
+     * 过长的字符串写到溢出页链，行中只存指针，整行就不会超过一页
+     * 还没读出的行外字段直接写回原来的指针
+     */
+    private byte[] entry2Raw(long xid, Map<String, Object> entry) throws Exception {
+        int threshold = Overflow.threshold(((TableManagerImpl) tbm).dm.getPageSize());
         byte[] raw = new byte[0];
         for (Field field : fields) {
-            raw = Bytes.concat(raw, field.value2Raw(entry.get(field.fieldName)));
+            Object v = entry.get(field.fieldName);
+            if (v instanceof Overflow) {
+                raw = Bytes.concat(raw, ((Overflow) v).pointer());
+                continue;
+            }
+            byte[] vRaw = field.value2Raw(v);
+            if (v instanceof String && vRaw.length > threshold) {
+                vRaw = Overflow.store(((TableManagerImpl) tbm).dm, xid, (String) v);
+            }
+            raw = Bytes.concat(raw, vRaw);
         }
         return raw;
     }
@@ -26,6 +26,15 @@ public interface TableManager {
     byte[] update(long xid, Update update) throws Exception;
     byte[] delete(long xid, Delete delete) throws Exception;
 
+    /**
+     * 清理所有表中已对所有事务不可见的版本，返回清理的条数，后台也会定期执行
+     */
+    int vacuum() throws Exception;
+    /**
+     * 停止后台清理线程
+     */
+    void close();
+
     public static TableManager create(String path, VersionManager vm, DataManager dm) {
         Booter booter = Booter.create(path);
         booter.update(Parser.long2Byte(0));
@@ -4,6 +4,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -14,17 +16,26 @@ import top.wangqiaosong.minidb.backend.parser.statement.Delete;
 import top.wangqiaosong.minidb.backend.parser.statement.Insert;
 import top.wangqiaosong.minidb.backend.parser.statement.Select;
 import top.wangqiaosong.minidb.backend.parser.statement.Update;
+import top.wangqiaosong.minidb.backend.utils.Panic;
 import top.wangqiaosong.minidb.backend.utils.Parser;
 import top.wangqiaosong.minidb.backend.vm.VersionManager;
 import top.wangqiaosong.minidb.common.Error;
 
 public class TableManagerImpl implements TableManager {
+    // 后台清理死版本的间隔
+    public static final long VACUUM_INTERVAL = 10 * 1000;
+
     VersionManager vm;
     DataManager dm;
     private Booter booter;
     private Map<String, Table> tableCache;
     private Map<Long, List<Table>> xidTableCache;
+    // 事务删掉和插入的版本，事务结束时交给所在的表
+    private Map<Long, List<Written>> xidWritten;
     private Lock lock;
+    private Lock vacuumLock;
+    private Thread vacuumer;
+    private CountDownLatch stopVacuum;
     
     TableManagerImpl(VersionManager vm, DataManager dm, Booter booter) {
         this.vm = vm;
@@ -32,8 +43,123 @@ public class TableManagerImpl implements TableManager {
         this.booter = booter;
         this.tableCache = new HashMap<>();
         this.xidTableCache = new HashMap<>();
+        this.xidWritten = new HashMap<>();
         lock = new ReentrantLock();
+        vacuumLock = new ReentrantLock();
         loadTables();
+        stopVacuum = new CountDownLatch(1);
+        vacuumer = new Thread(this::vacuumLoop, "vacuum");
+        vacuumer.setDaemon(true);
+        vacuumer.start();
+    }
+
+    /**
+     * 一轮清理出错只打印出来，死版本还在候选里，下一轮再试
+     * 不用interrupt停止：清理中途被中断会关掉DM正在读写的FileChannel
+     */
+    private void vacuumLoop() {
+        while(true) {
+            try {
+                if (stopVacuum.await(VACUUM_INTERVAL, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                vacuum();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 停止后台清理，等正在进行的一轮结束；VM和DM由打开它们的地方关闭
+     */
+    @Override
+    public void close() {
+        stopVacuum.countDown();
+        try {
+            vacuumer.join();
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 依次清理每张表的死版本，没有候选的表直接跳过，同一时间只有一个清理在进行，
+     * 否则两次清理可能先后释放同一个槽，后一次释放掉的是复用了这个槽的新记录
+     */
+    @Override
+    public int vacuum() throws Exception {
+        vacuumLock.lock();
+        try {
+            List<Table> tables;
+            lock.lock();
+            try {
+                tables = new ArrayList<>(tableCache.values());
+            } finally {
+                lock.unlock();
+            }
+            long horizon = vm.horizon();
+            int count = 0;
+            for (Table tb : tables) {
+                count += tb.vacuum(horizon);
+            }
+            return count;
+        } finally {
+            vacuumLock.unlock();
+        }
+    }
+
+    /**
+     * 一条语句在一张表上删掉和插入的版本
+     */
+    static class Written {
+        Table table;
+        List<Long> deleted;
+        List<Long> inserted;
+
+        Written(Table table, List<Long> deleted, List<Long> inserted) {
+            this.table = table;
+            this.deleted = deleted;
+            this.inserted = inserted;
+        }
+    }
+
+    void written(long xid, Table table, List<Long> deleted, List<Long> inserted) {
+        if (deleted.isEmpty() && inserted.isEmpty()) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (!xidWritten.containsKey(xid)) {
+                xidWritten.put(xid, new ArrayList<>());
+            }
+            xidWritten.get(xid).add(new Written(table, deleted, inserted));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 提交后删掉的旧版本、回滚后插入的新版本迟早对所有事务不可见，成为所在表的清理候选
+     */
+    private void finish(long xid, boolean committed) {
+        List<Written> ws;
+        lock.lock();
+        try {
+            ws = xidWritten.remove(xid);
+        } finally {
+            lock.unlock();
+        }
+        if (ws == null) {
+            return;
+        }
+        for (Written w : ws) {
+            w.table.candidates.addAll(committed ? w.deleted : w.inserted);
+        }
     }
 
     /**
@@ -71,12 +197,20 @@ public class TableManagerImpl implements TableManager {
     }
     @Override
     public byte[] commit(long xid) throws Exception {
-        vm.commit(xid);
+        try {
+            vm.commit(xid);
+        } catch (Exception e) {
+            // 事务已经被自动回滚
+            finish(xid, false);
+            throw e;
+        }
+        finish(xid, true);
         return "commit".getBytes();
     }
     @Override
     public byte[] abort(long xid) {
         vm.abort(xid);
+        finish(xid, false);
         return "abort".getBytes();
     }
     @Override
@@ -126,7 +260,12 @@ public class TableManagerImpl implements TableManager {
         if(table == null) {
             throw Error.TableNotFoundException;
         }
-        table.insert(xid, insert);
+        table.vacuumLock.readLock().lock();
+        try {
+            table.insert(xid, insert);
+        } finally {
+            table.vacuumLock.readLock().unlock();
+        }
         return "insert".getBytes();
     }
     @Override
@@ -137,7 +276,12 @@ public class TableManagerImpl implements TableManager {
         if(table == null) {
             throw Error.TableNotFoundException;
         }
-        return table.read(xid, read).getBytes();
+        table.vacuumLock.readLock().lock();
+        try {
+            return table.read(xid, read).getBytes();
+        } finally {
+            table.vacuumLock.readLock().unlock();
+        }
     }
     @Override
     public byte[] update(long xid, Update update) throws Exception {
@@ -147,7 +291,13 @@ public class TableManagerImpl implements TableManager {
         if(table == null) {
             throw Error.TableNotFoundException;
         }
-        int count = table.update(xid, update);
+        int count;
+        table.vacuumLock.readLock().lock();
+        try {
+            count = table.update(xid, update);
+        } finally {
+            table.vacuumLock.readLock().unlock();
+        }
         return ("update " + count).getBytes();
     }
     @Override
@@ -158,7 +308,13 @@ public class TableManagerImpl implements TableManager {
         if(table == null) {
             throw Error.TableNotFoundException;
         }
-        int count = table.delete(xid, delete);
+        int count;
+        table.vacuumLock.readLock().lock();
+        try {
+            count = table.delete(xid, delete);
+        } finally {
+            table.vacuumLock.readLock().unlock();
+        }
         return ("delete " + count).getBytes();
     }
 }
@@ -1,14 +1,22 @@
 package top.wangqiaosong.minidb.backend.utils;
 
+import top.wangqiaosong.minidb.common.Error;
+
 /**
  * @desc 转uid工具
  * 将索引拿到的页码和对应普通页的位置(偏移量)转换为一个uid
  * uid首先代表一个数据页，事务操作关联数据页，xid关联uid
+ * uid布局：[pgno 高32位][0 16位][slot 低16位]
+ * 低16位是页内的槽号，记录在页内移动时uid不变
  */
 public class Types {
-    public static long addressToUid(int pgno, short offset) {
+    public static long addressToUid(int pgno, short slot) {
+        // 页号从1开始；slot按无符号数处理，不能符号扩展到页号所在的高位
+        if(pgno <= 0) {
+            Panic.panic(Error.InvalidUidException);
+        }
         long u0 = (long)pgno;
-        long u1 = (long)offset;
+        long u1 = (long)(slot & 0xFFFF);
         return u0 << 32 | u1;
     }
 }
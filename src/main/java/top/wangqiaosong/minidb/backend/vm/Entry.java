@@ -36,6 +36,9 @@ public class Entry {
     public static Entry loadEntry(VersionManager vm, long uid) throws Exception {
         //使用dm层的read方法读取DataItem
         DataItem di = ((VersionManagerImpl)vm).dm.read(uid);
+        if(di == null) {
+            return null;
+        }
         return newEntry(vm, di, uid);
     }
 
@@ -8,6 +8,17 @@ public interface VersionManager {
     long insert(long xid, byte[] data) throws Exception;
     boolean delete(long xid, long uid) throws Exception;
 
+    /**
+     * uid处的版本已对所有事务不可见(可以被清理)时返回它的数据，否则返回null
+     * horizon取自horizon()，一轮清理取一次；水位只涨不落，用早些取的值只会少清理
+     */
+    byte[] readDead(long uid, long horizon) throws Exception;
+
+    /**
+     * 清理水位，xmax已提交且小于它的版本对所有事务都不可见
+     */
+    long horizon();
+
     /**
      * level是隔离级别
      */
@@ -148,6 +148,65 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
     }
 
+    /**
+     * 版本的xmax已提交且小于清理水位时，现在和以后的事务都看不到它，它就是死版本
+     * 插入它的事务回滚了的版本谁也看不到，同样是死版本
+     */
+    @Override
+    public byte[] readDead(long uid, long horizon) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch (Exception e) {
+            if (e == Error.NullEntryException) {
+                return null;
+            } else {
+                throw e;
+            }
+        }
+        try {
+            if (tm.isAborted(entry.getXmin())) {
+                return entry.data();
+            }
+            long xmax = entry.getXmax();
+            if (xmax == TransactionManagerImpl.SUPER_XID || xmax >= horizon || !tm.isCommitted(xmax)) {
+                return null;
+            }
+            return entry.data();
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * 清理水位：活跃事务的xid和它们快照中的xid里最小的一个
+     * 快照里的事务可能已经提交离开了活跃列表，但持有快照的事务仍把它当作未提交，所以也要算进来
+     * 新开启的事务xid更大，快照只会包含此时的活跃事务，水位只会往上涨
+     */
+    @Override
+    public long horizon() {
+        lock.lock();
+        try {
+            long h = Long.MAX_VALUE;
+            for (Transaction t : activeTransaction.values()) {
+                if (t.xid == TransactionManagerImpl.SUPER_XID) {
+                    continue;
+                }
+                h = Math.min(h, t.xid);
+                if (t.snapshot != null) {
+                    for (long x : t.snapshot.keySet()) {
+                        if (x != TransactionManagerImpl.SUPER_XID) {
+                            h = Math.min(h, x);
+                        }
+                    }
+                }
+            }
+            return h;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * 开启一个事务，并初始化事务的结构，
      * 将其存放在 activeTransaction 中，用于检查和快照使用
@@ -185,6 +244,9 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             Panic.panic(n);
         }
 
+        // 日志落盘后才算提交，这时还持有行锁
+        dm.flushLog();
+
         lock.lock();
         activeTransaction.remove(xid);
         lock.unlock();
@@ -9,9 +9,16 @@ public class Error {
 
     // dm
     public static final Exception BadLogFileException = new RuntimeException("Bad log file!");
+    public static final Exception MissingCheckpointException = new RuntimeException("Checkpoint is missing but earlier log has been removed!");
+    public static final Exception LegacyLogFormatException = new RuntimeException("Log file is in the old format, convert the database with -convert first!");
+    public static final Exception NotLegacyFormatException = new RuntimeException("Database is not in the old format!");
     public static final Exception MemTooSmallException = new RuntimeException("Memory too small!");
     public static final Exception DataTooLargeException = new RuntimeException("Data too large!");
     public static final Exception DatabaseBusyException = new RuntimeException("Database is busy!");
+    public static final Exception InvalidUidException = new RuntimeException("Invalid uid!");
+    public static final Exception InvalidPageSizeException = new RuntimeException("Invalid page size!");
+    public static final Exception BadPageException = new RuntimeException("Bad page!");
+    public static final Exception InvalidExtentSizeException = new RuntimeException("Invalid extent size!");
 
     /**
      * tm 事务异常，不合法的XID文件
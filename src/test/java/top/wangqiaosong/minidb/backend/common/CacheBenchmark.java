@@ -0,0 +1,78 @@
+package top.wangqiaosong.minidb.backend.common;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * AbstractCache pin/unpin 吞吐随线程数的变化
+ * 运行：mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass="top.wangqiaosong.minidb.backend.common.CacheBenchmark"
+ * segments=1 相当于原先的单锁缓存，用来对比
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheBenchmark {
+
+    private static final int HOT_KEYS = 1024;
+
+    @Param({"1", "16"})
+    int segments;
+
+    private AbstractCache<Long> cache;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        cache = new AbstractCache<Long>(0, segments) {
+            @Override
+            protected Long getForCache(long key) {
+                return key;
+            }
+
+            @Override
+            protected void releaseForCache(Long obj) {
+            }
+        };
+        // 常驻一批热key，基准只测命中路径上的pin和unpin
+        for (long k = 0; k < HOT_KEYS; k++) {
+            cache.get(k);
+        }
+    }
+
+    @Benchmark
+    public long pinUnpin() throws Exception {
+        long key = ThreadLocalRandom.current().nextInt(HOT_KEYS);
+        long v = cache.get(key);
+        cache.release(key);
+        return v;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[]{1, 2, 4, 8, 16}) {
+            Options opt = new OptionsBuilder()
+                    .include(CacheBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(opt).run();
+        }
+    }
+}
@@ -1,8 +1,12 @@
 package top.wangqiaosong.minidb.backend.common;
 
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -46,4 +50,168 @@ public class CacheTest {
         }
         cdl.countDown();
     }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        AtomicInteger loads = new AtomicInteger(0);
+        CountDownLatch start = new CountDownLatch(1);
+        AbstractCache<Long> slow = new AbstractCache<Long>(50) {
+            @Override
+            protected Long getForCache(long key) throws Exception {
+                loads.incrementAndGet();
+                Thread.sleep(50);
+                return key;
+            }
+
+            @Override
+            protected void releaseForCache(Long obj) {
+            }
+        };
+        int noWorkers = 8;
+        CountDownLatch done = new CountDownLatch(noWorkers);
+        for(int i = 0; i < noWorkers; i ++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    long h = slow.get(7);
+                    assert h == 7;
+                } catch (Exception e) {
+                    Panic.panic(e);
+                }
+                done.countDown();
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        // 并发未命中只加载一次
+        assert loads.get() == 1;
+    }
+
+    @Test
+    public void testClockEviction() throws Exception {
+        AtomicInteger loads = new AtomicInteger(0);
+        AtomicInteger evicted = new AtomicInteger(0);
+        AbstractCache<Long> clock = new AbstractCache<Long>(4, 1, true) {
+            @Override
+            protected Long getForCache(long key) {
+                loads.incrementAndGet();
+                return key;
+            }
+
+            @Override
+            protected void releaseForCache(Long obj) {
+                evicted.incrementAndGet();
+            }
+        };
+        // 释放后仍然命中
+        clock.get(1);
+        clock.release(1);
+        clock.get(1);
+        clock.release(1);
+        assert loads.get() == 1;
+
+        // 超过容量时驱逐未被引用的资源而不是抛CacheFullException
+        long pinned = clock.get(100);
+        for(long k = 2; k < 20; k ++) {
+            clock.get(k);
+            clock.release(k);
+        }
+        assert evicted.get() == 19 - 4 + 1;
+        // 被引用的资源不会被驱逐
+        loads.set(0);
+        clock.get(pinned);
+        assert loads.get() == 0;
+        clock.release(pinned);
+        clock.release(pinned);
+
+        // 全部被引用时才报错
+        for(long k = 200; k < 204; k ++) {
+            clock.get(k);
+        }
+        try {
+            clock.get(300);
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.CacheFullException;
+        }
+    }
+
+    @Test
+    public void testColdPin() throws Exception {
+        List<Long> evicted = new ArrayList<>();
+        AbstractCache<Long> clock = new AbstractCache<Long>(2, 1, true) {
+            @Override
+            protected Long getForCache(long key) {
+                return key;
+            }
+
+            @Override
+            protected void releaseForCache(Long obj) {
+                evicted.add(obj);
+            }
+        };
+        clock.get(1);
+        clock.release(1);
+        clock.get(2);
+        clock.release(2);
+        // 驱逐1时清掉了2的访问位，3是冷访问，也没有访问位
+        clock.get(3, true);
+        clock.release(3);
+        assert evicted.equals(Arrays.asList(1L));
+        // 冷引用不设置访问位，2仍是下一个被驱逐的
+        clock.getIfCached(2, true);
+        clock.release(2);
+        clock.get(4);
+        assert evicted.equals(Arrays.asList(1L, 2L));
+    }
+
+    @Test
+    public void testReleaseOutsideLock() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch written = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger(0);
+        AbstractCache<Long> slow = new AbstractCache<Long>(10, 1) {
+            @Override
+            protected Long getForCache(long key) {
+                loads.incrementAndGet();
+                return key;
+            }
+
+            @Override
+            protected void releaseForCache(Long obj) {
+                if(obj == 1) {
+                    writing.countDown();
+                    try {
+                        written.await();
+                    } catch (InterruptedException e) {
+                        Panic.panic(e);
+                    }
+                }
+            }
+        };
+        slow.get(1);
+        Thread releaser = new Thread(() -> slow.release(1));
+        releaser.start();
+        writing.await();
+        // 1还在写回，同一段上的其他资源照常获取和释放
+        slow.get(2);
+        slow.release(2);
+        // 1要等写回结束后重新加载
+        AtomicInteger got = new AtomicInteger(0);
+        Thread getter = new Thread(() -> {
+            try {
+                got.set((int)(long)slow.get(1));
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+        });
+        getter.start();
+        Thread.sleep(50);
+        assert got.get() == 0;
+        written.countDown();
+        releaser.join();
+        getter.join();
+        assert got.get() == 1;
+        assert loads.get() == 3;
+    }
 }
@@ -0,0 +1,211 @@
+package top.wangqiaosong.minidb.backend.convert;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.google.common.primitives.Bytes;
+
+import top.wangqiaosong.minidb.backend.dm.DataManager;
+import top.wangqiaosong.minidb.backend.dm.logger.LogFiles;
+import top.wangqiaosong.minidb.backend.dm.pageCache.PageCacheOptions;
+import top.wangqiaosong.minidb.backend.dm.pageIndex.FreeSpaceMap;
+import top.wangqiaosong.minidb.backend.parser.statement.Begin;
+import top.wangqiaosong.minidb.backend.parser.statement.Select;
+import top.wangqiaosong.minidb.backend.tbm.Booter;
+import top.wangqiaosong.minidb.backend.tbm.TableManager;
+import top.wangqiaosong.minidb.backend.tm.TransactionManager;
+import top.wangqiaosong.minidb.backend.utils.Parser;
+import top.wangqiaosong.minidb.backend.vm.VersionManager;
+import top.wangqiaosong.minidb.backend.vm.VersionManagerImpl;
+import top.wangqiaosong.minidb.common.Error;
+
+public class ConverterTest {
+
+    private static final int PAGE_SIZE = LegacyReader.PAGE_SIZE;
+    // 旧版本的Node固定为 11 + 16 * 66 字节
+    private static final int NODE_SIZE = 11 + 16 * 66;
+
+    /**
+     * 按旧版本的格式手工写出一个库：数据都放在第2页，日志单独记下
+     */
+    private static class LegacyDb {
+        byte[] pageOne = new byte[PAGE_SIZE];
+        byte[] page = new byte[PAGE_SIZE];
+        int fso = 2;
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        int xChecksum;
+
+        static byte[] item(byte[] data) {
+            return Bytes.concat(new byte[]{0}, Parser.short2Byte((short) data.length), data);
+        }
+
+        // 插入到第2页并返回uid，onlyInLog时页上不写，只占位置
+        long insert(byte[] data, boolean onlyInLog) {
+            byte[] raw = item(data);
+            int offset = fso;
+            if (!onlyInLog) {
+                System.arraycopy(raw, 0, page, offset, raw.length);
+            }
+            fso += raw.length;
+            System.arraycopy(Parser.short2Byte((short) fso), 0, page, 0, 2);
+            return (2L << 32) | offset;
+        }
+
+        void write(long uid, byte[] data) {
+            byte[] raw = item(data);
+            System.arraycopy(raw, 0, page, (int) (uid & 0xFFFF), raw.length);
+        }
+
+        void log(byte[] data) {
+            int checksum = checksum(0, data);
+            byte[] rec = Bytes.concat(Parser.int2Byte(data.length), Parser.int2Byte(checksum), data);
+            xChecksum = checksum(xChecksum, rec);
+            log.write(rec, 0, rec.length);
+        }
+
+        void insertLog(long xid, long uid, byte[] data) {
+            log(Bytes.concat(new byte[]{0}, Parser.long2Byte(xid), Parser.int2Byte((int) (uid >>> 32)),
+                    Parser.short2Byte((short) (uid & 0xFFFF)), item(data)));
+        }
+
+        void updateLog(long xid, long uid, byte[] oldData, byte[] newData) {
+            log(Bytes.concat(new byte[]{1}, Parser.long2Byte(xid), Parser.long2Byte(uid), item(oldData), item(newData)));
+        }
+
+        static int checksum(int x, byte[] data) {
+            for (byte b : data) {
+                x = x * 13331 + b;
+            }
+            return x;
+        }
+
+        void save(String path) throws Exception {
+            try (FileOutputStream out = new FileOutputStream(path + ".db")) {
+                out.write(pageOne);
+                out.write(page);
+            }
+            try (FileOutputStream out = new FileOutputStream(path + ".log")) {
+                out.write(Parser.int2Byte(xChecksum));
+                out.write(log.toByteArray());
+            }
+        }
+    }
+
+    private static byte[] entry(long xmin, long xmax, byte[] data) {
+        return Bytes.concat(Parser.long2Byte(xmin), Parser.long2Byte(xmax), data);
+    }
+
+    private static byte[] row(int id, String name) {
+        return Bytes.concat(Parser.int2Byte(id), Parser.string2Byte(name));
+    }
+
+    private static byte[] leaf(long[] sons, long[] keys) {
+        byte[] raw = new byte[NODE_SIZE];
+        raw[0] = 1;
+        System.arraycopy(Parser.short2Byte((short) sons.length), 0, raw, 1, 2);
+        for (int i = 0; i < sons.length; i++) {
+            System.arraycopy(Parser.long2Byte(sons[i]), 0, raw, 11 + i * 16, 8);
+            System.arraycopy(Parser.long2Byte(keys[i]), 0, raw, 19 + i * 16, 8);
+        }
+        return raw;
+    }
+
+    @Test
+    public void testConvert() throws Exception {
+        String from = "/tmp/TestConvertOld";
+        String to = "/tmp/TestConvertNew";
+        TransactionManager oldTm = TransactionManager.create(from);
+        long committed = oldTm.begin();
+        oldTm.commit(committed);
+        long aborted = oldTm.begin();
+        oldTm.abort(aborted);
+        long active = oldTm.begin();
+        long late = oldTm.begin();
+        oldTm.commit(late);
+        oldTm.close();
+
+        LegacyDb db = new LegacyDb();
+        // 上次没有正常关闭
+        Arrays.fill(db.pageOne, 100, 108, (byte) 1);
+        Arrays.fill(db.pageOne, 108, 116, (byte) 2);
+
+        long r1 = db.insert(entry(committed, 0, row(1, "alice")), false);
+        long r2 = db.insert(entry(committed, committed, row(2, "bob")), false);
+        long r3 = db.insert(entry(aborted, 0, row(3, "carol")), false);
+        long r4 = db.insert(entry(committed, aborted, row(4, "dave")), false);
+        long r5 = db.insert(entry(committed, active, row(5, "eve")), false);
+        byte[] oldLeaf = leaf(new long[]{r1, r2, r3, r4, r5}, new long[]{1, 2, 3, 4, 5});
+        long leafUid = db.insert(oldLeaf, false);
+        long boot = db.insert(Parser.long2Byte(leafUid), false);
+
+        byte[] idField = Bytes.concat(Parser.string2Byte("id"), Parser.string2Byte("int32"), Parser.long2Byte(boot));
+        long idUid = db.insert(entry(committed, 0, idField), false);
+        byte[] nameField = Bytes.concat(Parser.string2Byte("name"), Parser.string2Byte("string"), Parser.long2Byte(0));
+        long nameUid = db.insert(entry(committed, 0, nameField), false);
+
+        // 没有行的表，索引只有一个空的叶子
+        long emptyLeaf = db.insert(leaf(new long[0], new long[0]), false);
+        long emptyBoot = db.insert(Parser.long2Byte(emptyLeaf), false);
+        byte[] kField = Bytes.concat(Parser.string2Byte("k"), Parser.string2Byte("int64"), Parser.long2Byte(emptyBoot));
+        long kUid = db.insert(entry(committed, 0, kField), false);
+        long other = db.insert(entry(committed, 0, Bytes.concat(Parser.string2Byte("other_table"),
+                Parser.long2Byte(0), Parser.long2Byte(kUid))), false);
+        long table = db.insert(entry(committed, 0, Bytes.concat(Parser.string2Byte("test_table"),
+                Parser.long2Byte(other), Parser.long2Byte(idUid), Parser.long2Byte(nameUid))), false);
+        // 建表的事务被撤销了
+        long dropped = db.insert(entry(aborted, 0, Bytes.concat(Parser.string2Byte("dropped_table"),
+                Parser.long2Byte(table), Parser.long2Byte(kUid))), false);
+
+        // 只在日志里的修改：提交了的插入要重做，活跃事务的插入要撤销
+        byte[] r6Raw = entry(late, 0, row(6, "frank"));
+        long r6 = db.insert(r6Raw, true);
+        db.insertLog(late, r6, r6Raw);
+        byte[] r7Raw = entry(active, 0, row(7, "grace"));
+        long r7 = db.insert(r7Raw, true);
+        db.insertLog(active, r7, r7Raw);
+        byte[] newLeaf = leaf(new long[]{r1, r2, r3, r4, r5, r6, r7}, new long[]{1, 2, 3, 4, 5, 6, 7});
+        db.updateLog(0, leafUid, oldLeaf, newLeaf);
+        db.save(from);
+        Booter.create(from).update(Parser.long2Byte(dropped));
+
+        long rows = Converter.convert(from, to, (1 << 20) * 64, new PageCacheOptions());
+        assert rows == 4;
+
+        TransactionManager tm = TransactionManager.open(to);
+        DataManager dm = DataManager.open(to, (1 << 20) * 64, tm);
+        VersionManager vm = new VersionManagerImpl(tm, dm);
+        TableManager tbm = TableManager.open(to, vm, dm);
+        long xid = tbm.begin(new Begin()).xid;
+        Select select = new Select();
+        select.tableName = "test_table";
+        select.fields = new String[]{"*"};
+        assert "[1, alice]\n[4, dave]\n[5, eve]\n[6, frank]\n".equals(new String(tbm.read(xid, select)));
+        select.tableName = "other_table";
+        assert new String(tbm.read(xid, select)).isEmpty();
+        select.tableName = "dropped_table";
+        try {
+            tbm.read(xid, select);
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.TableNotFoundException;
+        }
+        tbm.commit(xid);
+        tbm.close();
+        dm.close();
+        tm.close();
+
+        for (String path : new String[]{from, to}) {
+            new File(path + ".db").delete();
+            new File(path + ".bt").delete();
+            LogFiles.delete(path);
+            new File(path + ".log").delete();
+            new File(path + ".ckpt").delete();
+            new File(path + ".xid").delete();
+            new File(path + FreeSpaceMap.FSM_SUFFIX).delete();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package top.wangqiaosong.minidb.backend.dm;
+
+import top.wangqiaosong.minidb.backend.dm.logger.LoggerCrash;
+import top.wangqiaosong.minidb.backend.dm.pageCache.PageCacheCrash;
+
+/**
+ * 模拟进程崩溃：停掉检查点、页写回和日志刷盘的后台线程，缓冲中的日志和脏页都不写出
+ * 之后这个实例不能再用，重新打开同一个库时不会有旧实例的线程还在改文件
+ * 先停页缓存，写线程等的日志刷盘还能完成，不会在日志之前写页
+ */
+public class DataManagerCrash {
+    public static void crash(DataManager dm) {
+        DataManagerImpl impl = (DataManagerImpl) dm;
+        impl.stopCheckpointer();
+        PageCacheCrash.crash(impl.pc);
+        LoggerCrash.crash(impl.logger);
+    }
+}
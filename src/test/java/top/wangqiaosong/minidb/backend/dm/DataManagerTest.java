@@ -1,24 +1,34 @@
 package top.wangqiaosong.minidb.backend.dm;
 
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.junit.Test;
 
+import top.wangqiaosong.minidb.backend.dm.logger.LogFiles;
 import top.wangqiaosong.minidb.backend.common.SubArray;
 import top.wangqiaosong.minidb.backend.dm.dataItem.DataItem;
+import top.wangqiaosong.minidb.backend.dm.logger.Logger;
+import top.wangqiaosong.minidb.backend.dm.page.PageX;
 import top.wangqiaosong.minidb.backend.dm.pageCache.PageCache;
+import top.wangqiaosong.minidb.backend.dm.pageIndex.FreeSpaceMap;
+import top.wangqiaosong.minidb.backend.dm.pageIndex.PageIndex;
 import top.wangqiaosong.minidb.backend.tm.MockTransactionManager;
 import top.wangqiaosong.minidb.backend.tm.TransactionManager;
 import top.wangqiaosong.minidb.backend.utils.Panic;
 import top.wangqiaosong.minidb.backend.utils.RandomUtil;
+import top.wangqiaosong.minidb.common.Error;
 
 public class DataManagerTest {
 
@@ -109,7 +119,8 @@ public class DataManagerTest {
         dm0.close(); mdm.close();
 
         new File("/tmp/TESTDMSingle.db").delete();
-        new File("/tmp/TESTDMSingle.log").delete();
+        LogFiles.delete("/tmp/TESTDMSingle");
+        new File("/tmp/TESTDMSingle.ckpt").delete();
     }
 
     @Test
@@ -129,7 +140,416 @@ public class DataManagerTest {
         dm0.close(); mdm.close();
 
         new File("/tmp/TestDMMulti.db").delete();
-        new File("/tmp/TestDMMulti.log").delete();
+        LogFiles.delete("/tmp/TestDMMulti");
+        new File("/tmp/TestDMMulti.ckpt").delete();
+    }
+
+    @Test
+    public void testConcurrentInsert() throws Exception {
+        TransactionManager tm0 = new MockTransactionManager();
+        DataManager dm0 = DataManager.create("/tmp/TestDMConcurrentInsert", PageCache.PAGE_SIZE*50, tm0);
+        int workers = 20, each = 200, size = 100;
+        Map<Long, byte[]> inserted = new ConcurrentHashMap<>();
+        AtomicInteger failed = new AtomicInteger(0);
+        CountDownLatch cdl = new CountDownLatch(workers);
+        for(int i = 0; i < workers; i ++) {
+            new Thread(() -> {
+                try {
+                    for(int k = 0; k < each; k ++) {
+                        byte[] data = RandomUtil.randomBytes(size);
+                        inserted.put(dm0.insert(0, data), data);
+                    }
+                } catch(Exception e) {
+                    failed.incrementAndGet();
+                } finally {
+                    cdl.countDown();
+                }
+            }).start();
+        }
+        cdl.await();
+        assert failed.get() == 0;
+        assert inserted.size() == workers * each;
+        // 同时插入的线程共用页，页基本都是满的
+        int perPage = PageX.maxFreeSpace(PageCache.PAGE_SIZE) / (size + 3 + 4);
+        assert ((DataManagerImpl)dm0).pc.getPageNumber() <= 1 + workers * each / perPage * 11 / 10 + 1;
+        for(Map.Entry<Long, byte[]> e : inserted.entrySet()) {
+            DataItem di = dm0.read(e.getKey());
+            SubArray data = di.data();
+            assert Arrays.equals(Arrays.copyOfRange(data.raw, data.start, data.end), e.getValue());
+            di.release();
+        }
+        dm0.close();
+
+        new File("/tmp/TestDMConcurrentInsert.db").delete();
+        LogFiles.delete("/tmp/TestDMConcurrentInsert");
+        new File("/tmp/TestDMConcurrentInsert.ckpt").delete();
+    }
+
+    @Test
+    public void testFreeReusesSpace() throws Exception {
+        TransactionManager tm0 = TransactionManager.create("/tmp/TestDMFree");
+        DataManager dm0 = DataManager.create("/tmp/TestDMFree", PageCache.PAGE_SIZE*10, tm0);
+        List<Long> uids = new ArrayList<>();
+        for(int i = 0; i < 200; i ++) {
+            uids.add(dm0.insert(0, RandomUtil.randomBytes(500)));
+        }
+        int pages = ((DataManagerImpl)dm0).pc.getPageNumber();
+        // 释放一半后再插入同样多的数据，文件不再增长
+        List<Long> kept = new ArrayList<>();
+        List<byte[]> keptData = new ArrayList<>();
+        for(int i = 0; i < uids.size(); i ++) {
+            if(i % 2 == 0) {
+                dm0.free(uids.get(i));
+            } else {
+                kept.add(uids.get(i));
+                DataItem di = dm0.read(uids.get(i));
+                SubArray data = di.data();
+                keptData.add(Arrays.copyOfRange(data.raw, data.start, data.end));
+                di.release();
+            }
+        }
+        for(int i = 0; i < 100; i ++) {
+            byte[] data = RandomUtil.randomBytes(500);
+            kept.add(dm0.insert(0, data));
+            keptData.add(data);
+        }
+        assert ((DataManagerImpl)dm0).pc.getPageNumber() == pages;
+
+        // 不正常关闭，恢复后记录都还在原来的uid上；日志先落盘，组提交缓冲中的日志崩溃时会丢
+        dm0.flushLog();
+        DataManagerCrash.crash(dm0);
+        dm0 = DataManager.open("/tmp/TestDMFree", PageCache.PAGE_SIZE*10, tm0);
+        for(int i = 0; i < kept.size(); i ++) {
+            DataItem di = dm0.read(kept.get(i));
+            SubArray data = di.data();
+            assert Arrays.equals(Arrays.copyOfRange(data.raw, data.start, data.end), keptData.get(i));
+            di.release();
+        }
+        dm0.close();
+        tm0.close();
+
+        new File("/tmp/TestDMFree.db").delete();
+        LogFiles.delete("/tmp/TestDMFree");
+        new File("/tmp/TestDMFree.ckpt").delete();
+        new File("/tmp/TestDMFree.xid").delete();
+    }
+
+    @Test
+    public void testOverflow() throws Exception {
+        TransactionManager tm0 = TransactionManager.create("/tmp/TestDMOverflow");
+        DataManager dm0 = DataManager.create("/tmp/TestDMOverflow", PageCache.PAGE_SIZE*10, tm0);
+        int[] sizes = {0, 100, PageCache.PAGE_SIZE, PageCache.PAGE_SIZE * 5 + 17};
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int size : sizes) {
+            byte[] data = RandomUtil.randomBytes(size);
+            uids.add(dm0.insertOverflow(0, data));
+            datas.add(data);
+        }
+        for(int i = 0; i < sizes.length; i ++) {
+            assert Arrays.equals(dm0.readOverflow(uids.get(i)), datas.get(i));
+        }
+        // 释放后同样大小的值用回这些页
+        int pages = ((DataManagerImpl)dm0).pc.getPageNumber();
+        dm0.freeOverflow(uids.get(3));
+        long uid = dm0.insertOverflow(0, datas.get(3));
+        assert ((DataManagerImpl)dm0).pc.getPageNumber() == pages;
+        // 两个版本共用的链，去掉一个引用后还在
+        dm0.refOverflow(0, uids.get(2));
+        dm0.freeOverflow(uids.get(2));
+        assert Arrays.equals(dm0.readOverflow(uids.get(2)), datas.get(2));
+        dm0.close();
+
+        dm0 = DataManager.open("/tmp/TestDMOverflow", PageCache.PAGE_SIZE*10, tm0);
+        assert Arrays.equals(dm0.readOverflow(uid), datas.get(3));
+        assert Arrays.equals(dm0.readOverflow(uids.get(2)), datas.get(2));
+        dm0.freeOverflow(uids.get(2));
+        try {
+            dm0.readOverflow(uids.get(2));
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.InvalidUidException;
+        }
+        dm0.close();
+        tm0.close();
+
+        new File("/tmp/TestDMOverflow.db").delete();
+        LogFiles.delete("/tmp/TestDMOverflow");
+        new File("/tmp/TestDMOverflow.ckpt").delete();
+        new File("/tmp/TestDMOverflow.xid").delete();
+    }
+
+    @Test
+    public void testFreeSpaceMap() throws Exception {
+        String path = "/tmp/TestDMFsm";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManagerImpl dm0 = (DataManagerImpl)DataManager.create(path, PageCache.PAGE_SIZE*10, tm0);
+        Random random = new Random(1);
+        List<Long> uids = new ArrayList<>();
+        for(int i = 0; i < 300; i ++) {
+            uids.add(dm0.insert(0, RandomUtil.randomBytes(random.nextInt(2000) + 1)));
+        }
+        for(int i = 0; i < uids.size(); i += 3) {
+            dm0.free(uids.get(i));
+        }
+        int pageNumber = dm0.pc.getPageNumber();
+        dm0.close();
+        assert FreeSpaceMap.open(path).load(new PageIndex(dm0.getPageSize()), pageNumber);
+        assert !FreeSpaceMap.open(path).load(new PageIndex(dm0.getPageSize()), pageNumber + 1);
+
+        // 正常关闭后从空闲空间图装入，和扫描所有页得到的区间一致
+        dm0 = (DataManagerImpl)DataManager.open(path, PageCache.PAGE_SIZE*10, tm0);
+        byte[] loaded = dm0.pIndex.dump(pageNumber);
+        dm0.pIndex = new PageIndex(dm0.getPageSize());
+        dm0.fillPageIndex();
+        assert Arrays.equals(loaded, dm0.pIndex.dump(pageNumber));
+        for(int i = 0; i < 100; i ++) {
+            uids.add(dm0.insert(0, RandomUtil.randomBytes(random.nextInt(2000) + 1)));
+        }
+        pageNumber = dm0.pc.getPageNumber();
+        DataManagerCrash.crash(dm0);
+
+        // 不正常关闭，文件中的空闲空间图已经过时，打开时不用它
+        dm0 = (DataManagerImpl)DataManager.open(path, PageCache.PAGE_SIZE*10, tm0);
+        loaded = dm0.pIndex.dump(pageNumber);
+        dm0.pIndex = new PageIndex(dm0.getPageSize());
+        dm0.fillPageIndex();
+        assert Arrays.equals(loaded, dm0.pIndex.dump(pageNumber));
+        dm0.close();
+        tm0.close();
+
+        new File(path + ".db").delete();
+        LogFiles.delete(path);
+        new File(path + ".ckpt").delete();
+        new File(path + ".xid").delete();
+        new File(path + FreeSpaceMap.FSM_SUFFIX).delete();
+    }
+
+    @Test
+    public void testCheckpoint() throws Exception {
+        String path = "/tmp/TestDMCheckpoint";
+        TransactionManager tm0 = TransactionManager.create(path);
+        // 和DataManager.create一样，只是日志段小一些，检查点能删掉旧段
+        PageCache pc = PageCache.create(path, PageCache.PAGE_SIZE*10);
+        Logger lg = Logger.create(path, 1 << 14);
+        pc.setLogger(lg);
+        DataManagerImpl dm0 = new DataManagerImpl(pc, lg, tm0);
+        dm0.path = path;
+        dm0.fsm = FreeSpaceMap.open(path);
+        dm0.initPageOne();
+        dm0.startCheckpointer();
+
+        Random random = new Random(1);
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 200; i ++) {
+            byte[] data = RandomUtil.randomBytes(random.nextInt(1000) + 1);
+            uids.add(dm0.insert(0, data));
+            datas.add(data);
+        }
+        long xid = tm0.begin();
+        long active = dm0.insert(xid, RandomUtil.randomBytes(100));
+        for(int i = 0; i < 200; i ++) {
+            byte[] data = RandomUtil.randomBytes(random.nextInt(1000) + 1);
+            uids.add(dm0.insert(0, data));
+            datas.add(data);
+        }
+        dm0.checkpoint();
+        // 活跃事务第一条日志之前的段都删掉了
+        assert !new File(path + ".log").exists();
+        Checkpoint ckpt = Checkpoint.load(path);
+        assert ckpt.active.containsKey(xid);
+        assert ckpt.pageNumber == dm0.pc.getPageNumber();
+
+        for(int i = 0; i < 100; i ++) {
+            byte[] data = RandomUtil.randomBytes(random.nextInt(1000) + 1);
+            uids.add(dm0.insert(0, data));
+            datas.add(data);
+        }
+        // 模拟崩溃：日志落盘后崩溃，不关闭
+        dm0.flushLog();
+        DataManagerCrash.crash(dm0);
+
+        dm0 = (DataManagerImpl)DataManager.open(path, PageCache.PAGE_SIZE*10, tm0);
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm0.read(uids.get(i));
+            SubArray sa = di.data();
+            assert Arrays.equals(datas.get(i), Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+            di.release();
+        }
+        // 崩溃时活跃的事务被撤销
+        assert !tm0.isActive(xid);
+        assert dm0.read(active) == null;
+        dm0.close();
+        tm0.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".ckpt").delete();
+        LogFiles.delete(path);
+        new File(path + ".xid").delete();
+        new File(path + FreeSpaceMap.FSM_SUFFIX).delete();
+    }
+
+    @Test
+    public void testParallelRedo() throws Exception {
+        String path = "/tmp/TestDMParallelRedo";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManagerImpl dm0 = (DataManagerImpl)DataManager.create(path, PageCache.PAGE_SIZE*10, tm0);
+        Random random = new Random(1);
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 500; i ++) {
+            byte[] data = RandomUtil.randomBytes(random.nextInt(500) + 8);
+            uids.add(dm0.insert(0, data));
+            datas.add(data);
+        }
+        // 同一页上的插入、修改、释放要按日志顺序重做
+        for(int i = 0; i < uids.size(); i += 2) {
+            DataItem di = dm0.read(uids.get(i));
+            di.before();
+            SubArray sa = di.data();
+            random.nextBytes(datas.get(i));
+            System.arraycopy(datas.get(i), 0, sa.raw, sa.start, datas.get(i).length);
+            di.after(0);
+            di.release();
+        }
+        for(int i = 1; i < uids.size(); i += 4) {
+            dm0.free(uids.get(i));
+            datas.set(i, null);
+        }
+        for(int i = 0; i < 100; i ++) {
+            byte[] data = RandomUtil.randomBytes(random.nextInt(500) + 8);
+            uids.add(dm0.insert(0, data));
+            datas.add(data);
+        }
+        // 模拟崩溃
+        dm0.flushLog();
+        DataManagerCrash.crash(dm0);
+
+        dm0 = (DataManagerImpl)DataManager.open(path, PageCache.PAGE_SIZE*10, tm0);
+        for(int i = 0; i < uids.size(); i ++) {
+            if(datas.get(i) == null) {
+                continue;
+            }
+            DataItem di = dm0.read(uids.get(i));
+            SubArray sa = di.data();
+            assert Arrays.equals(datas.get(i), Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+            di.release();
+        }
+        dm0.close();
+        tm0.close();
+
+        new File(path + ".db").delete();
+        LogFiles.delete(path);
+        new File(path + ".ckpt").delete();
+        new File(path + ".xid").delete();
+        new File(path + FreeSpaceMap.FSM_SUFFIX).delete();
+    }
+
+    @Test
+    public void testDeltaUpdateLog() throws Exception {
+        String path = "/tmp/TestDMDelta";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManagerImpl dm0 = (DataManagerImpl)DataManager.create(path, PageCache.PAGE_SIZE*10, tm0);
+        byte[] data = RandomUtil.randomBytes(500);
+        long uid = dm0.insert(0, data);
+        byte[] data1 = data.clone();
+        long uid1 = dm0.insert(0, data1);
+
+        // 只改8字节，日志里只有这一段
+        DataItem di = dm0.read(uid);
+        di.before();
+        SubArray sa = di.data();
+        for(int i = 100; i < 108; i ++) {
+            sa.raw[sa.start + i] ^= 0x5a;
+            data[i] ^= 0x5a;
+        }
+        assert Recover.updateLog(0, di).length < 1 + 8 + 8 + 2 + 4 + 8 * 2 + 1;
+        di.after(0);
+        di.release();
+
+        // 隔得近的两处合并成一段，隔得远的分开
+        di = dm0.read(uid);
+        di.before();
+        sa = di.data();
+        sa.raw[sa.start + 10] ^= 1; data[10] ^= 1;
+        sa.raw[sa.start + 12] ^= 1; data[12] ^= 1;
+        sa.raw[sa.start + 400] ^= 1; data[400] ^= 1;
+        assert Recover.updateLog(0, di).length == 1 + 8 + 8 + 2 + (4 + 3 * 2) + (4 + 1 * 2);
+        di.after(0);
+        di.release();
+
+        // 崩溃时还活跃的事务的修改被撤销
+        long xid = tm0.begin();
+        di = dm0.read(uid1);
+        di.before();
+        sa = di.data();
+        sa.raw[sa.start + 250] ^= 1;
+        di.after(xid);
+        di.release();
+
+        dm0.flushLog();
+        DataManagerCrash.crash(dm0);
+
+        dm0 = (DataManagerImpl)DataManager.open(path, PageCache.PAGE_SIZE*10, tm0);
+        di = dm0.read(uid);
+        sa = di.data();
+        assert Arrays.equals(data, Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+        di.release();
+        di = dm0.read(uid1);
+        sa = di.data();
+        assert Arrays.equals(data1, Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+        di.release();
+        dm0.close();
+        tm0.close();
+
+        new File(path + ".db").delete();
+        LogFiles.delete(path);
+        new File(path + ".ckpt").delete();
+        new File(path + ".xid").delete();
+        new File(path + FreeSpaceMap.FSM_SUFFIX).delete();
+    }
+
+    @Test
+    public void testTornPage() throws Exception {
+        String path = "/tmp/TestDMTornPage";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManagerImpl dm0 = (DataManagerImpl)DataManager.create(path, PageCache.PAGE_SIZE*10, tm0);
+        Random random = new Random(1);
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 100; i ++) {
+            byte[] data = RandomUtil.randomBytes(random.nextInt(500) + 8);
+            uids.add(dm0.insert(0, data));
+            datas.add(data);
+        }
+        // 脏页都写回后崩溃
+        dm0.pc.flushForCheckpoint();
+        dm0.flushLog();
+        DataManagerCrash.crash(dm0);
+
+        // 模拟第一条记录所在页只写进了前半页：PageLSN是新的，后半页的记录还没有
+        int pgno = (int)(uids.get(0) >>> 32);
+        try(RandomAccessFile raf = new RandomAccessFile(path + ".db", "rw")) {
+            raf.seek((long)(pgno - 1) * PageCache.PAGE_SIZE + PageCache.PAGE_SIZE / 2);
+            raf.write(new byte[PageCache.PAGE_SIZE / 2]);
+        }
+
+        dm0 = (DataManagerImpl)DataManager.open(path, PageCache.PAGE_SIZE*10, tm0);
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm0.read(uids.get(i));
+            SubArray sa = di.data();
+            assert Arrays.equals(datas.get(i), Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+            di.release();
+        }
+        dm0.close();
+        tm0.close();
+
+        new File(path + ".db").delete();
+        LogFiles.delete(path);
+        new File(path + ".ckpt").delete();
+        new File(path + ".xid").delete();
+        new File(path + FreeSpaceMap.FSM_SUFFIX).delete();
     }
 
     @Test
@@ -150,11 +570,16 @@ public class DataManagerTest {
                 new Thread(r).run();
             }
             cdl.await();
+            // 组提交的日志可能还在缓冲中，落盘后再模拟崩溃，否则重新打开时丢掉的修改MockDataManager里还有
+            dm0.flushLog();
+            DataManagerCrash.crash(dm0);
         }
+        dm0 = DataManager.open("/tmp/TestRecoverySimple", PageCache.PAGE_SIZE*10, tm0);
         dm0.close(); mdm.close();
         
         new File("/tmp/TestRecoverySimple.db").delete();
-        new File("/tmp/TestRecoverySimple.log").delete();
+        LogFiles.delete("/tmp/TestRecoverySimple");
+        new File("/tmp/TestRecoverySimple.ckpt").delete();
         new File("/tmp/TestRecoverySimple.xid").delete();
 
     }
@@ -1,6 +1,8 @@
 package top.wangqiaosong.minidb.backend.dm;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.locks.Lock;
@@ -9,15 +11,18 @@ import java.util.concurrent.locks.ReentrantLock;
 import top.wangqiaosong.minidb.backend.common.SubArray;
 import top.wangqiaosong.minidb.backend.dm.dataItem.DataItem;
 import top.wangqiaosong.minidb.backend.dm.dataItem.MockDataItem;
+import top.wangqiaosong.minidb.backend.dm.pageCache.PageCache;
 
 public class MockDataManager implements DataManager {
 
     private Map<Long, DataItem> cache;
+    private Map<Long, Integer> overflowRefs;
     private Lock lock;
 
     public static MockDataManager newMockDataManager() {
         MockDataManager dm = new MockDataManager();
         dm.cache = new HashMap<>();
+        dm.overflowRefs = new HashMap<>();
         dm.lock = new ReentrantLock();
         return dm;
     }
@@ -51,7 +56,82 @@ public class MockDataManager implements DataManager {
         }
     }
 
+    @Override
+    public void free(long uid) throws Exception {
+        lock.lock();
+        try {
+            cache.remove(uid);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 不切块，整个值存成一项
+    @Override
+    public long insertOverflow(long xid, byte[] data) throws Exception {
+        long uid = insert(xid, data);
+        lock.lock();
+        try {
+            overflowRefs.put(uid, 1);
+        } finally {
+            lock.unlock();
+        }
+        return uid;
+    }
+
+    @Override
+    public byte[] readOverflow(long uid) throws Exception {
+        SubArray sa = read(uid).data();
+        return Arrays.copyOfRange(sa.raw, sa.start, sa.end);
+    }
+
+    @Override
+    public void refOverflow(long xid, long uid) throws Exception {
+        lock.lock();
+        try {
+            overflowRefs.merge(uid, 1, Integer::sum);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void freeOverflow(long uid) throws Exception {
+        lock.lock();
+        try {
+            if (overflowRefs.merge(uid, -1, Integer::sum) > 0) {
+                return;
+            }
+            overflowRefs.remove(uid);
+        } finally {
+            lock.unlock();
+        }
+        free(uid);
+    }
+
+    @Override
+    public void flushLog() {}
+
+    @Override
+    public void checkpoint() {}
+
     @Override
     public void close() {}
-    
+
+    @Override
+    public void beginBulkRead() {}
+
+    @Override
+    public void endBulkRead() {}
+
+    @Override
+    public void prefetch(List<Long> uids) {}
+
+    @Override
+    public void loadPages(List<Long> uids) {}
+
+    @Override
+    public int getPageSize() {
+        return PageCache.PAGE_SIZE;
+    }
 }
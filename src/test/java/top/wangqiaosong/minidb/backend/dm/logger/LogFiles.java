@@ -0,0 +1,18 @@
+package top.wangqiaosong.minidb.backend.dm.logger;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * 测试结束时删掉一个库的日志
+ * 检查点会删掉前面的段，段号不一定从0开始，按LogSegment.list实际存在的段删
+ */
+public class LogFiles {
+    public static void delete(String path) {
+        List<Integer> nos = LogSegment.list(path);
+        assert !nos.isEmpty();
+        for (int no : nos) {
+            assert new File(LogSegment.nameOf(path, no)).delete();
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package top.wangqiaosong.minidb.backend.dm.logger;
+
+public class LoggerCrash {
+    public static void crash(Logger lg) {
+        ((LoggerImpl) lg).crash();
+    }
+}
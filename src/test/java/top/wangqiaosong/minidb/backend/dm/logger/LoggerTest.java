@@ -1,6 +1,15 @@
 package top.wangqiaosong.minidb.backend.dm.logger;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import com.google.common.primitives.Bytes;
+
+import top.wangqiaosong.minidb.backend.utils.Parser;
 
 import org.junit.Test;
 
@@ -45,4 +54,117 @@ public class LoggerTest {
 
         assert new File("/tmp/logger_test.log").delete();
     }
+
+    @Test
+    public void testLsn() {
+        Logger lg = Logger.create("/tmp/logger_lsn_test");
+        long lsn1 = lg.log("aaa".getBytes());
+        long lsn2 = lg.log("bbbb".getBytes());
+        // LSN是日志结束的位置，[Size][Checksum][Data]，新建的日志从0开始
+        assert lsn1 == 8 + 3;
+        assert lsn2 == lsn1 + 8 + 4;
+        lg.flush(lsn2);
+        lg.close();
+
+        lg = Logger.open("/tmp/logger_lsn_test");
+        long lsn3 = lg.log("c".getBytes());
+        assert lsn3 == lsn2 + 8 + 1;
+        lg.close();
+
+        assert new File("/tmp/logger_lsn_test.log").delete();
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        Logger lg = Logger.create("/tmp/logger_group_test");
+        int threads = 10, per = 50;
+        CountDownLatch cdl = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i ++) {
+            final int id = i;
+            new Thread(() -> {
+                for (int j = 0; j < per; j ++) {
+                    long lsn = lg.log((id + "-" + j).getBytes());
+                    lg.flush(lsn);
+                }
+                cdl.countDown();
+            }).start();
+        }
+        cdl.await();
+
+        // 不close直接重新打开，flush返回的日志都应该已经落盘
+        Logger lg2 = Logger.open("/tmp/logger_group_test");
+        lg2.rewind();
+        Set<String> logs = new HashSet<>();
+        byte[] log;
+        while ((log = lg2.next()) != null) {
+            logs.add(new String(log));
+        }
+        assert logs.size() == threads * per;
+        for (int i = 0; i < threads; i ++) {
+            for (int j = 0; j < per; j ++) {
+                assert logs.contains(i + "-" + j);
+            }
+        }
+        lg2.close();
+        lg.close();
+
+        assert new File("/tmp/logger_group_test.log").delete();
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+        String path = "/tmp/logger_segment_test";
+        Logger lg = Logger.create(path, 128);
+        long lsn = 0;
+        for (int i = 0; i < 50; i ++) {
+            lsn = lg.log(("log-" + i).getBytes());
+        }
+        lg.flush(lsn);
+        lg.close();
+        int segments = LogSegment.list(path).size();
+        assert segments > 1;
+
+        // 最后一段末尾写坏，只截掉坏的部分
+        try (RandomAccessFile raf = new RandomAccessFile(LogSegment.nameOf(path, segments - 1), "rw")) {
+            raf.seek(raf.length());
+            raf.write(new byte[]{0, 0, 0, 5, 1, 2, 3, 4, 'x'});
+        }
+
+        lg = Logger.open(path);
+        lg.rewind();
+        for (int i = 0; i < 50; i ++) {
+            byte[] log = lg.next();
+            assert log != null;
+            assert ("log-" + i).equals(new String(log));
+        }
+        assert lg.next() == null;
+        assert lg.position() == lsn;
+        assert lg.log("c".getBytes()) == lsn + 8 + 1;
+        assert lg.headLsn() == 0;
+        lg.removeBefore(lsn);
+        assert lg.headLsn() > 0 && lg.headLsn() <= lsn;
+        lg.close();
+
+        for (int no : LogSegment.list(path)) {
+            assert new File(LogSegment.nameOf(path, no)).delete();
+        }
+    }
+
+    @Test
+    public void testDetectLegacy() throws Exception {
+        String path = "/tmp/logger_legacy_test";
+        // 旧格式的日志文件：[XChecksum][Size][Checksum][Data]...
+        byte[] data = "old".getBytes();
+        try (FileOutputStream out = new FileOutputStream(path + ".log")) {
+            out.write(Parser.int2Byte(0));
+            out.write(Bytes.concat(Parser.int2Byte(data.length), Parser.int2Byte(0), data));
+        }
+        assert Logger.isLegacy(path);
+        assert new File(path + ".log").delete();
+
+        Logger lg = Logger.create(path);
+        lg.close();
+        assert !Logger.isLegacy(path);
+        assert new File(path + ".log").delete();
+    }
 }
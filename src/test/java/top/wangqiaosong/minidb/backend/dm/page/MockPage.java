@@ -46,5 +46,29 @@ public class MockPage implements Page {
     public byte[] getData() {
         return data;
     }
+
+    @Override
+    public long getLsn() {
+        return 0;
+    }
+
+    @Override
+    public void setLsn(long lsn) {}
+
+    @Override
+    public long getRecLsn() {
+        return 0;
+    }
+
+    @Override
+    public void beginUpdate() {}
+
+    @Override
+    public void endUpdate() {}
+
+    @Override
+    public boolean isUpdating() {
+        return false;
+    }
     
 }
@@ -0,0 +1,76 @@
+package top.wangqiaosong.minidb.backend.dm.page;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import top.wangqiaosong.minidb.backend.dm.pageCache.PageCache;
+
+public class PageXTest {
+
+    private static byte[] record(int length, int fill) {
+        byte[] raw = new byte[length];
+        Arrays.fill(raw, (byte)fill);
+        return raw;
+    }
+
+    private static byte[] read(Page pg, short slot, int length) {
+        int offset = PageX.getOffset(pg, slot);
+        return Arrays.copyOfRange(pg.getData(), offset, offset + length);
+    }
+
+    @Test
+    public void testFreeAndCompact() {
+        Page pg = MockPage.newMockPage(2, PageX.initRaw(PageCache.PAGE_SIZE));
+        int max = PageX.getFreeSpace(pg);
+        assert max == PageX.maxFreeSpace(PageCache.PAGE_SIZE);
+
+        // 写满一页
+        int n = 0;
+        while(PageX.canInsert(pg, 100)) {
+            assert PageX.insert(pg, record(100, n)) == n;
+            n ++;
+        }
+        // 释放中间的槽，空间零散，只有整理后才能放下大记录
+        for(int i = 1; i < n - 1; i += 2) {
+            PageX.free(pg, (short)i);
+        }
+        assert PageX.canInsert(pg, 300);
+        assert PageX.needCompact(pg, 300);
+        PageX.compact(pg);
+        assert !PageX.needCompact(pg, 300);
+        // 空槽被重用，未释放的记录内容和槽号不变
+        assert PageX.insert(pg, record(300, 77)) == 1;
+        assert Arrays.equals(read(pg, (short)1, 300), record(300, 77));
+        for(int i = 0; i < n; i += 2) {
+            assert Arrays.equals(read(pg, (short)i, 100), record(100, i));
+        }
+        assert PageX.getOffset(pg, (short)3) == 0;
+
+        // 全部释放后回到空页
+        for(int i = 0; i < n; i ++) {
+            PageX.free(pg, (short)i);
+        }
+        PageX.compact(pg);
+        assert PageX.getFreeSpace(pg) == max;
+        assert PageX.getContiguousFreeSpace(pg) == max;
+    }
+
+    @Test
+    public void testRecoverIsIdempotent() {
+        Page pg = MockPage.newMockPage(2, PageX.initRaw(PageCache.PAGE_SIZE));
+        PageX.recoverInsert(pg, record(50, 1), (short)3);
+        PageX.recoverInsert(pg, record(50, 1), (short)3);
+        PageX.recoverInsert(pg, record(20, 2), (short)0);
+        assert PageX.nextSlot(pg) == 1;
+        // 同一个槽换成不同长度的记录
+        PageX.recoverInsert(pg, record(80, 4), (short)3);
+        assert Arrays.equals(read(pg, (short)3, 80), record(80, 4));
+        PageX.recoverUpdate(pg, (short)0, 0, record(20, 5));
+        assert Arrays.equals(read(pg, (short)0, 20), record(20, 5));
+        PageX.recoverFree(pg, (short)3);
+        PageX.recoverFree(pg, (short)3);
+        assert PageX.getOffset(pg, (short)3) == 0;
+        assert PageX.nextSlot(pg) == 1;
+    }
+}
@@ -0,0 +1,41 @@
+package top.wangqiaosong.minidb.backend.dm.pageCache;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class Lz4Test {
+    @Test
+    public void testRoundTrip() {
+        Random random = new Random(42);
+        byte[] dst = new byte[PageCache.PAGE_SIZE * 2];
+        for(int round = 0; round < 200; round ++) {
+            // 从全零到完全随机，中间是小字母表的重复内容
+            int len = random.nextInt(PageCache.PAGE_SIZE) + 1;
+            int alphabet = 1 << random.nextInt(9);
+            byte[] src = new byte[len];
+            for(int i = 0; i < len; i ++) {
+                src[i] = (byte)random.nextInt(alphabet);
+            }
+            int end = Lz4.compress(src, len, dst, 3, dst.length);
+            assert end > 0;
+            byte[] out = new byte[len];
+            assert Lz4.decompress(dst, 3, end, out) == len;
+            assert Arrays.equals(src, out);
+        }
+    }
+
+    @Test
+    public void testCompressible() {
+        byte[] src = new byte[PageCache.PAGE_SIZE];
+        for(int i = 0; i < 200; i ++) {
+            System.arraycopy("hello minidb ".getBytes(), 0, src, i * 13, 13);
+        }
+        byte[] dst = new byte[PageCache.PAGE_SIZE];
+        int end = Lz4.compress(src, src.length, dst, 0, dst.length);
+        assert end > 0 && end < PageCache.PAGE_SIZE / 20;
+        // 放不下时返回-1
+        assert Lz4.compress(src, src.length, dst, 0, end - 1) == -1;
+    }
+}
@@ -6,6 +6,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import top.wangqiaosong.minidb.backend.dm.logger.Logger;
 import top.wangqiaosong.minidb.backend.dm.page.MockPage;
 import top.wangqiaosong.minidb.backend.dm.page.Page;
 
@@ -38,6 +39,15 @@ public class MockPageCache implements PageCache {
         }
     }
 
+    @Override
+    public Page[] getPages(int[] pgnos) throws Exception {
+        Page[] pages = new Page[pgnos.length];
+        for(int i = 0; i < pgnos.length; i ++) {
+            pages[i] = getPage(pgnos[i]);
+        }
+        return pages;
+    }
+
     @Override
     public void close() {}
 
@@ -54,5 +64,41 @@ public class MockPageCache implements PageCache {
 
     @Override
     public void flushPage(Page pg) {}
+
+    @Override
+    public boolean runExclusive(Page pg, Runnable action) {
+        action.run();
+        return true;
+    }
+
+    @Override
+    public void beginBulkRead() {}
+
+    @Override
+    public void endBulkRead() {}
+
+    @Override
+    public void prefetch(int fromPgno, int count) {}
+
+    @Override
+    public void setLogger(Logger logger) {}
+
+    @Override
+    public long flushForCheckpoint() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public void restorePage(int pgno, byte[] data) {}
+
+    @Override
+    public boolean isCompressed() {
+        return false;
+    }
+
+    @Override
+    public int getPageSize() {
+        return PAGE_SIZE;
+    }
     
 }
@@ -0,0 +1,7 @@
+package top.wangqiaosong.minidb.backend.dm.pageCache;
+
+public class PageCacheCrash {
+    public static void crash(PageCache pc) {
+        ((PageCacheImpl) pc).crash();
+    }
+}
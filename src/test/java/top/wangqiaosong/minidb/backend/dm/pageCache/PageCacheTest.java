@@ -1,9 +1,13 @@
 package top.wangqiaosong.minidb.backend.dm.pageCache;
 
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.security.SecureRandom;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
@@ -11,9 +15,12 @@ import java.util.concurrent.locks.ReentrantLock;
 
 import org.junit.Test;
 
+import top.wangqiaosong.minidb.backend.dm.logger.Logger;
 import top.wangqiaosong.minidb.backend.dm.page.Page;
+import top.wangqiaosong.minidb.backend.dm.page.PageOne;
 import top.wangqiaosong.minidb.backend.utils.Panic;
 import top.wangqiaosong.minidb.backend.utils.RandomUtil;
+import top.wangqiaosong.minidb.common.Error;
 
 public class PageCacheTest {
 
@@ -43,6 +50,386 @@ public class PageCacheTest {
         assert new File("/tmp/pcacher_simple_test0.db").delete();
     }
 
+    @Test
+    public void testMmapPageCache() throws Exception {
+        PageCacheOptions opt = new PageCacheOptions();
+        opt.mmap = true;
+        PageCache pc = PageCache.create("/tmp/pcacher_mmap_test0", PageCache.PAGE_SIZE * 50, opt);
+        for(int i = 0 ; i < 100; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            int pgno = pc.newPage(tmp);
+            Page pg = pc.getPage(pgno);
+            pg.getData()[1] = (byte)i;
+            pg.setDirty(true);
+            pg.release();
+        }
+        pc.close();
+        // 关闭后文件截回逻辑长度
+        assert new File("/tmp/pcacher_mmap_test0.db").length() == 100L * PageCache.PAGE_SIZE;
+
+        pc = PageCache.open("/tmp/pcacher_mmap_test0", PageCache.PAGE_SIZE * 50, opt);
+        assert pc.getPageNumber() == 100;
+        for(int i = 1; i <= 100; i ++) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[0] == (byte)(i-1);
+            assert pg.getData()[1] == (byte)(i-1);
+            pg.release();
+        }
+        pc.truncateByBgno(10);
+        int pgno = pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        assert pgno == 11;
+        pc.close();
+        assert new File("/tmp/pcacher_mmap_test0.db").length() == 11L * PageCache.PAGE_SIZE;
+
+        assert new File("/tmp/pcacher_mmap_test0.db").delete();
+    }
+
+    @Test
+    public void testFrameReuse() throws Exception {
+        PageCache pc = PageCache.create("/tmp/pcacher_frame_test", PageCache.PAGE_SIZE * 10);
+        for(int i = 0; i < 40; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            Arrays.fill(tmp, (byte)i);
+            pc.newPage(tmp);
+        }
+        // 缓存只有10页，后面的读全部复用被驱逐页的页帧
+        for(int round = 0; round < 3; round ++) {
+            for(int i = 1; i <= 40; i ++) {
+                Page pg = pc.getPage(i);
+                for(byte b : pg.getData()) {
+                    assert b == (byte)(i-1);
+                }
+                pg.release();
+            }
+        }
+        // 文件末尾之后的页读出来是全0，不能残留复用页帧的内容
+        Page pg = pc.getPage(41);
+        for(byte b : pg.getData()) {
+            assert b == 0;
+        }
+        pg.release();
+        // 页帧总数不超过缓存容量
+        assert ((PageCacheImpl)pc).allocatedFrames() == 10;
+        // 截断丢掉的页也归还页帧
+        assert ((PageCacheImpl)pc).freeFrames() == 0;
+        pc.truncateByBgno(20);
+        assert ((PageCacheImpl)pc).freeFrames() >= 9;
+        pc.close();
+
+        // 缓存没用满时只分配用到的页帧
+        pc = PageCache.open("/tmp/pcacher_frame_test", PageCache.PAGE_SIZE * 1000);
+        for(int i = 1; i <= 5; i ++) {
+            pc.getPage(i).release();
+        }
+        assert ((PageCacheImpl)pc).allocatedFrames() == 5;
+        pc.close();
+        assert new File("/tmp/pcacher_frame_test.db").delete();
+    }
+
+    @Test
+    public void testWalBeforePageWrite() throws Exception {
+        long[] flushed = {0};
+        PageCache pc = PageCache.create("/tmp/pcacher_wal_test", PageCache.PAGE_SIZE * 10);
+        pc.setLogger(new Logger() {
+            public long log(byte[] data) { return 0; }
+            public void flush(long lsn) { flushed[0] = Math.max(flushed[0], lsn); }
+            public long tailLsn() { return 0; }
+            public void truncate(long x) {}
+            public void removeBefore(long lsn) {}
+            public long headLsn() { return 0; }
+            public byte[] next() { return null; }
+            public long position() { return 0; }
+            public void rewind() {}
+            public void seek(long lsn) {}
+            public void close() {}
+        });
+        for(int i = 0; i < 30; i ++) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        Page pg = pc.getPage(1);
+        pg.setDirty(true);
+        pg.setLsn(100);
+        pg.setLsn(50);
+        assert pg.getLsn() == 100;
+        pg.release();
+        // 读其他页把第一页挤出去，写回前日志要刷到100
+        for(int i = 2; i <= 30; i ++) {
+            pc.getPage(i).release();
+        }
+        assert flushed[0] >= 100;
+        pc.close();
+        assert new File("/tmp/pcacher_wal_test.db").delete();
+    }
+
+    @Test
+    public void testBeyond4GB() throws Exception {
+        for(boolean mmap : new boolean[]{false, true}) {
+            testBeyond4GB(mmap);
+        }
+    }
+
+    /**
+     * 稀疏文件，在2GB和4GB边界两侧各写一页再读回
+     */
+    private void testBeyond4GB(boolean mmap) throws Exception {
+        String path = "/tmp/pcacher_large_test";
+        File f = new File(path + PageCacheImpl.DB_SUFFIX);
+        PageCacheOptions opt = new PageCacheOptions();
+        opt.mmap = mmap;
+        PageCache.create(path, PageCache.PAGE_SIZE * 10, opt).close();
+
+        long[] boundaries = {1L << 31, 1L << 32};
+        int[] pgnos = new int[4];
+        for(int i = 0; i < boundaries.length; i ++) {
+            try(RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+                raf.setLength(boundaries[i] - PageCache.PAGE_SIZE);
+            }
+            PageCache pc = PageCache.open(path, PageCache.PAGE_SIZE * 10, opt);
+            for(int j = 0; j < 2; j ++) {
+                byte[] data = new byte[PageCache.PAGE_SIZE];
+                Arrays.fill(data, (byte)(i*2+j+1));
+                pgnos[i*2+j] = pc.newPage(data);
+            }
+            pc.close();
+        }
+        assert pgnos[1] == (int)((1L << 31) / PageCache.PAGE_SIZE) + 1;
+        assert pgnos[3] == (int)((1L << 32) / PageCache.PAGE_SIZE) + 1;
+        assert f.length() == (1L << 32) + PageCache.PAGE_SIZE;
+
+        PageCache pc = PageCache.open(path, PageCache.PAGE_SIZE * 10, opt);
+        assert pc.getPageNumber() == pgnos[3];
+        for(int i = 0; i < 4; i ++) {
+            Page pg = pc.getPage(pgnos[i]);
+            assert pg.getData()[0] == (byte)(i+1);
+            assert pg.getData()[PageCache.PAGE_SIZE-1] == (byte)(i+1);
+            pg.release();
+        }
+        pc.truncateByBgno(pgnos[0]);
+        pc.close();
+        assert f.length() == (1L << 31);
+        assert f.delete();
+    }
+
+    @Test
+    public void testCompressedPageCache() throws Exception {
+        testCompressedPageCache(false);
+        testCompressedPageCache(true);
+    }
+
+    private void testCompressedPageCache(boolean mmap) throws Exception {
+        PageCacheOptions opt = new PageCacheOptions();
+        opt.mmap = mmap;
+        opt.compress = true;
+        String path = "/tmp/pcacher_compress_test" + (mmap ? "_mmap" : "");
+        PageCache pc = PageCache.create(path, PageCache.PAGE_SIZE * 20, opt);
+        // 第一页记录压缩标志，之后是可压缩的页和随机内容压不小的页交替
+        pc.newPage(PageOne.InitRaw(PageCache.PAGE_SIZE, true));
+        byte[][] expected = new byte[101][];
+        for(int i = 2; i <= 100; i ++) {
+            byte[] tmp = i % 2 == 0 ? new byte[PageCache.PAGE_SIZE] : RandomUtil.randomBytes(PageCache.PAGE_SIZE);
+            tmp[0] = 0;
+            Arrays.fill(tmp, 100, 100 + i, (byte)i);
+            expected[i] = tmp;
+            assert pc.newPage(tmp) == i;
+        }
+        // 改写后再被驱逐，写回的也是压缩页
+        for(int i = 2; i <= 100; i += 2) {
+            Page pg = pc.getPage(i);
+            pg.getData()[PageCache.PAGE_SIZE - 1] = (byte)i;
+            expected[i][PageCache.PAGE_SIZE - 1] = (byte)i;
+            pg.setDirty(true);
+            pg.release();
+        }
+        pc.close();
+        assert new File(path + ".db").length() == (long)PageCache.PAGE_SIZE * 100;
+
+        pc = PageCache.open(path, PageCache.PAGE_SIZE * 20, opt);
+        assert pc.isCompressed();
+        assert pc.getPageNumber() == 100;
+        for(int i = 2; i <= 100; i ++) {
+            Page pg = pc.getPage(i);
+            assert Arrays.equals(pg.getData(), expected[i]);
+            pg.release();
+        }
+        pc.close();
+
+        assert new File(path + ".db").delete();
+    }
+
+    @Test
+    public void testExtent() throws Exception {
+        PageCacheOptions opt = new PageCacheOptions();
+        opt.extentSize = PageCache.MIN_EXTENT_SIZE;
+        int pagesPerExtent = opt.extentSize / PageCache.PAGE_SIZE;
+        PageCache pc = PageCache.create("/tmp/pcacher_extent_test", PageCache.PAGE_SIZE * 20, opt);
+        pc.newPage(PageOne.InitRaw(PageCache.PAGE_SIZE, false));
+        File f = new File("/tmp/pcacher_extent_test.db");
+        // 第一页就分配出整个区，之后区内的新页不再改变文件长度
+        assert f.length() == opt.extentSize;
+        for(int i = 2; i <= pagesPerExtent + 1; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            assert pc.newPage(tmp) == i;
+        }
+        assert f.length() == 2L * opt.extentSize;
+        // 页数记在第一页中，DataManager关闭时也是这样写的
+        Page one = pc.getPage(1);
+        PageOne.setPageCount(one, pc.getPageNumber());
+        one.release();
+        pc.close();
+
+        pc = PageCache.open("/tmp/pcacher_extent_test", PageCache.PAGE_SIZE * 20, opt);
+        assert pc.getPageNumber() == pagesPerExtent + 1;
+        assert f.length() == 2L * opt.extentSize;
+        for(int i = 2; i <= pagesPerExtent + 1; i ++) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[0] == (byte)i;
+            pg.release();
+        }
+        assert pc.newPage(new byte[PageCache.PAGE_SIZE]) == pagesPerExtent + 2;
+        assert f.length() == 2L * opt.extentSize;
+        pc.close();
+
+        assert f.delete();
+    }
+
+    @Test
+    public void testGetPages() throws Exception {
+        PageCache pc = PageCache.create("/tmp/pcacher_getpages_test", PageCache.PAGE_SIZE * 20);
+        for(int i = 0; i < 100; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            pc.newPage(tmp);
+        }
+        pc.close();
+
+        pc = PageCache.open("/tmp/pcacher_getpages_test", PageCache.PAGE_SIZE * 20);
+        Page hit = pc.getPage(17);
+        // 命中、未命中和重复的页混在一起，按传入顺序返回
+        int[] pgnos = {3, 40, 17, 3, 99, 60, 8};
+        Page[] pages = pc.getPages(pgnos);
+        for(int i = 0; i < pgnos.length; i ++) {
+            assert pages[i].getPageNumber() == pgnos[i];
+            assert pages[i].getData()[0] == (byte)(pgnos[i] - 1);
+        }
+        assert pages[0] == pages[3];
+        assert pages[2] == hit;
+        for(Page pg : pages) {
+            pg.release();
+        }
+        hit.release();
+
+        // 调用者已被中断时照样等读线程读完，中断标记留给调用者
+        Thread.currentThread().interrupt();
+        pages = pc.getPages(new int[]{70, 71, 72, 73, 74});
+        assert Thread.interrupted();
+        for(int i = 0; i < pages.length; i ++) {
+            assert pages[i].getData()[0] == (byte)(69 + i);
+            pages[i].release();
+        }
+
+        pc.close();
+
+        // 有一页读不出来时已引用的页都被释放，缓存不会被占满
+        RandomAccessFile raf = new RandomAccessFile("/tmp/pcacher_getpages_test.db", "rw");
+        PageCacheImpl failing = new PageCacheImpl(raf, raf.getChannel(), 20) {
+            @Override
+            protected Page getForCache(long key) throws Exception {
+                if(key % 10 == 0) {
+                    throw Error.BadPageException;
+                }
+                return super.getForCache(key);
+            }
+        };
+        for(int round = 0; round < 30; round ++) {
+            try {
+                failing.getPages(new int[]{round * 3 + 1, round * 3 + 2, 50, round * 3 + 3});
+                assert false;
+            } catch(Exception e) {
+                assert e == Error.BadPageException;
+            }
+        }
+        for(int pgno = 1; pgno <= 99; pgno ++) {
+            if(pgno % 10 != 0) {
+                failing.getPage(pgno).release();
+            }
+        }
+        failing.close();
+
+        assert new File("/tmp/pcacher_getpages_test.db").delete();
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        PageCache init = PageCache.create("/tmp/pcacher_prefetch_test", PageCache.PAGE_SIZE * 20);
+        for(int i = 0; i < 100; i ++) {
+            init.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        init.close();
+
+        // 记录被预读的页
+        Set<Integer> prefetched = ConcurrentHashMap.newKeySet();
+        RandomAccessFile raf = new RandomAccessFile("/tmp/pcacher_prefetch_test.db", "rw");
+        PageFile file = new PageFileImpl(raf, raf.getChannel());
+        PageFile recording = new PageFile() {
+            public void read(long offset, byte[] buf) { file.read(offset, buf); }
+            public void read(long offset, byte[] buf, int length) { file.read(offset, buf, length); }
+            public void write(long offset, byte[] buf) { file.write(offset, buf); }
+            public void write(long offset, byte[] buf, int length) { file.write(offset, buf, length); }
+            public void extend(long size) { file.extend(size); }
+            public void preallocate(long from, long to) { file.preallocate(from, to); }
+            public void prefetch(long offset, int length) {
+                for(long o = offset; o < offset + length; o += PageCache.PAGE_SIZE) {
+                    prefetched.add((int)(o / PageCache.PAGE_SIZE) + 1);
+                }
+                file.prefetch(offset, length);
+            }
+            public void force() { file.force(); }
+            public long length() { return file.length(); }
+            public void setLength(long size) { file.setLength(size); }
+            public void close() { file.close(); }
+        };
+        PageCacheImpl pc = new PageCacheImpl(recording, 20);
+
+        // 显式预读，超出文件的部分忽略
+        pc.prefetch(90, 20);
+        waitPrefetched(prefetched, 11);
+        assert prefetched.equals(range(90, 100, 1));
+
+        // 随机访问不预读
+        prefetched.clear();
+        for(int pgno : new int[]{5, 50, 7, 33}) {
+            pc.getPage(pgno).release();
+        }
+        Thread.sleep(100);
+        assert prefetched.isEmpty();
+
+        // 步长为2的跨步读，三次访问后预读后面的页
+        for(int i = 40; i <= 44; i += 2) {
+            pc.getPage(i).release();
+        }
+        waitPrefetched(prefetched, PageCacheImpl.PREFETCH_PAGES);
+        assert prefetched.equals(range(46, 44 + 2 * PageCacheImpl.PREFETCH_PAGES, 2));
+        pc.close();
+
+        assert new File("/tmp/pcacher_prefetch_test.db").delete();
+    }
+
+    private Set<Integer> range(int from, int until, int stride) {
+        Set<Integer> s = new HashSet<>();
+        for(int i = from; i <= until; i += stride) {
+            s.add(i);
+        }
+        return s;
+    }
+
+    private void waitPrefetched(Set<Integer> prefetched, int expected) throws InterruptedException {
+        for(int i = 0; i < 500 && prefetched.size() < expected; i ++) {
+            Thread.sleep(10);
+        }
+    }
+
     private PageCache pc1;
     private CountDownLatch cdl1;
     private AtomicInteger noPages1;
@@ -181,4 +568,42 @@ public class PageCacheTest {
         }
         cdl2.countDown();
     }
+
+    @Test
+    public void testBulkReadKeepsHotPages() throws Exception {
+        PageCache init = PageCache.create("/tmp/pcacher_bulk_test", PageCache.PAGE_SIZE * 20);
+        for(int i = 0; i < 300; i ++) {
+            init.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        init.close();
+
+        AtomicInteger misses = new AtomicInteger(0);
+        RandomAccessFile raf = new RandomAccessFile("/tmp/pcacher_bulk_test.db", "rw");
+        PageCacheImpl pc = new PageCacheImpl(raf, raf.getChannel(), 100) {
+            @Override
+            protected Page getForCache(long key) throws Exception {
+                misses.incrementAndGet();
+                return super.getForCache(key);
+            }
+        };
+        // 热点页
+        for(int i = 1; i <= 20; i ++) {
+            pc.getPage(i).release();
+        }
+        // 全表扫描远大于缓存
+        pc.beginBulkRead();
+        for(int i = 21; i <= 300; i ++) {
+            pc.getPage(i).release();
+        }
+        pc.endBulkRead();
+
+        misses.set(0);
+        for(int i = 1; i <= 20; i ++) {
+            pc.getPage(i).release();
+        }
+        assert misses.get() == 0;
+        pc.close();
+
+        assert new File("/tmp/pcacher_bulk_test.db").delete();
+    }
 }
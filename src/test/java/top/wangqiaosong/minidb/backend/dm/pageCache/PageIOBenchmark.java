@@ -0,0 +1,89 @@
+package top.wangqiaosong.minidb.backend.dm.pageCache;
+
+import java.io.File;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import top.wangqiaosong.minidb.backend.dm.page.Page;
+
+/**
+ * 缓存未命中时FileChannel与内存映射两种读页方式的对比
+ * 运行：mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass="top.wangqiaosong.minidb.backend.dm.pageCache.PageIOBenchmark"
+ * 文件64MB，缓存只有10页，随机读几乎全部未命中
+ * 按读线程数分别运行，看并发读的吞吐能否随线程数增长
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PageIOBenchmark {
+
+    private static final String PATH = "/tmp/page_io_benchmark";
+    private static final int PAGES = 8192;
+
+    @Param({"false", "true"})
+    boolean mmap;
+
+    private PageCache pc;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        new File(PATH + PageCacheImpl.DB_SUFFIX).delete();
+        PageCache init = PageCache.create(PATH, PageCache.PAGE_SIZE * 10);
+        byte[] data = new byte[PageCache.PAGE_SIZE];
+        for(int i = 0; i < PAGES; i ++) {
+            data[0] = (byte)i;
+            init.newPage(data);
+        }
+        init.close();
+
+        PageCacheOptions opt = new PageCacheOptions();
+        opt.mmap = mmap;
+        pc = PageCache.open(PATH, PageCache.PAGE_SIZE * 10, opt);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pc.close();
+        new File(PATH + PageCacheImpl.DB_SUFFIX).delete();
+    }
+
+    @Benchmark
+    public byte randomRead() throws Exception {
+        int pgno = ThreadLocalRandom.current().nextInt(PAGES) + 1;
+        Page pg = pc.getPage(pgno);
+        byte b = pg.getData()[0];
+        pg.release();
+        return b;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for(int threads : new int[]{1, 2, 4, 8}) {
+            Options opt = new OptionsBuilder()
+                    .include(PageIOBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(opt).run();
+        }
+    }
+}
@@ -23,4 +23,21 @@ public class PageIndexTest {
             }
         }
     }
+
+    @Test
+    public void testSelectKeepsPage() {
+        PageIndex pIndex = new PageIndex();
+        int threshold = PageCache.PAGE_SIZE / 40;
+        pIndex.add(3, 10 * threshold);
+        pIndex.add(2, 10 * threshold);
+        // 选中的页留在索引中，同一区间先给页号小的
+        assert pIndex.select(threshold).pgno == 2;
+        assert pIndex.select(threshold).pgno == 2;
+        pIndex.update(2, 0);
+        assert pIndex.select(threshold).pgno == 3;
+        pIndex.update(3, 0);
+        assert pIndex.select(threshold) == null;
+        pIndex.add(3, 20 * threshold);
+        assert pIndex.select(15 * threshold).pgno == 3;
+    }
 }
@@ -5,8 +5,10 @@ import java.util.List;
 
 import org.junit.Test;
 
+import top.wangqiaosong.minidb.backend.dm.logger.LogFiles;
 import top.wangqiaosong.minidb.backend.dm.DataManager;
 import top.wangqiaosong.minidb.backend.dm.pageCache.PageCache;
+import top.wangqiaosong.minidb.backend.dm.pageCache.PageCacheOptions;
 import top.wangqiaosong.minidb.backend.tm.MockTransactionManager;
 import top.wangqiaosong.minidb.backend.tm.TransactionManager;
 
@@ -30,7 +32,90 @@ public class BPlusTreeTest {
             assert uids.get(0) == i;
         }
 
+        dm.close();
+
         assert new File("/tmp/TestTreeSingle.db").delete();
-        assert new File("/tmp/TestTreeSingle.log").delete();
+        LogFiles.delete("/tmp/TestTreeSingle");
+        new File("/tmp/TestTreeSingle.ckpt").delete();
+    }
+
+    @Test
+    public void testTreePageSizes() throws Exception {
+        for(int pageSize : new int[]{PageCache.MIN_PAGE_SIZE, PageCache.MAX_PAGE_SIZE}) {
+            String path = "/tmp/TestTreePageSize";
+            TransactionManager tm = new MockTransactionManager();
+            PageCacheOptions opt = new PageCacheOptions();
+            opt.pageSize = pageSize;
+            DataManager dm = DataManager.create(path, pageSize*10, tm, opt);
+            assert dm.getPageSize() == pageSize;
+
+            long root = BPlusTree.create(dm);
+            BPlusTree tree = BPlusTree.load(root, dm);
+            int lim = 5000;
+            for(int i = lim-1; i >= 0; i --) {
+                tree.insert(i, i);
+            }
+            dm.close();
+
+            // 打开时不指定页大小，从第一页读出
+            dm = DataManager.open(path, pageSize*10, tm);
+            assert dm.getPageSize() == pageSize;
+            tree = BPlusTree.load(root, dm);
+            for(int i = 0; i < lim; i ++) {
+                List<Long> uids = tree.search(i);
+                assert uids.size() == 1;
+                assert uids.get(0) == i;
+            }
+            dm.close();
+
+            assert new File(path + ".db").delete();
+            LogFiles.delete(path);
+            new File(path + ".ckpt").delete();
+        }
+    }
+
+    @Test
+    public void testTreeDelete() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeDelete", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        int lim = 5000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i, i);
+            // 同一个key的另一项
+            tree.insert(i, i + lim);
+        }
+        for(int i = 0; i < lim; i ++) {
+            assert tree.delete(i, i + lim);
+            if(i % 2 == 0) {
+                assert tree.delete(i, i);
+            }
+        }
+        assert !tree.delete(0, 0);
+        assert !tree.delete(lim, lim);
+
+        for(int i = 0; i < lim; i ++) {
+            List<Long> uids = tree.search(i);
+            if(i % 2 == 0) {
+                assert uids.isEmpty();
+            } else {
+                assert uids.size() == 1;
+                assert uids.get(0) == i;
+            }
+        }
+        assert tree.searchRange(0, lim).size() == lim / 2;
+
+        // 删空的叶子节点之后还能插入
+        tree.insert(0, 0);
+        assert tree.search(0).size() == 1;
+
+        dm.close();
+
+        assert new File("/tmp/TestTreeDelete.db").delete();
+        LogFiles.delete("/tmp/TestTreeDelete");
+        new File("/tmp/TestTreeDelete.ckpt").delete();
     }
 }
@@ -5,6 +5,7 @@ import java.util.concurrent.CountDownLatch;
 
 import org.junit.Test;
 
+import top.wangqiaosong.minidb.backend.dm.logger.LogFiles;
 import top.wangqiaosong.minidb.backend.dm.DataManager;
 import top.wangqiaosong.minidb.backend.tbm.TableManager;
 import top.wangqiaosong.minidb.backend.tm.TransactionManager;
@@ -40,7 +41,8 @@ public class ExecutorTest {
         testInsert(exe, 10000, 1);
         new File(path + ".db").delete();
         new File(path + ".bt").delete();
-        new File(path + ".log").delete();
+        LogFiles.delete(path);
+        new File(path + ".ckpt").delete();
         new File(path + ".xid").delete();
     }
 
@@ -72,7 +74,88 @@ public class ExecutorTest {
         testMultiInsert(10000, 4);
         new File(path + ".db").delete();
         new File(path + ".bt").delete();
-        new File(path + ".log").delete();
+        LogFiles.delete(path);
+        new File(path + ".ckpt").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testVacuum() throws Exception {
+        Executor exe = testCreate();
+        TableManager tbm = exe.tbm;
+        for (int i = 1; i <= 20; i++) {
+            exe.execute(("insert into test_table values " + i).getBytes());
+        }
+        // 可重复读事务开在删除之前，它还看得到被删的版本
+        Executor reader = new Executor(tbm);
+        reader.execute("begin isolation level repeatable read".getBytes());
+        exe.execute("delete from test_table where id < 11".getBytes());
+        exe.execute("update test_table set id = 100 where id = 20".getBytes());
+        assert tbm.vacuum() == 0;
+        assert new String(reader.execute("select * from test_table where id < 11".getBytes())).split("\n").length == 10;
+        reader.execute("commit".getBytes());
+
+        assert tbm.vacuum() == 11;
+        assert tbm.vacuum() == 0;
+        assert new String(exe.execute("select * from test_table where id < 11".getBytes())).isEmpty();
+        assert new String(exe.execute("select * from test_table".getBytes())).split("\n").length == 10;
+        assert new String(exe.execute("select * from test_table where id = 100".getBytes())).equals("[100]\n");
+        // 释放的槽被之后的插入复用
+        exe.execute("insert into test_table values 7".getBytes());
+        assert new String(exe.execute("select * from test_table where id = 7".getBytes())).equals("[7]\n");
+        // 回滚的事务插入的版本，包括更新出的新版本，也会被清理
+        exe.execute("begin".getBytes());
+        exe.execute("insert into test_table values 200".getBytes());
+        exe.execute("update test_table set id = 300 where id = 100".getBytes());
+        exe.execute("abort".getBytes());
+        assert tbm.vacuum() == 2;
+        assert tbm.vacuum() == 0;
+        assert new String(exe.execute("select * from test_table where id > 199".getBytes())).isEmpty();
+        assert new String(exe.execute("select * from test_table where id = 100".getBytes())).equals("[100]\n");
+
+        tbm.close();
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        LogFiles.delete(path);
+        new File(path + ".ckpt").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testOverflow() throws Exception {
+        Executor exe = testCreate();
+        TableManager tbm = exe.tbm;
+        exe.execute("create table doc id int32, body string (index id)".getBytes());
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        String big = sb.toString();
+        exe.execute(("insert into doc values 1 \"" + big + "\"").getBytes());
+        exe.execute("insert into doc values 2 small".getBytes());
+
+        assert new String(exe.execute("select * from doc where id = 1".getBytes())).equals("[1, " + big + "]\n");
+        assert new String(exe.execute("select id from doc".getBytes())).equals("[1]\n[2]\n");
+        // 更新别的字段，新版本和旧版本共用大值的溢出页链，清理旧版本不会释放它
+        exe.execute("update doc set id = 3 where id = 1".getBytes());
+        assert new String(exe.execute("select body from doc where id = 3".getBytes())).equals("[" + big + "]\n");
+        assert tbm.vacuum() == 1;
+        assert new String(exe.execute("select body from doc where id = 3".getBytes())).equals("[" + big + "]\n");
+        // 回滚的更新只去掉新版本的引用
+        exe.execute("begin".getBytes());
+        exe.execute("update doc set id = 4 where id = 3".getBytes());
+        exe.execute("abort".getBytes());
+        assert tbm.vacuum() == 1;
+        assert new String(exe.execute("select body from doc where id = 3".getBytes())).equals("[" + big + "]\n");
+        exe.execute(("update doc set body = " + big.substring(1) + " where id = 3").getBytes());
+        assert tbm.vacuum() == 1;
+        assert new String(exe.execute("select body from doc where id = 3".getBytes())).equals("[" + big.substring(1) + "]\n");
+
+        tbm.close();
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        LogFiles.delete(path);
+        new File(path + ".ckpt").delete();
         new File(path + ".xid").delete();
     }
 }